@@ -3,6 +3,7 @@ package it.polito.ezshop.data;
 import it.polito.ezshop.exceptions.*;
 import it.polito.ezshop.model.*;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -19,6 +20,7 @@ public class EZShop implements EZShopInterface {
     @Override
     public void reset(){
         model.reset();
+        model.close();
         model = new EzShopModel();
     }
 
@@ -100,20 +102,12 @@ public class EZShop implements EZShopInterface {
 
     @Override
     public List<ProductType> getProductTypesByDescription(String description) throws UnauthorizedException {
-        model.checkAuthorization(Roles.Administrator, Roles.ShopManager);
-        if(description == null)
-            description = "";
-        String finalDescription = description;
-        return model.getAllProducts().stream().filter((product)->product.getProductDescription().contains(finalDescription)).collect(Collectors.toList());
+        return new ArrayList<>(model.getProductsByDescription(description));
     }
 
     @Override
     public boolean updateQuantity(Integer productId, int toBeAdded) throws InvalidProductIdException, UnauthorizedException {
-        model.checkAuthorization(Roles.Administrator, Roles.ShopManager);
-        ProductTypeModel  productType = model.getProductById(productId);
-        if(productType == null)
-            return false;
-        return productType.updateAvailableQuantity(toBeAdded);
+        return model.updateQuantity(productId, toBeAdded);
     }
 
     @Override
@@ -210,6 +204,15 @@ public class EZShop implements EZShopInterface {
         return model.addProductToSaleRFID(transactionId, RFID);
     }
     
+    /**
+     * Adds a whole basket of RFIDs to a sale with a single write
+     * @return true for every RFID added to the sale, one outcome per RFID in the same order
+     */
+    public List<Boolean> addProductsToSaleRFID(Integer transactionId, List<String> RFIDs) throws InvalidTransactionIdException, UnauthorizedException {
+        model.checkAuthorization(Roles.ShopManager, Roles.Administrator, Roles.Cashier);
+        return model.addProductsToSaleRFID(transactionId, RFIDs);
+    }
+
     @Override
     public boolean deleteProductFromSale(Integer transactionId, String productCode, int amount) throws InvalidTransactionIdException, InvalidProductCodeException, InvalidQuantityException, UnauthorizedException {
         model.checkAuthorization(Roles.ShopManager, Roles.Administrator, Roles.Cashier);
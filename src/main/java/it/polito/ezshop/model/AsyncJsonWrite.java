@@ -0,0 +1,366 @@
+package it.polito.ezshop.model;
+
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * JsonWrite that hands the disk I/O to a dedicated writer thread, so that the API call returns
+ * to the cashier as soon as the changes are serialized. Pending writes are coalesced: the journal
+ * records of a file are appended together and only the latest content of a snapshot is written
+ * (group commit). At most capacity writes can be pending, further writes wait for the writer thread.
+ * Since the I/O happens later, the write methods return false only for serialization errors,
+ * I/O errors are reported by flush. The stock quantities stored since the last write are committed
+ * in the same batch as the next write, after its journal records are forced, so quantity.bin never runs
+ * ahead of the journals. Every journal append is forced to disk: once per write in SYNC mode, once per
+ * journal and batch in the other modes.
+ */
+public class AsyncJsonWrite extends JsonWrite {
+
+    public enum Durability {
+        SYNC,           // every write is on disk when the method returns, no writer thread
+        GROUP_COMMIT,   // pending writes are committed together at most groupCommitMillis after the first one
+        ON_DEMAND       // pending writes are committed by flush, or when the queue is full
+    }
+
+    static final int DEFAULT_CAPACITY = 10000;
+
+    Durability durability;
+    long groupCommitMillis;
+    int capacity;
+    // K = journal, V = records waiting to be appended
+    private LinkedHashMap<JsonJournal, List<String>> pendingRecords = new LinkedHashMap<>();
+    // K = snapshot file, V = journal of the file and latest content waiting to be written
+    private LinkedHashMap<String, Map.Entry<JsonJournal, byte[]>> pendingSnapshots = new LinkedHashMap<>();
+    // K = productId, V = quantity, null to free the slot. Staged quantities wait for the next write,
+    // pending ones are committed with the batch after its records and snapshots
+    private LinkedHashMap<Integer, Integer> stagedQuantities = new LinkedHashMap<>();
+    private LinkedHashMap<Integer, Integer> pendingQuantities = new LinkedHashMap<>();
+    private int pending = 0;
+    // sequence numbers of the writes enqueued, committed and requested by flush
+    private long enqueued = 0;
+    private long committed = 0;
+    private long flushTarget = 0;
+    private boolean failed = false;
+    private boolean closed = false;
+    // set once the writer thread stopped, the writes are then synchronous
+    private volatile boolean stopped = false;
+    // incremented by reset, batches taken before a reset are discarded
+    private volatile long epoch = 0;
+    // held by the writer thread while committing a batch
+    private final Object commitLock = new Object();
+    private Thread thread;
+    // commits the pending writes if the JVM exits before close, removed by close
+    private Thread shutdownHook;
+
+    public AsyncJsonWrite(String Folder, boolean journaled, Durability durability, long groupCommitMillis) throws IOException {
+        this(Folder, journaled, durability, groupCommitMillis, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param durability when the pending writes are committed to disk
+     * @param groupCommitMillis maximum delay of a write in GROUP_COMMIT mode
+     * @param capacity maximum number of pending writes
+     */
+    public AsyncJsonWrite(String Folder, boolean journaled, Durability durability, long groupCommitMillis, int capacity) throws IOException {
+        this(Folder, journaled, durability, groupCommitMillis, capacity, StorageCodec.JSON);
+    }
+
+    /**
+     * @param codec format of the snapshot files
+     */
+    public AsyncJsonWrite(String Folder, boolean journaled, Durability durability, long groupCommitMillis, int capacity, StorageCodec codec) throws IOException {
+        super(Folder, journaled, codec);
+        this.durability = durability;
+        // the stock quantities are forced once they are all applied, after the journals
+        quantities.sync = false;
+        this.groupCommitMillis = groupCommitMillis;
+        this.capacity = capacity;
+        if(durability != Durability.SYNC) {
+            thread = new Thread(this::run, "ezshop-writer");
+            thread.setDaemon(true);
+            thread.start();
+            shutdownHook = new Thread(this::close, "ezshop-writer-shutdown");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        }
+    }
+
+    /**
+     * Writes the dirty entities and enqueues the stock quantities stored since the last write with them
+     */
+    @Override
+    public boolean write(Map<String, ProductTypeModel> ProductMap, List<UserModel> UserList, Map<Integer, CustomerModel> CustomerMap,
+                         Map<Integer, OrderModel> OrderMap, Map<Integer, Integer> cardList, BalanceModel balance, DirtyTracker dirty){
+        boolean outcome = super.write(ProductMap, UserList, CustomerMap, OrderMap, cardList, balance, dirty);
+        // in SYNC mode a failed write keeps the quantities staged, they follow the retry of the write
+        if(outcome || durability != Durability.SYNC) {
+            synchronized (this) {
+                outcome &= enqueueQuantities();
+            }
+        }
+        return outcome;
+    }
+
+    @Override
+    public boolean storeQuantity(int productId, int quantity){
+        if(stopped)
+            return super.storeQuantity(productId, quantity);
+        if(productId <= 0)
+            return false;
+        synchronized (this) {
+            stagedQuantities.put(productId, quantity);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean removeQuantity(int productId){
+        if(stopped)
+            return super.removeQuantity(productId);
+        synchronized (this) {
+            stagedQuantities.put(productId, null);
+        }
+        return true;
+    }
+
+    @Override
+    boolean append(JsonJournal journal, List<String> records){
+        if(synchronous())
+            return super.append(journal, records);
+        if(records.isEmpty())
+            return true;
+        synchronized (this) {
+            awaitCapacity();
+            pendingRecords.computeIfAbsent(journal, (j) -> new ArrayList<>()).addAll(records);
+            pending += records.size();
+            enqueued++;
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * The snapshot is serialized on the caller thread, since the models are not thread safe
+     */
+    @Override
+    boolean replace(String file, JsonJournal journal, ObjectWriter writer, Object value){
+        if(synchronous())
+            return super.replace(file, journal, writer, value);
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try {
+            serialize(content, writer, value);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        synchronized (this) {
+            awaitCapacity();
+            if(pendingSnapshots.put(file, new AbstractMap.SimpleEntry<>(journal, content.toByteArray())) == null)
+                pending++;
+            enqueued++;
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Commits every pending write and waits for it to be on disk
+     * @return false if a write failed since the last flush
+     */
+    @Override
+    public boolean flush(){
+        if(synchronous()) {
+            synchronized (this) {
+                return enqueueQuantities();
+            }
+        }
+        synchronized (this) {
+            enqueueQuantities();
+            long target = enqueued;
+            flushTarget = Math.max(flushTarget, target);
+            notifyAll();
+            try {
+                while (committed < target && thread.isAlive())
+                    wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            boolean outcome = !failed && committed >= target && quantities.force();
+            failed = false;
+            return outcome;
+        }
+    }
+
+    /**
+     * Commits the pending writes, stops the writer thread and releases quantity.bin.
+     * The writes done after close are synchronous.
+     */
+    @Override
+    public void close(){
+        if(thread != null && !stopped) {
+            synchronized (this) {
+                enqueueQuantities();
+                closed = true;
+                notifyAll();
+            }
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            stopped = true;
+            if(Thread.currentThread() != shutdownHook) {
+                try {
+                    Runtime.getRuntime().removeShutdownHook(shutdownHook);
+                } catch (IllegalStateException e) {
+                    // the JVM is already shutting down, the hook is running or about to
+                }
+            }
+        } else {
+            synchronized (this) {
+                enqueueQuantities();
+            }
+        }
+        quantities.sync = true;
+        super.close();
+    }
+
+    /**
+     * Drops the pending writes and truncates the files
+     */
+    @Override
+    public boolean reset(){
+        synchronized (commitLock) {
+            synchronized (this) {
+                pendingRecords.clear();
+                pendingSnapshots.clear();
+                stagedQuantities.clear();
+                pendingQuantities.clear();
+                pending = 0;
+                committed = enqueued;
+                epoch++;
+                notifyAll();
+            }
+            return super.reset();
+        }
+    }
+
+    private boolean synchronous(){
+        return durability == Durability.SYNC || stopped;
+    }
+
+    /**
+     * Moves the staged quantities to the pending writes, or applies them in SYNC mode. The caller holds the lock.
+     * @return false if the quantities could not be applied
+     */
+    private boolean enqueueQuantities(){
+        if(stagedQuantities.isEmpty())
+            return true;
+        if(synchronous()) {
+            boolean outcome = applyQuantities(stagedQuantities);
+            stagedQuantities.clear();
+            return outcome;
+        }
+        awaitCapacity();
+        for (Map.Entry<Integer, Integer> entry : stagedQuantities.entrySet())
+            if(!pendingQuantities.containsKey(entry.getKey()))
+                pending++;
+        pendingQuantities.putAll(stagedQuantities);
+        stagedQuantities.clear();
+        enqueued++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Stores the quantities in quantity.bin and forces it
+     * @param stocks K = productId, V = quantity, null to free the slot
+     */
+    private boolean applyQuantities(Map<Integer, Integer> stocks){
+        boolean outcome = true;
+        for (Map.Entry<Integer, Integer> entry : stocks.entrySet())
+            outcome &= entry.getValue() == null ? super.removeQuantity(entry.getKey())
+                    : super.storeQuantity(entry.getKey(), entry.getValue());
+        return stocks.isEmpty() || quantities.force() && outcome;
+    }
+
+    private void awaitCapacity(){
+        try {
+            while (pending >= capacity && !closed)
+                wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean mustCommit(){
+        return pending > 0 && (closed || pending >= capacity || flushTarget > committed);
+    }
+
+    private void run(){
+        while (true) {
+            LinkedHashMap<JsonJournal, List<String>> records;
+            LinkedHashMap<String, Map.Entry<JsonJournal, byte[]>> snapshots;
+            LinkedHashMap<Integer, Integer> stocks;
+            long batch;
+            long batchEpoch;
+            synchronized (this) {
+                try {
+                    long deadline = 0;
+                    while (!mustCommit()) {
+                        if (pending == 0) {
+                            committed = enqueued;
+                            notifyAll();
+                            if (closed)
+                                return;
+                            deadline = 0;
+                            wait();
+                        } else if (durability == Durability.ON_DEMAND) {
+                            wait();
+                        } else {
+                            long now = System.currentTimeMillis();
+                            if (deadline == 0)
+                                deadline = now + groupCommitMillis;
+                            if (now >= deadline)
+                                break;
+                            wait(deadline - now);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                records = pendingRecords;
+                snapshots = pendingSnapshots;
+                pendingRecords = new LinkedHashMap<>();
+                pendingSnapshots = new LinkedHashMap<>();
+                stocks = pendingQuantities;
+                pendingQuantities = new LinkedHashMap<>();
+                pending = 0;
+                batch = enqueued;
+                batchEpoch = epoch;
+                notifyAll();
+            }
+            boolean outcome = true;
+            synchronized (commitLock) {
+                // a reset happened after the batch was taken, its writes must not reach the files
+                if (batchEpoch == epoch) {
+                    for (Map.Entry<JsonJournal, List<String>> entry : records.entrySet())
+                        outcome &= super.append(entry.getKey(), entry.getValue());
+                    for (Map.Entry<String, Map.Entry<JsonJournal, byte[]>> entry : snapshots.entrySet())
+                        outcome &= super.replace(entry.getKey(), entry.getValue().getKey(), entry.getValue().getValue());
+                    // the quantities go last, a crash before the journals are on disk leaves the old ones
+                    outcome &= applyQuantities(stocks);
+                }
+            }
+            if (!outcome)
+                stale = true;
+            synchronized (this) {
+                committed = Math.max(committed, batch);
+                failed |= !outcome;
+                notifyAll();
+            }
+        }
+    }
+}
@@ -4,12 +4,13 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import it.polito.ezshop.data.BalanceOperation;
 
 import java.time.LocalDate;
-import java.time.temporal.ChronoUnit;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.HashMap;
-import java.util.Optional;
+import java.time.YearMonth;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class BalanceModel {
 
@@ -18,6 +19,33 @@ public class BalanceModel {
     private HashMap<Integer, SaleTransactionModel> saleTransactionMap;
     private HashMap<Integer, BalanceOperationModel> creditAndDebitsOperationMap;
     ArrayList<BalanceOperationModel> balanceOperationList;
+    // operations of the older months, null if the whole ledger is resident (see LedgerArchive)
+    LedgerArchive archive;
+    // sum of getBalanceMoney of the operations in balanceOperationList, kept by track, untrack and update
+    private double running;
+    // K = balanceId, V = resident operation, across the sale, order, return and credit maps
+    private final Map<Integer, BalanceOperationModel> byId = new HashMap<>();
+    // K = epoch day (Long.MIN_VALUE for no date), V = resident operations of the day in insertion order
+    private final TreeMap<Long, LinkedHashSet<BalanceOperationModel>> byDay = new TreeMap<>();
+    // K = day, V = totals of the resident operations of the day
+    private final TreeMap<LocalDate, Rollup> dailyRollups = new TreeMap<>();
+    // K = month, V = totals of the resident operations of the month
+    private final TreeMap<YearMonth, Rollup> monthlyRollups = new TreeMap<>();
+    // changes of the running total since the last audit
+    private int changes;
+    // changes of the running total after which an audit is scheduled
+    int auditEvery = AUDIT_EVERY;
+    // audits that found the running total or the rollups wrong, and the total amount the running total was off by
+    private int auditCorrections;
+    private double auditDrift;
+
+    static final int AUDIT_EVERY = 1000;
+    static final double AUDIT_TOLERANCE = 0.001;
+    private static final ExecutorService auditor = Executors.newSingleThreadExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "ezshop-balance-audit");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public BalanceModel(){
         orderTransactionMap = new HashMap<>();
@@ -61,27 +89,80 @@ public class BalanceModel {
 
     @JsonIgnore
     public SaleTransactionModel getSaleTransactionById(Integer id) {
-        return saleTransactionMap.get(id);
+        return resident(saleTransactionMap, LedgerArchive.SALE, id);
     }
 
     @JsonIgnore
     public ReturnTransactionModel getReturnTransactionById(Integer id){
-        return returnTransactionMap.get(id);
+        return resident(returnTransactionMap, LedgerArchive.RETURN, id);
     }
 
     @JsonIgnore
     public OrderTransactionModel getOrderTransactionById(Integer id){
-        return orderTransactionMap.get(id);
+        return resident(orderTransactionMap, LedgerArchive.ORDER, id);
+    }
+
+    /**
+     * @return the operation of the map, restored from the archive if it is not resident
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends BalanceOperationModel> T resident(Map<Integer, T> map, String name, Integer id){
+        T operation = map.get(id);
+        if(operation == null && id != null && archive != null) {
+            operation = (T) archive.restore(name, id);
+            if(operation != null) {
+                map.put(id, operation);
+                track(operation);
+            }
+        }
+        return operation;
     }
 
+    /**
+     * @return the operation with the balanceId from the id index, restored from the archive if it is not resident
+     */
     @JsonIgnore
     public Optional<BalanceOperationModel> getTransactionById(Integer id){
-        return getAllBalanceOperations().stream().filter((balanceOperation) -> balanceOperation.getBalanceId() == id).findFirst();
+        if(id == null)
+            return Optional.empty();
+        BalanceOperationModel operation;
+        synchronized (this) {
+            operation = byId.get(id);
+        }
+        if(operation == null && archive != null) {
+            Map.Entry<String, Integer> archived = archive.find(id);
+            if(archived != null)
+                operation = resident(LedgerArchive.map(this, archived.getKey()), archived.getKey(), archived.getValue());
+        }
+        return Optional.ofNullable(operation);
     }
 
+    /**
+     * @return read only list of the archived and the resident operations, a view of the resident ones if
+     * nothing is archived, otherwise every partition of the archive is read
+     */
     @JsonIgnore
     public List<BalanceOperationModel> getAllBalanceOperations(){
-        return new ArrayList<>(balanceOperationList);
+        if(archive == null || archive.isEmpty())
+            return Collections.unmodifiableList(balanceOperationList);
+        return Collections.unmodifiableList(streamAllBalanceOperations().collect(Collectors.toList()));
+    }
+
+    /**
+     * @return a columnar snapshot of the archived and the resident operations, for analytics over the ledger
+     */
+    @JsonIgnore
+    public synchronized LedgerColumns toColumns(){
+        return new LedgerColumns(this);
+    }
+
+    /**
+     * @return the archived operations followed by the resident ones, the resident part is lazy
+     */
+    @JsonIgnore
+    public Stream<BalanceOperationModel> streamAllBalanceOperations(){
+        Stream<BalanceOperationModel> archived = archive == null ? Stream.empty() : archive.operations(null, null).stream();
+        return Stream.concat(archived, balanceOperationList.stream());
     }
 
 
@@ -93,7 +174,235 @@ public class BalanceModel {
     @JsonIgnore
     public void addBalanceOperation(BalanceOperationModel b){
         creditAndDebitsOperationMap.put(b.getBalanceId(), b);
-        balanceOperationList.add(b);
+        track(b);
+    }
+
+    /**
+     * Adds an operation to the resident ones, accounting it in the indexes, the running total and the rollups
+     */
+    synchronized void track(BalanceOperationModel operation){
+        balanceOperationList.add(operation);
+        operation.owner = this;
+        indexDay(operation);
+        index(operation);
+    }
+
+    /**
+     * Removes an operation from the resident ones, it is no more accounted in the running total and the rollups
+     * @return true if the operation was resident
+     */
+    synchronized boolean untrack(BalanceOperationModel operation){
+        if(!balanceOperationList.remove(operation))
+            return false;
+        unindex(operation);
+        unindexDay(operation, day(operation.getDate()));
+        if(operation.owner == this)
+            operation.owner = null;
+        return true;
+    }
+
+    /**
+     * Applies a change to a resident operation (money, type, date or balanceId), re-indexing it
+     */
+    synchronized void update(BalanceOperationModel operation, Runnable change){
+        long before = day(operation.getDate());
+        unindex(operation);
+        change.run();
+        // an operation keeps its place in the day unless it moves to another one
+        if(day(operation.getDate()) != before) {
+            unindexDay(operation, before);
+            indexDay(operation);
+        }
+        index(operation);
+    }
+
+    private void index(BalanceOperationModel operation){
+        if(operation.balanceId != null)
+            byId.put(operation.balanceId, operation);
+        account(operation, 1);
+    }
+
+    private void unindex(BalanceOperationModel operation){
+        if(operation.balanceId != null)
+            byId.remove(operation.balanceId, operation);
+        account(operation, -1);
+    }
+
+    private void indexDay(BalanceOperationModel operation){
+        byDay.computeIfAbsent(day(operation.getDate()), (d) -> new LinkedHashSet<>()).add(operation);
+    }
+
+    private void unindexDay(BalanceOperationModel operation, long day){
+        LinkedHashSet<BalanceOperationModel> bucket = byDay.get(day);
+        if(bucket != null && bucket.remove(operation) && bucket.isEmpty())
+            byDay.remove(day);
+    }
+
+    private static long day(LocalDate date){
+        return date == null ? Long.MIN_VALUE : date.toEpochDay();
+    }
+
+    /**
+     * Adds (sign 1) or removes (sign -1) the money of an operation to the running total and the rollups
+     */
+    private void account(BalanceOperationModel operation, int sign){
+        running += sign * operation.getBalanceMoney();
+        roll(operation, sign);
+        if(++changes >= auditEvery) {
+            changes = 0;
+            auditAsync();
+        }
+    }
+
+    private void roll(BalanceOperationModel operation, int sign){
+        LocalDate date = operation.getDate();
+        if(date == null)
+            return;
+        roll(dailyRollups, date, operation, sign);
+        roll(monthlyRollups, YearMonth.from(date), operation, sign);
+    }
+
+    private static <K> void roll(Map<K, Rollup> rollups, K period, BalanceOperationModel operation, int sign){
+        Rollup rollup = rollups.computeIfAbsent(period, (p) -> new Rollup());
+        rollup.add(operation, sign);
+        if(rollup.isEmpty())
+            rollups.remove(period);
+    }
+
+    /**
+     * Recomputes the money and the rollups of the resident operations and compares them with the running
+     * total and the kept rollups, every field of them, which are replaced if they differ
+     * @return true if the running total and the rollups were right
+     */
+    public synchronized boolean audit(){
+        double recomputed = balanceOperationList.stream().mapToDouble(BalanceOperationModel::getBalanceMoney).sum();
+        TreeMap<LocalDate, Rollup> days = new TreeMap<>();
+        TreeMap<YearMonth, Rollup> months = new TreeMap<>();
+        for (BalanceOperationModel operation : balanceOperationList) {
+            if(operation.getDate() == null)
+                continue;
+            roll(days, operation.getDate(), operation, 1);
+            roll(months, YearMonth.from(operation.getDate()), operation, 1);
+        }
+        boolean consistent = Math.abs(recomputed - running) < AUDIT_TOLERANCE
+                && matches(dailyRollups, days) && matches(monthlyRollups, months);
+        if(!consistent) {
+            auditCorrections++;
+            auditDrift += recomputed - running;
+            running = recomputed;
+            dailyRollups.clear();
+            dailyRollups.putAll(days);
+            monthlyRollups.clear();
+            monthlyRollups.putAll(months);
+        }
+        return consistent;
+    }
+
+    private static <K> boolean matches(Map<K, Rollup> rollups, Map<K, Rollup> expected){
+        if(!rollups.keySet().equals(expected.keySet()))
+            return false;
+        for (Map.Entry<K, Rollup> entry : expected.entrySet())
+            if(!rollups.get(entry.getKey()).matches(entry.getValue(), AUDIT_TOLERANCE))
+                return false;
+        return true;
+    }
+
+    /**
+     * @return the number of audits that corrected the running total or the rollups
+     */
+    @JsonIgnore
+    public synchronized int getAuditCorrections(){
+        return auditCorrections;
+    }
+
+    /**
+     * @return the sum of the corrections made to the running total by the audits
+     */
+    @JsonIgnore
+    public synchronized double getAuditDrift(){
+        return auditDrift;
+    }
+
+    /**
+     * @param from first day, null for no constraint
+     * @param to last day, null for no constraint, the two days are swapped if from is after to
+     * @return the totals of every day with operations between from and to, archived ones included
+     */
+    @JsonIgnore
+    public synchronized SortedMap<LocalDate, Rollup> getDailyRollups(LocalDate from, LocalDate to){
+        if(from != null && to != null && from.isAfter(to)) {
+            LocalDate aux = from;
+            from = to;
+            to = aux;
+        }
+        TreeMap<LocalDate, Rollup> rollups = archive == null ? new TreeMap<>() : archive.dailyRollups(from, to);
+        NavigableMap<LocalDate, Rollup> days = dailyRollups;
+        if(from != null)
+            days = days.tailMap(from, true);
+        if(to != null)
+            days = days.headMap(to, true);
+        days.forEach((day, rollup) -> rollups.computeIfAbsent(day, (d) -> new Rollup()).add(rollup));
+        return rollups;
+    }
+
+    /**
+     * @param from first month, null for no constraint
+     * @param to last month, null for no constraint
+     * @return the totals of every month with operations between from and to, archived ones included
+     */
+    @JsonIgnore
+    public synchronized SortedMap<YearMonth, Rollup> getMonthlyRollups(YearMonth from, YearMonth to){
+        if(from != null && to != null && from.isAfter(to)) {
+            YearMonth aux = from;
+            from = to;
+            to = aux;
+        }
+        TreeMap<YearMonth, Rollup> rollups = archive == null ? new TreeMap<>() : archive.monthlyRollups(from, to);
+        NavigableMap<YearMonth, Rollup> months = monthlyRollups;
+        if(from != null)
+            months = months.tailMap(from, true);
+        if(to != null)
+            months = months.headMap(to, true);
+        months.forEach((month, rollup) -> rollups.computeIfAbsent(month, (m) -> new Rollup()).add(rollup));
+        return rollups;
+    }
+
+    /**
+     * Totals of a period from the rollups: the months wholly inside it are read from the monthly ones,
+     * the days of the months at its ends from the daily ones
+     * @param from first day, null for no constraint
+     * @param to last day, null for no constraint
+     * @return the totals of the operations dated between from and to
+     */
+    @JsonIgnore
+    public synchronized Rollup getRollup(LocalDate from, LocalDate to){
+        if(from != null && to != null && from.isAfter(to)) {
+            LocalDate aux = from;
+            from = to;
+            to = aux;
+        }
+        Rollup rollup = new Rollup();
+        // first and last month wholly in the period
+        YearMonth first = from == null ? null : from.getDayOfMonth() == 1 ? YearMonth.from(from) : YearMonth.from(from).plusMonths(1);
+        YearMonth last = to == null ? null : to.equals(YearMonth.from(to).atEndOfMonth()) ? YearMonth.from(to) : YearMonth.from(to).minusMonths(1);
+        if(first != null && last != null && first.isAfter(last)) {
+            getDailyRollups(from, to).values().forEach(rollup::add);
+            return rollup;
+        }
+        getMonthlyRollups(first, last).values().forEach(rollup::add);
+        if(from != null && first.atDay(1).isAfter(from))
+            getDailyRollups(from, first.atDay(1).minusDays(1)).values().forEach(rollup::add);
+        if(to != null && last.atEndOfMonth().isBefore(to))
+            getDailyRollups(last.atEndOfMonth().plusDays(1), to).values().forEach(rollup::add);
+        return rollup;
+    }
+
+    /**
+     * Runs audit on the background auditor thread
+     * @return the outcome of the audit
+     */
+    public CompletableFuture<Boolean> auditAsync(){
+        return CompletableFuture.supplyAsync(this::audit, auditor);
     }
 
     /**
@@ -105,35 +414,56 @@ public class BalanceModel {
      */
     @JsonIgnore
     public List<BalanceOperation> getCreditsAndDebits(LocalDate from, LocalDate to){
-        if(from == null || to == null){
-            if(from == null && to == null)
-                return new ArrayList<>(balanceOperationList);
-            if(from == null) {
-                LocalDate finalTo1 = to;
-                return balanceOperationList.stream().filter(balanceOperation -> balanceOperation.getDate().isBefore(finalTo1.plus(1,ChronoUnit.DAYS))).collect(Collectors.toList());
-            }
-            else {
-                LocalDate finalFrom1 = from;
-                return balanceOperationList.stream().filter(balanceOperation -> balanceOperation.getDate().isAfter(finalFrom1.minus(1, ChronoUnit.DAYS))).collect(Collectors.toList());
-            }
-        }
-        if(from.isAfter(to)) {
+        return streamCreditsAndDebits(from, to).collect(Collectors.toList());
+    }
+
+    /**
+     * @param offset index of the first operation of the page
+     * @param limit maximum number of operations of the page
+     * @return a page of the operations of getCreditsAndDebits
+     */
+    @JsonIgnore
+    public List<BalanceOperation> getCreditsAndDebits(LocalDate from, LocalDate to, int offset, int limit){
+        if(offset < 0 || limit <= 0)
+            return new ArrayList<>();
+        return streamCreditsAndDebits(from, to).skip(offset).limit(limit).collect(Collectors.toList());
+    }
+
+    /**
+     * The archived operations come first, then the resident ones by day, read from the day index so only the
+     * days between from and to are visited. The resident part is lazy, the balance must not change while the
+     * stream is consumed.
+     * @param from the start date, null for no constraint
+     * @param to the end date, null for no constraint, the two dates are swapped if from is after to
+     * @return the operations whose date is between from and to
+     */
+    @JsonIgnore
+    public Stream<BalanceOperation> streamCreditsAndDebits(LocalDate from, LocalDate to){
+        if(from != null && to != null && from.isAfter(to)) {
             LocalDate aux = from;
             from = to;
             to = aux;
         }
-        LocalDate finalFrom = from;
-        LocalDate finalTo = to;
-        return balanceOperationList.stream().filter(balanceOperation -> balanceOperation.getDate().isAfter(finalFrom.minus(1, ChronoUnit.DAYS)) && balanceOperation.getDate().isBefore(finalTo.plus(1,ChronoUnit.DAYS))).collect(Collectors.toList());
+        // only the partitions of the months between from and to are read
+        Stream<BalanceOperation> archived = archive == null ? Stream.empty() : archive.operations(from, to).stream().map((op) -> op);
+        NavigableMap<Long, LinkedHashSet<BalanceOperationModel>> days = byDay;
+        if(from != null)
+            days = days.tailMap(from.toEpochDay(), true);
+        if(to != null)
+            days = days.headMap(to.toEpochDay(), true);
+        return Stream.concat(archived, days.values().stream().flatMap(Collection::stream));
     }
 
     /**
      * Made by Manuel
-     * @return The total amount of the actual balance
+     * @return The total amount of the actual balance, from the running total of the resident operations
      */
     @JsonIgnore
     public double computeBalance() {
-        return this.balanceOperationList.stream().filter((op)->!op.isReturn()).mapToDouble(BalanceOperationModel::getRealMoney).sum();
+        double archived = archive == null ? 0 : archive.total();
+        synchronized (this) {
+            return archived + running;
+        }
     }
 
     //MADE BY OMAR
@@ -145,17 +475,17 @@ public class BalanceModel {
     //MADE BY OMAR
     @JsonIgnore
     public void addOrderTransaction(OrderTransactionModel orderTransactionModel){
-        balanceOperationList.add(orderTransactionModel);
+        track(orderTransactionModel);
         this.orderTransactionMap.put(orderTransactionModel.getBalanceId(), orderTransactionModel);
     }
 
     public void addSaleTransactionModel(Integer saleId, SaleTransactionModel sale){
-        balanceOperationList.add(sale);
+        track(sale);
         this.saleTransactionMap.put(saleId, sale);
     }
 
     public void addReturnTransactionModel(Integer saleId, ReturnTransactionModel retur){
-        balanceOperationList.add(retur);
+        track(retur);
         this.returnTransactionMap.put(saleId, retur);
     }
 }
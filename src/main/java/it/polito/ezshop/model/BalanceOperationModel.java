@@ -12,6 +12,8 @@ public class BalanceOperationModel implements BalanceOperation {
     Double money;
     LocalDate date;
     static Integer currentMaxId = 1;
+    // balance whose running total accounts the operation, null if it is not resident in one
+    BalanceModel owner;
     public BalanceOperationModel(){}
 
     public BalanceOperationModel(String type, Double amount, LocalDate date){
@@ -28,7 +30,7 @@ public class BalanceOperationModel implements BalanceOperation {
 
     @Override
     public void setBalanceId(int balanceId) {
-        this.balanceId = balanceId;
+        change(() -> this.balanceId = balanceId);
     }
 
     @JsonIgnore
@@ -40,12 +42,12 @@ public class BalanceOperationModel implements BalanceOperation {
     @JsonIgnore
     @Override
     public void setDate(LocalDate date) {
-        this.date = date;
+        change(() -> this.date = date);
     }
 
     public String getDateS(){return date.toString();}
 
-    public void setDateS(String dateS){this.date = LocalDate.parse(dateS);}
+    public void setDateS(String dateS){setDate(LocalDate.parse(dateS));}
 
     @Override
     public double getMoney() {
@@ -54,7 +56,7 @@ public class BalanceOperationModel implements BalanceOperation {
 
     @Override
     public void setMoney(double money) {
-        this.money = money;
+        change(() -> this.money = money);
     }
 
     @Override
@@ -64,7 +66,7 @@ public class BalanceOperationModel implements BalanceOperation {
 
     @Override
     public void setType(String type) {
-        operationType = type;
+        change(() -> operationType = type);
     }
 
     @JsonIgnore
@@ -76,4 +78,23 @@ public class BalanceOperationModel implements BalanceOperation {
     public boolean isReturn(){
         return getType().equals("RETURN");
     }
+
+    /**
+     * @return the money the operation adds to the balance, returns are accounted through their sale
+     */
+    @JsonIgnore
+    double getBalanceMoney(){
+        return isReturn() ? 0 : getRealMoney();
+    }
+
+    /**
+     * Applies a change to the operation, re-indexing it in the balance holding it
+     */
+    void change(Runnable change){
+        BalanceModel balance = owner;
+        if(balance == null)
+            change.run();
+        else
+            balance.update(this, change);
+    }
 }
@@ -0,0 +1,381 @@
+package it.polito.ezshop.model;
+
+import com.fasterxml.jackson.core.Base64Variant;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.ObjectCodec;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.base.GeneratorBase;
+import com.fasterxml.jackson.core.json.JsonWriteContext;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static it.polito.ezshop.model.BinaryStorageCodec.*;
+
+/**
+ * Writes the tokens of a document in the layout of BinaryStorageCodec. A record is buffered until its
+ * value is complete, then its length and its bytes are written to the stream.
+ */
+public class BinaryGenerator extends GeneratorBase {
+
+    private final OutputStream out;
+    // tokens not yet written to the stream, the current record while one is being written
+    private byte[] buffer = new byte[8192];
+    private int length;
+    // K = name or string, V = index in the dictionary of the file
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    // context the record being buffered was started in, null outside of a record
+    private JsonWriteContext record;
+
+    public BinaryGenerator(ObjectCodec codec, OutputStream out) throws IOException {
+        super(JsonGenerator.Feature.collectDefaults(), codec);
+        this.out = out;
+        out.write(MAGIC);
+    }
+
+    @Override
+    public void writeStartArray() throws IOException {
+        _verifyValueWrite("start an array");
+        // the elements of a top level array are the records, not the array
+        if(!_writeContext.inRoot())
+            beginValue();
+        put(START_ARRAY);
+        _writeContext = _writeContext.createChildArrayContext();
+    }
+
+    @Override
+    public void writeEndArray() throws IOException {
+        if(!_writeContext.inArray())
+            _reportError("Current context not an array but " + _writeContext.typeDesc());
+        put(END_ARRAY);
+        _writeContext = _writeContext.getParent();
+        endValue();
+    }
+
+    @Override
+    public void writeStartObject() throws IOException {
+        _verifyValueWrite("start an object");
+        beginValue();
+        put(START_OBJECT);
+        _writeContext = _writeContext.createChildObjectContext();
+    }
+
+    @Override
+    public void writeEndObject() throws IOException {
+        if(!_writeContext.inObject())
+            _reportError("Current context not an object but " + _writeContext.typeDesc());
+        put(END_OBJECT);
+        _writeContext = _writeContext.getParent();
+        endValue();
+    }
+
+    @Override
+    public void writeFieldName(String name) throws IOException {
+        if(_writeContext.writeFieldName(name) == JsonWriteContext.STATUS_EXPECT_VALUE)
+            _reportError("Can not write a field name, expecting a value");
+        Integer index = dictionary.get(name);
+        if(index != null) {
+            put(NAME_REF);
+            putVarInt(index);
+            return;
+        }
+        dictionary.put(name, dictionary.size());
+        put(NAME);
+        putUTF(name);
+    }
+
+    @Override
+    public void writeFieldName(SerializableString name) throws IOException {
+        writeFieldName(name.getValue());
+    }
+
+    @Override
+    public void writeString(String text) throws IOException {
+        if(text == null) {
+            writeNull();
+            return;
+        }
+        _verifyValueWrite("write a string");
+        beginValue();
+        LocalDate date = asDate(text);
+        Integer index = dictionary.get(text);
+        if(date != null) {
+            put(DATE);
+            putInt((int) date.toEpochDay());
+        }
+        else if(index != null) {
+            put(STRING_REF);
+            putVarInt(index);
+        }
+        else if(text.length() <= MAX_DICTIONARY_LENGTH) {
+            dictionary.put(text, dictionary.size());
+            put(STRING);
+            putUTF(text);
+        }
+        else {
+            put(STRING_RAW);
+            putUTF(text);
+        }
+        endValue();
+    }
+
+    @Override
+    public void writeString(char[] text, int offset, int len) throws IOException {
+        writeString(new String(text, offset, len));
+    }
+
+    @Override
+    public void writeString(SerializableString text) throws IOException {
+        writeString(text.getValue());
+    }
+
+    @Override
+    public void writeRawUTF8String(byte[] text, int offset, int length) throws IOException {
+        writeString(new String(text, offset, length, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void writeUTF8String(byte[] text, int offset, int length) throws IOException {
+        writeString(new String(text, offset, length, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void writeRaw(String text) throws IOException {
+        _reportUnsupportedOperation();
+    }
+
+    @Override
+    public void writeRaw(String text, int offset, int len) throws IOException {
+        _reportUnsupportedOperation();
+    }
+
+    @Override
+    public void writeRaw(char[] text, int offset, int len) throws IOException {
+        _reportUnsupportedOperation();
+    }
+
+    @Override
+    public void writeRaw(char c) throws IOException {
+        _reportUnsupportedOperation();
+    }
+
+    @Override
+    public void writeBinary(Base64Variant variant, byte[] bytes, int offset, int len) throws IOException {
+        writeString(variant.encode(Arrays.copyOfRange(bytes, offset, offset + len)));
+    }
+
+    @Override
+    public void writeNumber(int v) throws IOException {
+        _verifyValueWrite("write a number");
+        beginValue();
+        put(INT);
+        putInt(v);
+        endValue();
+    }
+
+    @Override
+    public void writeNumber(long v) throws IOException {
+        if(v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE) {
+            writeNumber((int) v);
+            return;
+        }
+        _verifyValueWrite("write a number");
+        beginValue();
+        put(LONG);
+        putLong(v);
+        endValue();
+    }
+
+    @Override
+    public void writeNumber(BigInteger v) throws IOException {
+        if(v == null) {
+            writeNull();
+            return;
+        }
+        _verifyValueWrite("write a number");
+        beginValue();
+        put(BIG_INTEGER);
+        putUTF(v.toString());
+        endValue();
+    }
+
+    @Override
+    public void writeNumber(double v) throws IOException {
+        _verifyValueWrite("write a number");
+        beginValue();
+        put(DOUBLE);
+        putLong(Double.doubleToLongBits(v));
+        endValue();
+    }
+
+    @Override
+    public void writeNumber(float v) throws IOException {
+        writeNumber((double) v);
+    }
+
+    @Override
+    public void writeNumber(BigDecimal v) throws IOException {
+        if(v == null) {
+            writeNull();
+            return;
+        }
+        _verifyValueWrite("write a number");
+        beginValue();
+        put(BIG_DECIMAL);
+        putUTF(v.toString());
+        endValue();
+    }
+
+    @Override
+    public void writeNumber(String encodedValue) throws IOException {
+        try {
+            writeNumber(Long.parseLong(encodedValue));
+        } catch (NumberFormatException e) {
+            writeNumber(new BigDecimal(encodedValue));
+        }
+    }
+
+    @Override
+    public void writeBoolean(boolean state) throws IOException {
+        _verifyValueWrite("write a boolean");
+        beginValue();
+        put(state ? TRUE : FALSE);
+        endValue();
+    }
+
+    @Override
+    public void writeNull() throws IOException {
+        _verifyValueWrite("write a null");
+        beginValue();
+        put(NULL);
+        endValue();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if(record == null)
+            drain();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(isClosed())
+            return;
+        super.close();
+        drain();
+        if(isEnabled(JsonGenerator.Feature.AUTO_CLOSE_TARGET))
+            out.close();
+        else
+            out.flush();
+    }
+
+    @Override
+    protected void _releaseBuffers() {
+    }
+
+    @Override
+    protected void _verifyValueWrite(String typeMsg) throws IOException {
+        if(_writeContext.writeValue() == JsonWriteContext.STATUS_EXPECT_NAME)
+            _reportError("Can not " + typeMsg + ", expecting field name");
+    }
+
+    /**
+     * Starts buffering a record if the value written next is a top level value or an element of the top level array
+     */
+    private void beginValue() throws IOException {
+        if(record != null)
+            return;
+        if(_writeContext.inRoot() || (_writeContext.inArray() && _writeContext.getParent().inRoot())) {
+            drain();
+            record = _writeContext;
+        }
+    }
+
+    /**
+     * Writes the buffered record once its value is complete
+     */
+    private void endValue() throws IOException {
+        if(record != _writeContext)
+            return;
+        record = null;
+        int size = length;
+        byte[] header = new byte[6];
+        int n = 0;
+        header[n++] = RECORD;
+        while ((size & ~0x7F) != 0) {
+            header[n++] = (byte) ((size & 0x7F) | 0x80);
+            size >>>= 7;
+        }
+        header[n++] = (byte) size;
+        out.write(header, 0, n);
+        drain();
+    }
+
+    private void drain() throws IOException {
+        out.write(buffer, 0, length);
+        length = 0;
+    }
+
+    private void ensure(int n){
+        if(length + n > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + n));
+    }
+
+    private void put(int b){
+        ensure(1);
+        buffer[length++] = (byte) b;
+    }
+
+    private void putInt(int v){
+        ensure(4);
+        buffer[length++] = (byte) (v >>> 24);
+        buffer[length++] = (byte) (v >>> 16);
+        buffer[length++] = (byte) (v >>> 8);
+        buffer[length++] = (byte) v;
+    }
+
+    private void putLong(long v){
+        putInt((int) (v >>> 32));
+        putInt((int) v);
+    }
+
+    private void putVarInt(int v){
+        ensure(5);
+        while ((v & ~0x7F) != 0) {
+            buffer[length++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buffer[length++] = (byte) v;
+    }
+
+    private void putUTF(String text){
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        putVarInt(bytes.length);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    /**
+     * @return the date if the text is an ISO date that is written back the same by LocalDate.toString, null otherwise
+     */
+    static LocalDate asDate(String text){
+        if(text.length() != 10 || text.charAt(4) != '-' || text.charAt(7) != '-')
+            return null;
+        try {
+            LocalDate date = LocalDate.parse(text);
+            return date.toString().equals(text) ? date : null;
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
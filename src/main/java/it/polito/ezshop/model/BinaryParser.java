@@ -0,0 +1,385 @@
+package it.polito.ezshop.model;
+
+import com.fasterxml.jackson.core.*;
+import com.fasterxml.jackson.core.base.ParserMinimalBase;
+import com.fasterxml.jackson.core.json.JsonReadContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static it.polito.ezshop.model.BinaryStorageCodec.*;
+
+/**
+ * Reads the tokens of a document written by BinaryGenerator, rebuilding the dictionary of the file while reading
+ */
+public class BinaryParser extends ParserMinimalBase {
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[8192];
+    private int position;
+    private int limit;
+    private ObjectCodec codec;
+    private JsonReadContext context = JsonReadContext.createRootContext(null);
+    // names and strings in order of first occurrence
+    private final List<String> dictionary = new ArrayList<>();
+    private boolean closed;
+    private boolean empty;
+    private String text;
+    private Number number;
+    private JsonParser.NumberType numberType;
+
+    public BinaryParser(ObjectCodec codec, InputStream in) throws IOException {
+        super(JsonParser.Feature.collectDefaults());
+        this.codec = codec;
+        this.in = in;
+        // an empty file is an empty document
+        if(!fill(1))
+            empty = true;
+        else if(!Arrays.equals(readBytes(MAGIC.length), MAGIC))
+            throw new JsonParseException(this, "Not a binary snapshot");
+    }
+
+    @Override
+    public JsonToken nextToken() throws IOException {
+        if(closed || empty)
+            return _currToken = null;
+        int tag = fill(1) ? buffer[position++] & 0xFF : -1;
+        if(tag == RECORD) {
+            readVarInt();
+            tag = readByte();
+        }
+        text = null;
+        number = null;
+        switch (tag) {
+            case -1:
+                _handleEOF();
+                return _currToken = null;
+            case START_OBJECT:
+                context = context.createChildObjectContext(-1, -1);
+                return _currToken = JsonToken.START_OBJECT;
+            case END_OBJECT:
+                context = context.getParent();
+                return _currToken = JsonToken.END_OBJECT;
+            case START_ARRAY:
+                context = context.createChildArrayContext(-1, -1);
+                return _currToken = JsonToken.START_ARRAY;
+            case END_ARRAY:
+                context = context.getParent();
+                return _currToken = JsonToken.END_ARRAY;
+            case NAME:
+                dictionary.add(readUTF());
+                context.setCurrentName(dictionary.get(dictionary.size() - 1));
+                return _currToken = JsonToken.FIELD_NAME;
+            case NAME_REF:
+                context.setCurrentName(entry(readVarInt()));
+                return _currToken = JsonToken.FIELD_NAME;
+            case STRING:
+                text = readUTF();
+                dictionary.add(text);
+                return value(JsonToken.VALUE_STRING);
+            case STRING_REF:
+                text = entry(readVarInt());
+                return value(JsonToken.VALUE_STRING);
+            case STRING_RAW:
+                text = readUTF();
+                return value(JsonToken.VALUE_STRING);
+            case DATE:
+                text = LocalDate.ofEpochDay(readInt()).toString();
+                return value(JsonToken.VALUE_STRING);
+            case INT:
+                return number(readInt(), NumberType.INT);
+            case LONG:
+                return number(readLong(), NumberType.LONG);
+            case DOUBLE:
+                return number(Double.longBitsToDouble(readLong()), NumberType.DOUBLE);
+            case BIG_INTEGER:
+                return number(new BigInteger(readUTF()), NumberType.BIG_INTEGER);
+            case BIG_DECIMAL:
+                return number(new BigDecimal(readUTF()), NumberType.BIG_DECIMAL);
+            case TRUE:
+                return value(JsonToken.VALUE_TRUE);
+            case FALSE:
+                return value(JsonToken.VALUE_FALSE);
+            case NULL:
+                return value(JsonToken.VALUE_NULL);
+            default:
+                throw new JsonParseException(this, "Unknown tag " + tag);
+        }
+    }
+
+    private JsonToken value(JsonToken token){
+        context.expectComma();
+        return _currToken = token;
+    }
+
+    private JsonToken number(Number value, NumberType type){
+        number = value;
+        numberType = type;
+        return value(value instanceof Double || value instanceof BigDecimal ? JsonToken.VALUE_NUMBER_FLOAT : JsonToken.VALUE_NUMBER_INT);
+    }
+
+    private String entry(int index) throws IOException {
+        if(index < 0 || index >= dictionary.size())
+            throw new JsonParseException(this, "Unknown dictionary entry " + index);
+        return dictionary.get(index);
+    }
+
+    @Override
+    protected void _handleEOF() throws JsonParseException {
+        if(!context.inRoot())
+            _reportInvalidEOF();
+    }
+
+    @Override
+    public String getCurrentName() {
+        if((_currToken == JsonToken.START_OBJECT || _currToken == JsonToken.START_ARRAY) && context.getParent() != null)
+            return context.getParent().getCurrentName();
+        return context.getCurrentName();
+    }
+
+    @Override
+    public void overrideCurrentName(String name) {
+        try {
+            context.setCurrentName(name);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(closed)
+            return;
+        closed = true;
+        if(isEnabled(JsonParser.Feature.AUTO_CLOSE_SOURCE))
+            in.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public JsonStreamContext getParsingContext() {
+        return context;
+    }
+
+    @Override
+    public JsonLocation getCurrentLocation() {
+        return JsonLocation.NA;
+    }
+
+    @Override
+    public JsonLocation getTokenLocation() {
+        return JsonLocation.NA;
+    }
+
+    @Override
+    public String getText() {
+        if(_currToken == null)
+            return null;
+        switch (_currToken) {
+            case VALUE_STRING:
+                return text;
+            case FIELD_NAME:
+                return context.getCurrentName();
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return String.valueOf(number);
+            default:
+                return _currToken.asString();
+        }
+    }
+
+    @Override
+    public char[] getTextCharacters() {
+        String value = getText();
+        return value == null ? null : value.toCharArray();
+    }
+
+    @Override
+    public boolean hasTextCharacters() {
+        return false;
+    }
+
+    @Override
+    public int getTextLength() {
+        String value = getText();
+        return value == null ? 0 : value.length();
+    }
+
+    @Override
+    public int getTextOffset() {
+        return 0;
+    }
+
+    @Override
+    public byte[] getBinaryValue(Base64Variant variant) throws IOException {
+        if(_currToken != JsonToken.VALUE_STRING)
+            throw new JsonParseException(this, "Current token (" + _currToken + ") not a string");
+        return variant.decode(text);
+    }
+
+    @Override
+    public ObjectCodec getCodec() {
+        return codec;
+    }
+
+    @Override
+    public void setCodec(ObjectCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public Version version() {
+        return Version.unknownVersion();
+    }
+
+    @Override
+    public Number getNumberValue() throws IOException {
+        checkNumber();
+        return number;
+    }
+
+    @Override
+    public NumberType getNumberType() throws IOException {
+        checkNumber();
+        return numberType;
+    }
+
+    @Override
+    public int getIntValue() throws IOException {
+        return getNumberValue().intValue();
+    }
+
+    @Override
+    public long getLongValue() throws IOException {
+        return getNumberValue().longValue();
+    }
+
+    @Override
+    public BigInteger getBigIntegerValue() throws IOException {
+        Number value = getNumberValue();
+        if(value instanceof BigInteger)
+            return (BigInteger) value;
+        if(value instanceof BigDecimal)
+            return ((BigDecimal) value).toBigInteger();
+        if(value instanceof Double)
+            return BigDecimal.valueOf(value.doubleValue()).toBigInteger();
+        return BigInteger.valueOf(value.longValue());
+    }
+
+    @Override
+    public float getFloatValue() throws IOException {
+        return getNumberValue().floatValue();
+    }
+
+    @Override
+    public double getDoubleValue() throws IOException {
+        return getNumberValue().doubleValue();
+    }
+
+    @Override
+    public BigDecimal getDecimalValue() throws IOException {
+        Number value = getNumberValue();
+        if(value instanceof BigDecimal)
+            return (BigDecimal) value;
+        if(value instanceof BigInteger)
+            return new BigDecimal((BigInteger) value);
+        if(value instanceof Double)
+            return BigDecimal.valueOf(value.doubleValue());
+        return BigDecimal.valueOf(value.longValue());
+    }
+
+    @Override
+    public Object getEmbeddedObject() {
+        return null;
+    }
+
+    /**
+     * @return false if the stream ends before n bytes are buffered
+     */
+    private boolean fill(int n) throws IOException {
+        if(limit - position >= n)
+            return true;
+        System.arraycopy(buffer, position, buffer, 0, limit - position);
+        limit -= position;
+        position = 0;
+        while(limit < n) {
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if(read == -1)
+                return false;
+            limit += read;
+        }
+        return true;
+    }
+
+    private void require(int n) throws IOException {
+        if(!fill(n))
+            _reportInvalidEOF();
+    }
+
+    private int readByte() throws IOException {
+        require(1);
+        return buffer[position++] & 0xFF;
+    }
+
+    private int readInt() throws IOException {
+        require(4);
+        int v = ((buffer[position] & 0xFF) << 24) | ((buffer[position + 1] & 0xFF) << 16)
+                | ((buffer[position + 2] & 0xFF) << 8) | (buffer[position + 3] & 0xFF);
+        position += 4;
+        return v;
+    }
+
+    private long readLong() throws IOException {
+        return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+    }
+
+    private int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new JsonParseException(this, "Malformed varint");
+    }
+
+    private byte[] readBytes(int n) throws IOException {
+        byte[] bytes = new byte[n];
+        int copied = 0;
+        while(copied < n) {
+            require(1);
+            int chunk = Math.min(n - copied, limit - position);
+            System.arraycopy(buffer, position, bytes, copied, chunk);
+            position += chunk;
+            copied += chunk;
+        }
+        return bytes;
+    }
+
+    private String readUTF() throws IOException {
+        int n = readVarInt();
+        if(n <= buffer.length && fill(n)) {
+            String text = new String(buffer, position, n, StandardCharsets.UTF_8);
+            position += n;
+            return text;
+        }
+        return new String(readBytes(n), StandardCharsets.UTF_8);
+    }
+
+    private void checkNumber() throws IOException {
+        if(number == null)
+            throw new JsonParseException(this, "Current token (" + _currToken + ") not numeric");
+    }
+}
@@ -0,0 +1,60 @@
+package it.polito.ezshop.model;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compact binary layout of the snapshot files. A file is the magic "EZB1" followed by the tokens of the
+ * document, every token is a one byte tag followed by its payload:
+ * - every top level value and every element of a top level array is a record, prefixed by RECORD and its length in bytes
+ * - field names and strings up to MAX_DICTIONARY_LENGTH chars are dictionary encoded: the first occurrence is
+ *   written in full (NAME / STRING) and gets the next index of the dictionary of the file, later ones are
+ *   written as the index (NAME_REF / STRING_REF). Barcodes, descriptions and field names are stored once per file
+ * - strings holding an ISO date (getDateS) are written as DATE and the epoch day
+ * - numbers are fixed width: INT 4 bytes, LONG 8 bytes, DOUBLE 8 bytes
+ * - lengths and dictionary indexes are unsigned varints
+ */
+public class BinaryStorageCodec implements StorageCodec {
+
+    static final byte[] MAGIC = {'E', 'Z', 'B', '1'};
+    static final int MAX_DICTIONARY_LENGTH = 64;
+
+    static final int RECORD = 0x01;
+    static final int START_OBJECT = 0x02;
+    static final int END_OBJECT = 0x03;
+    static final int START_ARRAY = 0x04;
+    static final int END_ARRAY = 0x05;
+    static final int NAME = 0x06;
+    static final int NAME_REF = 0x07;
+    static final int STRING = 0x08;
+    static final int STRING_REF = 0x09;
+    static final int STRING_RAW = 0x0A;
+    static final int DATE = 0x0B;
+    static final int INT = 0x0C;
+    static final int LONG = 0x0D;
+    static final int DOUBLE = 0x0E;
+    static final int BIG_INTEGER = 0x0F;
+    static final int BIG_DECIMAL = 0x10;
+    static final int TRUE = 0x11;
+    static final int FALSE = 0x12;
+    static final int NULL = 0x13;
+
+    @Override
+    public JsonGenerator createGenerator(OutputStream out) throws IOException {
+        return new BinaryGenerator(JsonCodec.mapper, out);
+    }
+
+    @Override
+    public JsonParser createParser(InputStream in) throws IOException {
+        return new BinaryParser(JsonCodec.mapper, in);
+    }
+
+    @Override
+    public String toString() {
+        return "binary";
+    }
+}
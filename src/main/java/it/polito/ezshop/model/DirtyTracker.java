@@ -0,0 +1,66 @@
+package it.polito.ezshop.model;
+
+import java.util.*;
+
+/**
+ * Keeps track of the entities changed in memory since the last write, so that EzShopModel
+ * persists only the sections (and in journal mode only the entities) that are actually dirty.
+ * Sections are named like the journal sections of JsonWrite, balance maps are separate sections.
+ */
+public class DirtyTracker {
+
+    public static final String PRODUCT = "product";
+    public static final String USER = "user";
+    public static final String CUSTOMER = "customer";
+    public static final String ORDER = "order";
+    public static final String LOYALTY = "loyalty";
+    public static final String ORDER_TRANSACTION = "balance.order";
+    public static final String RETURN = "balance.return";
+    public static final String SALE = "balance.sale";
+    public static final String CREDIT = "balance.credit";
+
+    // K = section, V = keys of the dirty entities, null when the whole section must be written
+    private final Map<String, Set<String>> dirty = new HashMap<>();
+
+    /**
+     * Marks an entity as changed, added or removed
+     * @param section section the entity belongs to
+     * @param key key of the entity in the section (barCode, id, ...)
+     */
+    public void mark(String section, Object key){
+        if(dirty.containsKey(section) && dirty.get(section) == null)
+            return;
+        dirty.computeIfAbsent(section, (s) -> new LinkedHashSet<>()).add(String.valueOf(key));
+    }
+
+    /**
+     * Marks a whole section as changed, e.g. after a bulk update
+     */
+    public void markAll(String section){
+        dirty.put(section, null);
+    }
+
+    public boolean isDirty(String section){
+        return dirty.containsKey(section);
+    }
+
+    public boolean isBalanceDirty(){
+        return isDirty(ORDER_TRANSACTION) || isDirty(RETURN) || isDirty(SALE) || isDirty(CREDIT);
+    }
+
+    public boolean isEmpty(){
+        return dirty.isEmpty();
+    }
+
+    /**
+     * @return the keys of the dirty entities of the section, null if the whole section is dirty
+     */
+    public Set<String> keys(String section){
+        Set<String> keys = dirty.get(section);
+        return keys == null ? null : Collections.unmodifiableSet(keys);
+    }
+
+    public void clear(){
+        dirty.clear();
+    }
+}
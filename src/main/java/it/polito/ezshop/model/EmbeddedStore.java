@@ -0,0 +1,401 @@
+package it.polito.ezshop.model;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Embedded key-value store of the shop, a single append only file (persistent/store.db) shared by every
+ * section. Every commit is one frame [int MAGIC][int length][int crc32][records], the records are journal
+ * lines (see JsonJournal) whose map is the section. A frame is applied as a whole or not at all: a torn or
+ * corrupted frame at the end of the file is cut off when the store is opened, so the stock changes and the
+ * ledger operations committed together survive or disappear together.
+ * Only the position of the latest record of every key is kept in memory, the values are read from the file
+ * on demand. Indexes: the primary key of every section (barcode, user id, customer id, order id, card,
+ * transaction id), productId to product, balanceId to balance operation and operation date to balanceIds.
+ * compact() rewrites the file with the live records only, StoreWrite schedules it on the background
+ * compaction thread once the file is more than twice as large as them.
+ */
+public class EmbeddedStore {
+
+    // "EZS1"
+    static final int MAGIC = 0x455A5331;
+    static final int HEADER = 12;
+    static final long COMPACT_THRESHOLD = 1 << 20;
+    static final List<String> BALANCE_SECTIONS = Arrays.asList(DirtyTracker.ORDER_TRANSACTION, DirtyTracker.RETURN,
+            DirtyTracker.SALE, DirtyTracker.CREDIT);
+
+    // K = canonical path of the file, V = store open on it
+    private static final ConcurrentHashMap<String, EmbeddedStore> stores = new ConcurrentHashMap<>();
+
+    /**
+     * Position of the latest record of a key and the secondary keys it is indexed with
+     */
+    static class Row {
+        String section;
+        String key;
+        long offset;
+        int length;
+        Integer productId;
+        Integer balanceId;
+        LocalDate date;
+    }
+
+    File file;
+    private FileChannel channel;
+    // K = section, V = (K = key, V = latest record)
+    private final Map<String, Map<String, Row>> rows = new HashMap<>();
+    // K = productId, V = record of the product
+    private final Map<Integer, Row> productIds = new HashMap<>();
+    // K = balanceId, V = record of the operation, the balance maps are not keyed by balanceId
+    private final Map<Integer, Row> balanceIds = new HashMap<>();
+    // K = operation date, V = balanceIds of the operations of the day
+    private final TreeMap<LocalDate, Set<Integer>> dates = new TreeMap<>();
+    private long liveBytes;
+    // when true every commit is forced to disk before returning
+    boolean sync = true;
+
+    EmbeddedStore(String file){
+        this.file = new File(file);
+    }
+
+    /**
+     * @return the store of the folder, opened the first time
+     */
+    public static EmbeddedStore of(String folder){
+        File file = new File(folder, "store.db");
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException e) {
+            path = file.getAbsolutePath();
+        }
+        return stores.computeIfAbsent(path, EmbeddedStore::new);
+    }
+
+    /**
+     * A change to commit, value is the serialized entity, null to delete the key
+     */
+    public static class Change {
+        final String section;
+        final String key;
+        final String value;
+
+        public Change(String section, String key, String value){
+            this.section = section;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Writes the changes as a single transaction
+     * @return false if the transaction could not be written, nothing of it is then visible
+     */
+    public synchronized boolean commit(List<Change> changes){
+        if(changes.isEmpty())
+            return true;
+        if(!open())
+            return false;
+        StringBuilder records = new StringBuilder();
+        for (Change change : changes)
+            records.append(change.value == null ? JsonJournal.deleteRecord(change.section, change.key)
+                    : JsonJournal.putRecord(change.section, change.key, change.value)).append('\n');
+        byte[] payload = records.toString().getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER + payload.length);
+        frame.putInt(MAGIC).putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        frame.flip();
+        try {
+            long start = channel.size();
+            channel.position(start);
+            while(frame.hasRemaining())
+                channel.write(frame);
+            if(sync)
+                channel.force(false);
+            index(start + HEADER, payload);
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the serialized value of the key, null if there is none
+     */
+    public synchronized JsonNode get(String section, String key){
+        if(!open())
+            return null;
+        Row row = rows.getOrDefault(section, Collections.emptyMap()).get(key);
+        return row == null ? null : read(row);
+    }
+
+    /**
+     * @return the keys of the section, in no particular order
+     */
+    public synchronized Set<String> keys(String section){
+        if(!open())
+            return Collections.emptySet();
+        return new HashSet<>(rows.getOrDefault(section, Collections.emptyMap()).keySet());
+    }
+
+    /**
+     * @return K = key, V = serialized value of every entity of the section, read in file order
+     */
+    public synchronized Map<String, JsonNode> values(String section){
+        Map<String, JsonNode> values = new LinkedHashMap<>();
+        if(!open())
+            return values;
+        List<Map.Entry<String, Row>> entries = new ArrayList<>(rows.getOrDefault(section, Collections.emptyMap()).entrySet());
+        entries.sort(Comparator.comparingLong((entry) -> entry.getValue().offset));
+        for (Map.Entry<String, Row> entry : entries) {
+            JsonNode value = read(entry.getValue());
+            if(value != null)
+                values.put(entry.getKey(), value);
+        }
+        return values;
+    }
+
+    /**
+     * @return the barcode of the product with the id, null if there is none
+     */
+    public synchronized String barCodeOf(int productId){
+        Row row = open() ? productIds.get(productId) : null;
+        return row == null ? null : row.key;
+    }
+
+    /**
+     * @return K = balance section, V = serialized value of the operation with the id, null if there is none
+     */
+    public synchronized Map.Entry<String, JsonNode> operation(int balanceId){
+        Row row = open() ? balanceIds.get(balanceId) : null;
+        JsonNode value = row == null ? null : read(row);
+        return value == null ? null : new AbstractMap.SimpleImmutableEntry<>(row.section, value);
+    }
+
+    /**
+     * @param from first day, null for no lower bound
+     * @param to last day, null for no upper bound
+     * @return the balanceIds of the operations dated between from and to, by date
+     */
+    public synchronized List<Integer> operationsBetween(LocalDate from, LocalDate to){
+        List<Integer> ids = new ArrayList<>();
+        if(!open())
+            return ids;
+        NavigableMap<LocalDate, Set<Integer>> range = dates;
+        if(from != null && to != null && from.isAfter(to))
+            return ids;
+        if(from != null)
+            range = range.tailMap(from, true);
+        if(to != null)
+            range = range.headMap(to, true);
+        range.values().forEach(ids::addAll);
+        return ids;
+    }
+
+    /**
+     * Drops every record
+     */
+    public synchronized boolean clear(){
+        close();
+        clearIndexes();
+        return !file.exists() || file.delete();
+    }
+
+    /**
+     * Rewrites the file with the live records only, as a single frame. The new file replaces the old one
+     * with an atomic rename, a crash before it leaves the old file untouched.
+     */
+    public synchronized boolean compact(){
+        if(!open())
+            return false;
+        List<Change> live = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Row>> section : rows.entrySet())
+            for (Map.Entry<String, Row> row : section.getValue().entrySet()) {
+                JsonNode value = read(row.getValue());
+                if(value != null)
+                    live.add(new Change(section.getKey(), row.getKey(), value.toString()));
+            }
+        File compacted = new File(file.getPath() + ".tmp");
+        EmbeddedStore target = new EmbeddedStore(compacted.getPath());
+        if(compacted.exists() && !compacted.delete())
+            return false;
+        if(!target.commit(live)) {
+            target.clear();
+            return false;
+        }
+        target.close();
+        close();
+        try {
+            Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+            compacted.delete();
+        }
+        return open();
+    }
+
+    /**
+     * @return the size of the file in bytes
+     */
+    public synchronized long size(){
+        return file.length();
+    }
+
+    synchronized void close(){
+        if(channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        channel = null;
+    }
+
+    /**
+     * @return true if the file is large and more than half of it is superseded records
+     */
+    synchronized boolean shouldCompact(){
+        long size = file.length();
+        return size > COMPACT_THRESHOLD && size > 2 * liveBytes;
+    }
+
+    /**
+     * Opens the file and rebuilds the indexes the first time, cutting off a torn last frame
+     */
+    private boolean open(){
+        if(channel != null)
+            return true;
+        clearIndexes();
+        try {
+            File folder = file.getAbsoluteFile().getParentFile();
+            if(!folder.exists() && !folder.mkdirs())
+                return false;
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            long position = 0;
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            while(position + HEADER <= size) {
+                header.clear();
+                readFully(header, position);
+                header.flip();
+                int length = header.getInt(4);
+                if(header.getInt(0) != MAGIC || length < 0 || position + HEADER + length > size)
+                    break;
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(payload, position + HEADER);
+                CRC32 crc = new CRC32();
+                crc.update(payload.array(), 0, length);
+                if((int) crc.getValue() != header.getInt(8))
+                    break;
+                index(position + HEADER, payload.array());
+                position += HEADER + length;
+            }
+            if(position < size)
+                channel.truncate(position);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+            return false;
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if(read < 0)
+                throw new IOException("Unexpected end of " + file);
+        }
+    }
+
+    /**
+     * Indexes the records of a frame written at offset
+     */
+    private void index(long offset, byte[] payload) throws IOException {
+        int start = 0;
+        for (int end = 0; end < payload.length; end++) {
+            if(payload[end] != '\n')
+                continue;
+            JsonNode record = JsonCodec.mapper.readTree(new String(payload, start, end - start, StandardCharsets.UTF_8));
+            String section = record.path("map").asText();
+            String key = record.path("key").asText();
+            Map<String, Row> entries = rows.computeIfAbsent(section, (s) -> new HashMap<>());
+            unindex(entries.remove(key));
+            if(!JsonJournal.isDelete(record)) {
+                Row row = new Row();
+                row.section = section;
+                row.key = key;
+                row.offset = offset + start;
+                row.length = end - start;
+                JsonNode value = record.path("value");
+                if(section.equals(DirtyTracker.PRODUCT) && value.hasNonNull("id")) {
+                    row.productId = value.get("id").asInt();
+                    productIds.put(row.productId, row);
+                }
+                if(BALANCE_SECTIONS.contains(section) && value.hasNonNull("balanceId")) {
+                    row.balanceId = value.get("balanceId").asInt();
+                    balanceIds.put(row.balanceId, row);
+                    try {
+                        row.date = LocalDate.parse(value.path("dateS").asText());
+                        dates.computeIfAbsent(row.date, (d) -> new TreeSet<>()).add(row.balanceId);
+                    } catch (DateTimeParseException ignored) {
+                    }
+                }
+                entries.put(key, row);
+                liveBytes += row.length;
+            }
+            start = end + 1;
+        }
+    }
+
+    private void unindex(Row row){
+        if(row == null)
+            return;
+        liveBytes -= row.length;
+        if(row.productId != null)
+            productIds.remove(row.productId, row);
+        if(row.balanceId != null)
+            balanceIds.remove(row.balanceId, row);
+        if(row.date != null && dates.containsKey(row.date)) {
+            dates.get(row.date).remove(row.balanceId);
+            if(dates.get(row.date).isEmpty())
+                dates.remove(row.date);
+        }
+    }
+
+    private JsonNode read(Row row){
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(row.length);
+            readFully(buffer, row.offset);
+            return JsonCodec.mapper.readTree(new String(buffer.array(), 0, row.length, StandardCharsets.UTF_8)).get("value");
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void clearIndexes(){
+        rows.clear();
+        productIds.clear();
+        balanceIds.clear();
+        dates.clear();
+        liveBytes = 0;
+    }
+}
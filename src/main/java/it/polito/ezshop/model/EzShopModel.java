@@ -7,59 +7,232 @@ import it.polito.ezshop.data.*;
 
 import java.io.IOException;
 import java.time.LocalDate;
+import java.time.YearMonth;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class EzShopModel {
 
     final static String folder = "persistent";
     final static boolean persistent = true;
+    final static boolean journaled = true;
+    final static int loadParallelism = 6;
+    // when true the stock quantities are stored in place in quantity.bin instead of journaling the whole product,
+    // the embedded store has no quantity file
+    final static boolean mappedQuantities = true;
+    // months of balance operations kept in balance.json (current one included), older settled ones go to the ledger
+    final static int residentMonths = 3;
+    // when the writes are on disk, -Dezshop.durability=SYNC|GROUP_COMMIT|ON_DEMAND, SYNC by default
+    final AsyncJsonWrite.Durability durability = property("ezshop.durability", AsyncJsonWrite.Durability.SYNC);
+    // maximum delay of a write in GROUP_COMMIT mode, -Dezshop.groupCommitMillis
+    final long groupCommitMillis = Long.getLong("ezshop.groupCommitMillis", 20);
+    // format of the snapshot files written, -Dezshop.storageCodec=json|binary, json by default.
+    // Files of either format are read, StorageConverter converts an existing folder
+    final StorageCodec storageCodec = "binary".equalsIgnoreCase(System.getProperty("ezshop.storageCodec")) ? StorageCodec.BINARY : StorageCodec.JSON;
+    // when true the shop is kept in the embedded transactional store (store.db) instead of the json files,
+    // -Dezshop.embeddedStore=true
+    final boolean embeddedStore = Boolean.getBoolean("ezshop.embeddedStore");
     List<UserModel> UserList;
     Map<Integer, Integer> LoyaltyCardMap;
     Map<Integer, CustomerModel> CustomerMap;
     UserModel CurrentlyLoggedUser;
-    Map<String, ProductTypeModel> ProductMap;  //K = productCode (barCode), V = ProductType
+    ProductCatalog ProductMap;  //K = productCode (barCode), V = ProductType, indexed by productId too
     Map<Integer, OrderModel> ActiveOrderMap;         //K = OrderId, V = Order
     Map<Integer, SaleModel> activeSaleMap;
     Map<Integer, ReturnModel> activeReturnMap;
     BalanceModel balance;
     JsonWrite writer;
     JsonRead reader;
+    DirtyTracker dirty;
     int maxProductId = 1;
     int maxCardId = 1;
     int maxCustomerId = 1;
+    // K = persistent file, V = milliseconds spent loading it
+    final Map<String, Long> loadTimes = new ConcurrentHashMap<>();
+    // model owning the writer of the folder, closed when a new model is built on the same folder
+    private static EzShopModel open;
 
     public EzShopModel() {
         UserList = new ArrayList<>();
         CustomerMap = new HashMap<>();
         LoyaltyCardMap = new HashMap<>();
         CurrentlyLoggedUser = null;
-        ProductMap = new HashMap<>();
+        ProductMap = new ProductCatalog();
         ActiveOrderMap = new HashMap<>();
         activeSaleMap = new HashMap<>();
         activeReturnMap = new HashMap<>();
         balance = new BalanceModel();
+        dirty = new DirtyTracker();
         try {
-            writer = new JsonWrite(folder);
-            reader = new JsonRead(folder);
+            if(embeddedStore) {
+                writer = new StoreWrite(folder);
+                reader = new StoreRead(folder);
+            } else {
+                writer = new AsyncJsonWrite(folder, journaled, durability, groupCommitMillis, AsyncJsonWrite.DEFAULT_CAPACITY, storageCodec);
+                reader = new JsonRead(folder);
+            }
+            balance.archive = writer.ledger;
         } catch (IOException e) {
             e.printStackTrace();
         }
+        synchronized (EzShopModel.class) {
+            if(open != null)
+                open.close();
+            open = this;
+        }
+    }
+
+    /**
+     * @return the value of the system property, the fallback if it is not set or not a constant of the enum
+     */
+    static <E extends Enum<E>> E property(String name, E fallback){
+        String value = System.getProperty(name);
+        if(value == null)
+            return fallback;
+        try {
+            return Enum.valueOf(fallback.getDeclaringClass(), value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            return fallback;
+        }
+    }
+
+    public AsyncJsonWrite.Durability getDurability(){
+        return durability;
+    }
+
+    public StorageCodec getStorageCodec(){
+        return storageCodec;
+    }
+
+    public boolean isEmbeddedStore(){
+        return embeddedStore;
     }
 
+    /**
+     * Loads the persistent files in parallel, one fork-join task per file. The id high-water marks
+     * are derived while the entities are indexed, the time spent on each file is kept in loadTimes.
+     */
     public void loadEZShop(){
     if(persistent) {
-        UserList = reader.parseUsers();
-        CustomerMap = reader.parseCustomers().stream().collect(Collectors.toMap(CustomerModel::getId, (c) -> c));
-        ProductMap = reader.parseProductType().stream().collect(Collectors.toMap(ProductType::getBarCode, (cust) -> cust));
-        balance = reader.parseBalance();
-        ActiveOrderMap = reader.parseOrders().stream().collect(Collectors.toMap(OrderModel::getOrderId, (ord) -> ord));
-        LoyaltyCardMap = reader.parseLoyalty();
-        maxProductId = ProductMap.values().stream().map(ProductTypeModel::getId).max(Integer::compare).orElse(1);
-        maxCardId = LoyaltyCardMap.keySet().stream().max(Integer::compare).orElse(1);
-        maxCustomerId = CustomerMap.keySet().stream().max(Integer::compare).orElse(1);
-        BalanceOperationModel.currentMaxId = balance.getAllBalanceOperations().stream().mapToInt(BalanceOperation::getBalanceId).max().orElse(1) + 1;
-        UserModel.currentId = UserList.stream().mapToInt(UserModel::getId).max().orElse(1) + 1;
+        JsonCodec.warmUp();
+        loadTimes.clear();
+        ForkJoinPool pool = new ForkJoinPool(loadParallelism);
+        try {
+            List<ForkJoinTask<?>> tasks = Arrays.asList(
+                pool.submit(timed("user", () -> {
+                    UserList = reader.parseUsers();
+                    int maxUserId = 1;
+                    for (UserModel user : UserList)
+                        maxUserId = Math.max(maxUserId, user.getId());
+                    UserModel.currentId = maxUserId + 1;
+                })),
+                pool.submit(timed("customer", () -> {
+                    CustomerMap = new HashMap<>();
+                    maxCustomerId = 1;
+                    for (CustomerModel customer : reader.parseCustomers()) {
+                        CustomerMap.put(customer.getId(), customer);
+                        maxCustomerId = Math.max(maxCustomerId, customer.getId());
+                    }
+                })),
+                pool.submit(timed("product", () -> {
+                    ProductMap = new ProductCatalog();
+                    maxProductId = 1;
+                    for (ProductTypeModel product : reader.parseProductType()) {
+                        ProductMap.put(product.getBarCode(), product);
+                        maxProductId = Math.max(maxProductId, product.getId());
+                    }
+                    if(mappedQuantities && writer.quantities != null)
+                        writer.quantities.apply(ProductMap.values());
+                })),
+                pool.submit(timed("balance", () -> {
+                    balance = reader.parseBalance();
+                    writer.ledger.archive(balance, YearMonth.now().minusMonths(residentMonths - 1), dirty);
+                    int maxBalanceId = Math.max(1, writer.ledger.maxBalanceId());
+                    for (BalanceOperationModel operation : balance.balanceOperationList)
+                        maxBalanceId = Math.max(maxBalanceId, operation.getBalanceId());
+                    BalanceOperationModel.currentMaxId = maxBalanceId + 1;
+                })),
+                pool.submit(timed("order", () -> {
+                    ActiveOrderMap = new HashMap<>();
+                    for (OrderModel order : reader.parseOrders())
+                        ActiveOrderMap.put(order.getOrderId(), order);
+                })),
+                pool.submit(timed("loyalty", () -> {
+                    LoyaltyCardMap = reader.parseLoyalty();
+                    maxCardId = 1;
+                    for (Integer card : LoyaltyCardMap.keySet())
+                        maxCardId = Math.max(maxCardId, card);
+                })));
+            // join makes the fields set by the tasks visible to this thread
+            tasks.forEach(ForkJoinTask::join);
+        } finally {
+            pool.shutdown();
+        }
+        // drops the operations moved to the ledger from balance.json
+        persist();
+        if(journaled || embeddedStore)
+            writer.compact();
+        }
+    }
+
+    /**
+     * @return K = persistent file, V = milliseconds spent loading it by the last loadEZShop
+     */
+    public Map<String, Long> getLoadTimes() {
+        return new TreeMap<>(loadTimes);
+    }
+
+    private Runnable timed(String file, Runnable load){
+        return () -> {
+            long start = System.nanoTime();
+            load.run();
+            loadTimes.put(file, (System.nanoTime() - start) / 1000000);
+        };
+    }
+
+    /**
+     * Waits for the pending writes of the GROUP_COMMIT and ON_DEMAND durability modes to be on disk
+     * @return false if a write failed
+     */
+    public boolean flush(){
+        return writer.flush();
+    }
+
+    /**
+     * Writes the entities marked as dirty since the last call, nothing is written if none is dirty.
+     * If a write fails the entities stay dirty and are written again by the next call.
+     * @return false if a write failed
+     */
+    boolean persist(){
+        if(dirty.isEmpty())
+            return true;
+        boolean outcome = writer.write(ProductMap, UserList, CustomerMap, ActiveOrderMap, LoyaltyCardMap, balance, dirty);
+        if(outcome)
+            dirty.clear();
+        return outcome;
+    }
+
+    /**
+     * Persists the new stock quantity of a product: a single in place store in quantity.bin, committed after
+     * the journal records of the next write, or the product is marked dirty if the quantities are not mapped
+     */
+    void stockChanged(ProductTypeModel product){
+        if(!mappedQuantities || !writer.storeQuantity(product.getId(), product.getQuantity()))
+            dirty.mark(DirtyTracker.PRODUCT, product.getBarCode());
+    }
+
+    /**
+     * Commits the pending writes and releases the files held by the writer
+     */
+    public void close(){
+        if(writer != null)
+            writer.close();
+        synchronized (EzShopModel.class) {
+            if(open == this)
+                open = null;
         }
     }
 
@@ -73,6 +246,7 @@ public class EzShopModel {
         UserModel.currentId = 1;
         ReturnModel.currentId = 1;
         TicketModel.currentId = 1;
+        dirty.clear();
         return writer.reset();
     }
 
@@ -94,7 +268,8 @@ public class EzShopModel {
         if (ix == -1)
             return false;
         UserList.remove(ix);
-        writer.writeUsers(this.UserList);
+        dirty.mark(DirtyTracker.USER, id);
+        persist();
         return true;
     }
 
@@ -158,7 +333,8 @@ public class EzShopModel {
 
         UserModel newUser = new UserModel(username, password, role);
         this.UserList.add(newUser);
-        writer.writeUsers(UserList);
+        dirty.mark(DirtyTracker.USER, newUser.getId());
+        persist();
         return newUser;
 
     }
@@ -190,7 +366,8 @@ public class EzShopModel {
         OrderModel newOrder = new OrderModel(productCode, quantity, pricePerUnit);
         newOrder.setStatus("ISSUED");
         this.ActiveOrderMap.put(newOrder.getOrderId(), newOrder);
-        writer.writeOrders(ActiveOrderMap);
+        dirty.mark(DirtyTracker.ORDER, newOrder.getOrderId());
+        persist();
         return newOrder.getOrderId();
     }
 
@@ -223,10 +400,10 @@ public class EzShopModel {
             OrderTransactionModel orderTransactionModel = new OrderTransactionModel(newOrder);
             bal.addOrderTransaction(orderTransactionModel);
             this.ActiveOrderMap.put(newOrder.getOrderId(), newOrder);
-            if(!writer.writeOrders(ActiveOrderMap))
+            dirty.mark(DirtyTracker.ORDER, newOrder.getOrderId());
+            dirty.mark(DirtyTracker.ORDER_TRANSACTION, orderTransactionModel.getBalanceId());
+            if(!persist())
                 return -1;  //problem with db
-            if(!writer.writeBalance(bal))
-                return -1;
             return newOrder.getOrderId();
         }
         return -1;
@@ -264,9 +441,9 @@ public class EzShopModel {
                 ord.setStatus("PAYED");
                 orderTransactionModel = new OrderTransactionModel(ord);
                 bal.addOrderTransaction(orderTransactionModel);
-                if(!writer.writeOrders(ActiveOrderMap))
-                    return false;
-                return writer.writeBalance(bal);
+                dirty.mark(DirtyTracker.ORDER, orderId);
+                dirty.mark(DirtyTracker.ORDER_TRANSACTION, orderTransactionModel.getBalanceId());
+                return persist();
             }
             return false;
         }
@@ -306,8 +483,9 @@ public class EzShopModel {
             ord.setStatus("COMPLETED");
             quantity = ord.getQuantity();
             product.updateAvailableQuantity(quantity);
-            writer.writeProducts(ProductMap);
-            if(!writer.writeOrders(ActiveOrderMap)) return false;  //problem with db
+            stockChanged(product);
+            dirty.mark(DirtyTracker.ORDER, orderId);
+            if(!persist()) return false;  //problem with db
             result = true;
         }
         return result;
@@ -343,7 +521,8 @@ public class EzShopModel {
             String operationType = toBeAdded >= 0 ? "CREDIT" : "DEBIT";
             BalanceOperationModel balanceOP = new BalanceOperationModel(operationType, toBeAdded, LocalDate.now());
             this.balance.addBalanceOperation(balanceOP);
-            writer.writeBalance(this.balance);
+            dirty.mark(DirtyTracker.CREDIT, balanceOP.getBalanceId());
+            persist();
             return true;
         }
         return false;
@@ -361,6 +540,30 @@ public class EzShopModel {
         return this.balance.getCreditsAndDebits(from, to);
     }
 
+    /**
+     * @return a page of the operations on the balance whose date is <= to and >= from
+     */
+    public List<BalanceOperation> getCreditsAndDebits(LocalDate from, LocalDate to, int offset, int limit) throws UnauthorizedException {
+        this.checkAuthorization(Roles.Administrator, Roles.ShopManager);
+        return this.balance.getCreditsAndDebits(from, to, offset, limit);
+    }
+
+    /**
+     * @return the totals of the operations on the balance whose date is <= to and >= from, from the rollups
+     */
+    public Rollup getBalanceRollup(LocalDate from, LocalDate to) throws UnauthorizedException {
+        this.checkAuthorization(Roles.Administrator, Roles.ShopManager);
+        return this.balance.getRollup(from, to);
+    }
+
+    /**
+     * @return the totals of every month between from and to
+     */
+    public SortedMap<YearMonth, Rollup> getMonthlyRollups(YearMonth from, YearMonth to) throws UnauthorizedException {
+        this.checkAuthorization(Roles.Administrator, Roles.ShopManager);
+        return this.balance.getMonthlyRollups(from, to);
+    }
+
     /**
      * Made by Manuel
      *
@@ -395,7 +598,8 @@ public class EzShopModel {
 
         CustomerModel c = new CustomerModel(customerName, ++maxCustomerId);
         CustomerMap.put(c.getId(), c);
-        writer.writeCustomers(new ArrayList<>(CustomerMap.values()));
+        dirty.mark(DirtyTracker.CUSTOMER, c.getId());
+        persist();
         return c.getId();
     }
 
@@ -446,8 +650,8 @@ public class EzShopModel {
         if(newCustomerCard != null && newCustomerCard.equals("")){
             c.setCustomerCard(null);
         }
-        writer.writeLoyaltyCards(LoyaltyCardMap);
-        writer.writeCustomers(new ArrayList<>(CustomerMap.values()));
+        dirty.mark(DirtyTracker.CUSTOMER, id);
+        persist();
         return true;
     }
 
@@ -465,7 +669,8 @@ public class EzShopModel {
             return false;
 
         this.CustomerMap.remove(id);
-        writer.writeCustomers(new ArrayList<>(CustomerMap.values()));
+        dirty.mark(DirtyTracker.CUSTOMER, id);
+        persist();
         return true;
     }
 
@@ -489,8 +694,9 @@ public class EzShopModel {
     public String createCard() throws UnauthorizedException {
         this.checkAuthorization(Roles.Administrator, Roles.ShopManager, Roles.Cashier);
         LoyaltyCardMap.put(maxCardId, null);
+        dirty.mark(DirtyTracker.LOYALTY, maxCardId);
         maxCardId++;
-        writer.writeLoyaltyCards(this.LoyaltyCardMap);
+        persist();
         StringBuilder out = new StringBuilder();
         for(int i = 0; i < 10-(String.valueOf(maxCardId - 1)).length(); i++)
             out.append(0);
@@ -517,8 +723,9 @@ public class EzShopModel {
             return false;
         CustomerMap.get(userId).setCustomerCard(customerCard);
         LoyaltyCardMap.put(Integer.parseInt(customerCard), userId);
-        writer.writeCustomers(new ArrayList<>(CustomerMap.values()));
-        writer.writeLoyaltyCards(LoyaltyCardMap);
+        dirty.mark(DirtyTracker.CUSTOMER, userId);
+        dirty.mark(DirtyTracker.LOYALTY, Integer.parseInt(customerCard));
+        persist();
         return true;
     }
 
@@ -539,8 +746,8 @@ public class EzShopModel {
         if(CustomerMap.get(LoyaltyCardMap.get(Integer.parseInt(customerCard))).getLoyaltyCard().getPoints() + pointsToBeAdded < 0)
             return false;
         CustomerMap.get(LoyaltyCardMap.get(Integer.parseInt(customerCard))).getLoyaltyCard().updatePoints(pointsToBeAdded);
-        writer.writeCustomers((new ArrayList<>(CustomerMap.values())));
-        writer.writeLoyaltyCards(LoyaltyCardMap);
+        dirty.mark(DirtyTracker.CUSTOMER, LoyaltyCardMap.get(Integer.parseInt(customerCard)));
+        persist();
         return true;
     }
 
@@ -556,7 +763,9 @@ public class EzShopModel {
            checkAuthorization(Roles.Administrator, Roles.ShopManager);
            ProductTypeModel product = new ProductTypeModel(++maxProductId,description, productCode, pricePerUnit, Note);
            this.ProductMap.put(product.getBarCode(), product);
-           writer.writeProducts(ProductMap);
+           dirty.mark(DirtyTracker.PRODUCT, product.getBarCode());
+           stockChanged(product);
+           persist();
            return product;
     }
 
@@ -572,11 +781,27 @@ public class EzShopModel {
         return new ArrayList<>(ProductMap.values());
     }
 
+    /**
+     * @return the products whose description contains the text, see ProductCatalog.searchDescription for the ranking
+     */
+    public List<ProductTypeModel> getProductsByDescription(String description) throws UnauthorizedException {
+        checkAuthorization(Roles.Administrator, Roles.ShopManager);
+        return ProductMap.searchDescription(description);
+    }
+
+    /**
+     * @return a page of the ranked products whose description contains the text
+     */
+    public List<ProductTypeModel> getProductsByDescription(String description, int offset, int limit) throws UnauthorizedException {
+        checkAuthorization(Roles.Administrator, Roles.ShopManager);
+        return ProductMap.searchDescription(description, offset, limit);
+    }
+
     public ProductTypeModel getProductById(Integer id) throws UnauthorizedException, InvalidProductIdException {
         if(id == null || id <= 0)
             throw new InvalidProductIdException();
         checkAuthorization(Roles.Administrator, Roles.ShopManager, Roles.Cashier);
-        return ProductMap.values().stream().filter((prod)-> prod.getId().equals(id)).findAny().orElse(null);
+        return ProductMap.getById(id);
     }
 
     public boolean updateProduct(Integer id, String newDescription, String newCode, double newPrice, String newNote) throws UnauthorizedException, InvalidProductCodeException, InvalidProductIdException {
@@ -587,15 +812,28 @@ public class EzShopModel {
         if(product == null || (ProductMap.containsKey(newCode) && !newCode.equals(product.barCode)))
             return false;
         ProductMap.remove(product.getBarCode());
+        dirty.mark(DirtyTracker.PRODUCT, product.getBarCode());
         product.setProductDescription(newDescription);
         product.setBarCode(newCode);
         product.setPricePerUnit(newPrice);
         product.setNote(newNote);
         ProductMap.put(product.getBarCode(), product);
-        writer.writeProducts(ProductMap);
+        dirty.mark(DirtyTracker.PRODUCT, product.getBarCode());
+        persist();
         return true;
     }
 
+    public boolean updateQuantity(Integer productId, int toBeAdded) throws InvalidProductIdException, UnauthorizedException {
+        checkAuthorization(Roles.Administrator, Roles.ShopManager);
+        ProductTypeModel product = getProductById(productId);
+        if(product == null)
+            return false;
+        if(!product.updateAvailableQuantity(toBeAdded))
+            return false;
+        stockChanged(product);
+        return persist();
+    }
+
     public boolean updateProductPosition(Integer id, String newPos) throws UnauthorizedException, InvalidProductIdException, InvalidLocationException {
         checkAuthorization(Roles.Administrator, Roles.ShopManager);
         ProductTypeModel pdr = getProductById(id);
@@ -603,26 +841,43 @@ public class EzShopModel {
             throw new InvalidLocationException();
         if(pdr == null)
             return false;
-        if(newPos == null) {
-            pdr.setLocation(null);
-            return true;
-        }
-        if(ProductMap.values().stream().filter((prod)->prod.location!=null).anyMatch((prod)-> prod.location.equals(newPos)))
+        if(!ProductMap.relocate(pdr, newPos))
             return false;
-        pdr.setLocation(newPos);
-        writer.writeProducts(ProductMap);
+        dirty.mark(DirtyTracker.PRODUCT, pdr.getBarCode());
+        persist();
         return true;
     }
 
+    /**
+     * @return the products placed in the aisles from fromAisle to toAisle, in picking order
+     */
+    public List<ProductTypeModel> getProductsByAisle(int fromAisle, int toAisle) throws UnauthorizedException {
+        checkAuthorization(Roles.Administrator, Roles.ShopManager);
+        return ProductMap.getByAisle(fromAisle, toAisle);
+    }
+
+    /**
+     * @return the products placed in the racks from fromRack to toRack of the aisle, in picking order
+     */
+    public List<ProductTypeModel> getProductsByRack(int aisle, String fromRack, String toRack) throws UnauthorizedException {
+        checkAuthorization(Roles.Administrator, Roles.ShopManager);
+        if(fromRack == null || toRack == null)
+            return new ArrayList<>();
+        return ProductMap.getByRack(aisle, fromRack, toRack);
+    }
+
     public boolean deleteProduct(Integer id) throws InvalidProductIdException, UnauthorizedException {
         if(id <= 0)
             throw new InvalidProductIdException();
         checkAuthorization(Roles.Administrator, Roles.ShopManager);
-        ProductTypeModel product = ProductMap.values().stream().filter((prod)->prod.getId().equals(id)).findAny().orElse(null);
+        ProductTypeModel product = ProductMap.getById(id);
         if(product == null)
             return false;
         ProductMap.remove(product.getBarCode());
-        writer.writeProducts(ProductMap);
+        dirty.mark(DirtyTracker.PRODUCT, product.getBarCode());
+        if(mappedQuantities)
+            writer.removeQuantity(product.getId());
+        persist();
         return true;
     }
 
@@ -658,7 +913,8 @@ public class EzShopModel {
         }
         ticket.setStatus("PAYED");
         transaction.setTicketPayment(cashPayment);
-        if(!writer.writeBalance(bal)) return -1;  //problem with db
+        dirty.mark(DirtyTracker.SALE, transactionId);
+        if(!persist()) return -1;  //problem with db
         return change;
     }
 
@@ -685,7 +941,8 @@ public class EzShopModel {
         if(!outcome) return false;  //problem with payment (not enough money or card doesn't exist)
         ticket.setStatus("PAYED");
         saleTransaction.setTicketPayment(creditCardPayment);
-        return writer.writeBalance(bal); //false if problem with json
+        dirty.mark(DirtyTracker.SALE, transactionId);
+        return persist(); //false if problem with json
     }
 
     public double returnCashPayment(Integer returnId) throws InvalidTransactionIdException, UnauthorizedException{
@@ -697,8 +954,10 @@ public class EzShopModel {
         if(!(ret.getStatus().equals("closed"))) return -1; //returnTransaction not ended
         ret.setPayment(new CashPaymentModel(ret.getAmountToReturn(),true,ret.getAmountToReturn()));
         ret.setStatus("payed");
-        balance.getSaleTransactionMap().get(ret.getSaleId()).setBeforeMoney(0);
-        if(!writer.writeBalance(balance)) return -1; //problem with db
+        balance.getSaleTransactionById(ret.getSaleId()).setBeforeMoney(0);
+        dirty.mark(DirtyTracker.RETURN, returnId);
+        dirty.mark(DirtyTracker.SALE, ret.getSaleId());
+        if(!persist()) return -1; //problem with db
         return ret.getAmountToReturn();
     }
 
@@ -713,8 +972,10 @@ public class EzShopModel {
         CreditCardPaymentModel cardPayment = new CreditCardPaymentModel(ret.getAmountToReturn(), true);
         if(!cardPayment.sendPaymentRequestThroughAPI(creditCard)) return -1;
         ret.setPayment(cardPayment);
-        balance.getSaleTransactionMap().get(ret.getSaleId()).setBeforeMoney(0);
-        if(!writer.writeBalance(getBalance())) return -1; //problem with db
+        balance.getSaleTransactionById(ret.getSaleId()).setBeforeMoney(0);
+        dirty.mark(DirtyTracker.RETURN, returnId);
+        dirty.mark(DirtyTracker.SALE, ret.getSaleId());
+        if(!persist()) return -1; //problem with db
         ret.setStatus("payed");
         return ret.getPayment().getAmount();
     }
@@ -754,7 +1015,8 @@ public class EzShopModel {
         if(p == null || p.quantity - amount < 0)
             return false;
         p.quantity -= amount;
-        writer.writeProducts(ProductMap);
+        stockChanged(p);
+        persist();
         return activeSaleMap.get(saleId).addProduct(new TicketEntryModel(barCode, p.getProductDescription(), amount, p.getPricePerUnit()));
     }
 
@@ -769,7 +1031,8 @@ public class EzShopModel {
         if(ProductMap.get(barCode) == null)
             return false;
         ProductMap.get(barCode).quantity += amount;
-        writer.writeProducts(ProductMap);
+        stockChanged(ProductMap.get(barCode));
+        persist();
         return activeSaleMap.get(saleId).removeProduct(barCode, amount);
     }
 
@@ -818,7 +1081,8 @@ public class EzShopModel {
         activeSaleMap.get(saleId).balanceOperationId = sale.getBalanceId();
         getBalance().addSaleTransactionModel(saleId, sale);
         activeSaleMap.remove(activeSale.getId());
-        writer.writeBalance(balance);
+        dirty.mark(DirtyTracker.SALE, saleId);
+        persist();
         return true;
     }
 
@@ -829,21 +1093,25 @@ public class EzShopModel {
             return false;
         if(sale.getTicket().getStatus().equals("PAYED"))
             return false;
-        sale.getEntries().forEach((entry) -> ProductMap.get(entry.getBarCode()).updateAvailableQuantity(entry.getAmount()));
+        sale.getEntries().forEach((entry) -> {
+            ProductMap.get(entry.getBarCode()).updateAvailableQuantity(entry.getAmount());
+            stockChanged(ProductMap.get(entry.getBarCode()));
+        });
         if(sale.getTicket().getStatus().equals("CLOSED")) {
             balance.getSaleTransactionMap().remove(saleId);
-            writer.writeBalance(balance);
+            dirty.mark(DirtyTracker.SALE, saleId);
+            persist();
             return true;
         }
-        else
-            return false;
+        persist();
+        return false;
     }
 
     public Integer startReturnTransaction(Integer saleId) throws InvalidTransactionIdException {
         checkId(saleId);
-        if(!balance.getSaleTransactionMap().containsKey(saleId))
-            return -1;
         SaleTransactionModel sale = getBalance().getSaleTransactionById(saleId);
+        if(sale == null)
+            return -1;
         if(!sale.getTicket().getStatus().equals("PAYED"))
             return -1;
         ReturnModel retur = new ReturnModel(saleId, sale);
@@ -862,16 +1130,19 @@ public class EzShopModel {
         if(!ProductMap.containsKey(barCode))
             return false;
         List<TicketEntryModel> tick = activeReturnMap.get(returnId).getSale().getTicket().getTicketEntryModelList();
-        if(tick.stream().noneMatch((en)->en.getBarCode().equals(barCode)))
-            return false;
-        if(tick.stream().filter((en)->en.getBarCode().equals(barCode)).mapToInt(TicketEntryModel::getAmount).sum() < amount)
+        // single pass over the ticket collecting the lines of the barcode
+        List<TicketEntryModel> lines = new ArrayList<>();
+        int sold = 0;
+        for (TicketEntryModel entry : tick) {
+            if(entry.getBarCode().equals(barCode)) {
+                lines.add(entry);
+                sold += entry.getAmount();
+            }
+        }
+        if(lines.isEmpty() || sold < amount)
             return false;
         ReturnModel activeReturn = activeReturnMap.get(returnId);
-        tick.forEach((entry)-> {
-            if(entry.getBarCode().equals(barCode))
-                activeReturn.getProductList().add(new TicketEntryModel(ProductMap.get(barCode), amount, entry.getDiscountRate()));
-        });
-        writer.writeProducts(ProductMap);
+        lines.forEach((entry)-> activeReturn.getProductList().add(new TicketEntryModel(ProductMap.get(barCode), amount, entry.getDiscountRate())));
         return true;
     }
 
@@ -884,16 +1155,17 @@ public class EzShopModel {
             returnTransaction.commit(ProductMap);
             ReturnTransactionModel r = new ReturnTransactionModel(returnTransaction);
             balance.addReturnTransactionModel(returnId, r);
-            writer.writeBalance(balance);
+            returnTransaction.getProductList().forEach((entry) -> stockChanged(ProductMap.get(entry.getBarCode())));
+            dirty.mark(DirtyTracker.SALE, returnTransaction.getSaleId());
+            dirty.mark(DirtyTracker.RETURN, returnId);
             returnTransaction.getRfidMap().forEach((key, value) -> {
-                try {
-                    getProductByBarCode(value).getRFIDset().add(key);
-                } catch (InvalidProductCodeException e) {
-                    e.printStackTrace();
+                if(ProductMap.containsKey(value)) {
+                    ProductMap.addRfids(ProductMap.get(value), key, 1);
+                    dirty.mark(DirtyTracker.PRODUCT, value);
                 }
             });
+            persist();
         }
-        writer.writeProducts(ProductMap);
         activeReturnMap.remove(returnId);
         return true;
     }
@@ -905,9 +1177,10 @@ public class EzShopModel {
         if(balance.getReturnTransactionMap().get(returnId).getStatus().equals("payed"))
             return false;
         ReturnTransactionModel returnOperation = balance.getReturnTransactionMap().get(returnId);
-        SaleTransactionModel saleOperation = balance.getSaleTransactionMap().get(returnOperation.getSaleId());
+        SaleTransactionModel saleOperation = balance.getSaleTransactionById(returnOperation.getSaleId());
         for (TicketEntryModel entry : returnOperation.getReturnedProductList()) {
             ProductMap.get(entry.getBarCode()).updateAvailableQuantity(entry.getAmount());
+            stockChanged(ProductMap.get(entry.getBarCode()));
         }
         for (TicketEntryModel entry : returnOperation.getReturnedProductList()) {
             for (TicketEntryModel saleEntry : saleOperation.getTicket().getTicketEntryModelList()) {
@@ -919,10 +1192,11 @@ public class EzShopModel {
         }
         saleOperation.updateAmount();
         saleOperation.setBeforeMoney(0);
-        balance.getAllBalanceOperations().remove(balance.getReturnTransactionById(returnId));
+        balance.untrack(returnOperation);
         balance.getReturnTransactionMap().remove(returnId);
-        writer.writeBalance(balance);
-        writer.writeProducts(ProductMap);
+        dirty.mark(DirtyTracker.SALE, returnOperation.getSaleId());
+        dirty.mark(DirtyTracker.RETURN, returnId);
+        persist();
         return true;
     }
 
@@ -950,6 +1224,8 @@ public class EzShopModel {
         user.setRole(role);
         if(user.getRole() == null)
             throw new InvalidRoleException("Role not found");
+        dirty.mark(DirtyTracker.USER, id);
+        persist();
         return true;
     }
 
@@ -963,13 +1239,15 @@ public class EzShopModel {
         if(ord==null)
             return false;
         ProductTypeModel product = this.ProductMap.get(ord.getProductCode());
-        if(ProductMap.values().stream().anyMatch((pr)->!pr.valid_rfid_range(rfiDfrom, ord.getQuantity()))){
+        if(!ProductMap.isRfidFree(Long.parseLong(rfiDfrom), ord.getQuantity())){
             throw new InvalidRFIDException();
         }
         boolean outcome = recordOrderArrival(orderId);
         if(!outcome)
             return false;
-        product.add_rfids(rfiDfrom, ord.getQuantity());
+        ProductMap.addRfids(product, Long.parseLong(rfiDfrom), ord.getQuantity());
+        dirty.mark(DirtyTracker.PRODUCT, product.getBarCode());
+        persist();
         return true;
     }
 
@@ -979,21 +1257,67 @@ public class EzShopModel {
             throw new InvalidTransactionIdException();
         if(!ProductTypeModel.checkRFID(rfid))
             throw new InvalidRFIDException();
-        int rfid_i = Integer.parseInt(rfid);
-        Optional<ProductTypeModel> product = ProductMap.values().stream().filter((prod)->prod.getRFIDset().contains(rfid_i)).findAny();
-        if(!product.isPresent())
+        long rfid_l = Long.parseLong(rfid);
+        ProductTypeModel product = ProductMap.getByRfid(rfid_l);
+        if(product == null)
             return false;
         boolean outcome = false;
         try {
-            outcome = addProductToSale(transactionId, product.get().getBarCode(), 1);
+            outcome = addProductToSale(transactionId, product.getBarCode(), 1);
         } catch (InvalidProductCodeException ignored){}
         if(!outcome)
             return false;
-        activeSaleMap.get(transactionId).getRFIDset().put(rfid_i, product.get().getBarCode());
-        product.get().getRFIDset().remove(rfid_i);
+        activeSaleMap.get(transactionId).getRFIDset().put(rfid_l, product.getBarCode());
+        ProductMap.takeRfid(rfid_l);
+        dirty.mark(DirtyTracker.PRODUCT, product.getBarCode());
+        persist();
         return true;
     }
 
+    /**
+     * Adds a whole basket of RFIDs to a sale. The tags are resolved through the RFID index and grouped by product,
+     * every product gets a single stock decrement and ticket entry, the shop is persisted once.
+     * A tag is rejected if it is malformed, not in stock, already scanned in the basket (the first scan is kept),
+     * or if its product has no more stock.
+     * @return true for every tag added to the sale, one outcome per tag of the basket in the same order
+     */
+    public List<Boolean> addProductsToSaleRFID(Integer transactionId, Collection<String> rfids) throws InvalidTransactionIdException {
+        if(transactionId == null || transactionId <= 0)
+            throw new InvalidTransactionIdException();
+        List<Boolean> outcomes = new ArrayList<>(rfids.size());
+        SaleModel sale = activeSaleMap.get(transactionId);
+        // K = product, V = tags of the product found in the basket
+        Map<ProductTypeModel, List<Long>> basket = new LinkedHashMap<>();
+        // K = parsed tag, V = position of its first scan in the basket
+        Map<Long, Integer> scanned = new HashMap<>();
+        for (String rfid : rfids) {
+            int position = outcomes.size();
+            outcomes.add(false);
+            if(sale == null || !ProductTypeModel.checkRFID(rfid))
+                continue;
+            long rfid_l = Long.parseLong(rfid);
+            ProductTypeModel product = ProductMap.getByRfid(rfid_l);
+            if(product != null && !sale.getRFIDset().containsKey(rfid_l) && scanned.putIfAbsent(rfid_l, position) == null)
+                basket.computeIfAbsent(product, (p) -> new ArrayList<>()).add(rfid_l);
+        }
+        basket.forEach((product, tags) -> {
+            int amount = Math.min(tags.size(), product.quantity);
+            if(amount <= 0)
+                return;
+            product.quantity -= amount;
+            stockChanged(product);
+            sale.addProduct(new TicketEntryModel(product.getBarCode(), product.getProductDescription(), amount, product.getPricePerUnit()));
+            for (Long rfid : tags.subList(0, amount)) {
+                sale.getRFIDset().put(rfid, product.getBarCode());
+                ProductMap.takeRfid(rfid);
+                outcomes.set(scanned.get(rfid), true);
+            }
+            dirty.mark(DirtyTracker.PRODUCT, product.getBarCode());
+        });
+        persist();
+        return outcomes;
+    }
+
     public boolean deleteProductFromSaleRFID(Integer transactionId, String rfid) throws InvalidTransactionIdException, InvalidRFIDException, UnauthorizedException {
         checkAuthorization(Roles.ShopManager,Roles.Administrator, Roles.Cashier);
         if(transactionId == null || transactionId <= 0)
@@ -1002,7 +1326,8 @@ public class EzShopModel {
             throw new InvalidRFIDException();
         if(!activeSaleMap.containsKey(transactionId))
             return false;
-        String barcode = activeSaleMap.get(transactionId).getRFIDset().get(Integer.parseInt(rfid));
+        long rfid_l = Long.parseLong(rfid);
+        String barcode = activeSaleMap.get(transactionId).getRFIDset().get(rfid_l);
         if(barcode==null)
             return false;
         boolean outcome = true;
@@ -1011,13 +1336,12 @@ public class EzShopModel {
         }catch(InvalidProductCodeException | InvalidQuantityException ignored){}
         if(!outcome)
             return false;
-        String bar = activeSaleMap.get(transactionId).getRFIDset().get(Integer.parseInt(rfid));
-        try {
-            getProductByBarCode(bar).getRFIDset().add(Integer.parseInt(rfid));
-        } catch (InvalidProductCodeException e) {
-            e.printStackTrace();
-        }
-        activeSaleMap.get(transactionId).getRFIDset().remove(Integer.parseInt(rfid));
+        String bar = activeSaleMap.get(transactionId).getRFIDset().get(rfid_l);
+        if(ProductMap.containsKey(bar))
+            ProductMap.addRfids(ProductMap.get(bar), rfid_l, 1);
+        dirty.mark(DirtyTracker.PRODUCT, bar);
+        persist();
+        activeSaleMap.get(transactionId).getRFIDset().remove(rfid_l);
 
         return true;
     }
@@ -1030,16 +1354,17 @@ public class EzShopModel {
         if(!activeReturnMap.containsKey(returnId))
             return false;
         ReturnModel returnModel = activeReturnMap.get(returnId);
-        if(!returnModel.getSale().getRFIDmap().containsKey(Integer.parseInt(rfid)))
+        long rfid_l = Long.parseLong(rfid);
+        if(!returnModel.getSale().getRFIDmap().containsKey(rfid_l))
             return false;
-        String barcode = returnModel.getSale().getRFIDmap().get(Integer.parseInt(rfid));
+        String barcode = returnModel.getSale().getRFIDmap().get(rfid_l);
         boolean outcome=true;
         try {
             outcome = returnProduct(returnId, barcode, 1);
         } catch (InvalidProductCodeException | InvalidQuantityException ignored){}
         if(!outcome)
             return false;
-        returnModel.getRfidMap().put(Integer.parseInt(rfid), barcode);
+        returnModel.getRfidMap().put(rfid_l, barcode);
         return true;
     }
 }
\ No newline at end of file
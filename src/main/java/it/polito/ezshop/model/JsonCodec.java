@@ -0,0 +1,73 @@
+package it.polito.ezshop.model;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared Jackson configuration of the persistence layer. Jackson builds the (de)serializer of a class
+ * by introspection the first time it meets it and caches it inside the mapper, so a single mapper is
+ * shared by JsonRead, JsonWrite and JsonCompactor instead of creating a new one on every call.
+ * ObjectReader and ObjectWriter are immutable and thread safe, the ones of the snapshot files are
+ * built once here.
+ */
+public class JsonCodec {
+
+    static final ObjectMapper mapper = new ObjectMapper()
+            // PaymentModel is stored with the fields of its subclasses (e.g. cash)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    static final ObjectReader loyaltyReader = mapper.readerFor(new TypeReference<HashMap<Integer, Integer>>(){});
+    static final ObjectReader balanceReader = mapper.readerFor(BalanceModel.class);
+
+    static final ObjectWriter productWriter = mapper.writerFor(new TypeReference<List<ProductTypeModel>>(){});
+    static final ObjectWriter userWriter = mapper.writerFor(new TypeReference<List<UserModel>>(){});
+    static final ObjectWriter customerWriter = mapper.writerFor(new TypeReference<List<CustomerModel>>(){});
+    static final ObjectWriter orderWriter = mapper.writerFor(new TypeReference<List<OrderModel>>(){});
+    static final ObjectWriter loyaltyWriter = mapper.writerFor(new TypeReference<Map<Integer, Integer>>(){});
+    static final ObjectWriter balanceWriter = mapper.writerFor(BalanceModel.class);
+    // used for single entities (journal records), the serializer is looked up from the runtime class
+    static final ObjectWriter entityWriter = mapper.writer();
+
+    // K = entity class, V = reader binding a journal record to the class
+    private static final ConcurrentHashMap<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+    private static volatile boolean warm = false;
+
+    private JsonCodec(){}
+
+    static ObjectReader readerFor(Class<?> type){
+        return readers.computeIfAbsent(type, mapper::readerFor);
+    }
+
+    /**
+     * Builds the serializers and deserializers of every persisted class, so that the first
+     * read or write of the shop does not pay for the introspection. Called once at startup.
+     */
+    public static void warmUp(){
+        if(warm)
+            return;
+        for (Class<?> type : Arrays.asList(ProductTypeModel.class, UserModel.class, CustomerModel.class, LoyaltyCardModel.class,
+                OrderModel.class, BalanceModel.class, BalanceOperationModel.class, OrderTransactionModel.class,
+                SaleTransactionModel.class, ReturnTransactionModel.class, TicketModel.class, TicketEntryModel.class,
+                PaymentModel.class, CashPaymentModel.class, CreditCardPaymentModel.class)) {
+            mapper.canSerialize(type);
+            readerFor(type);
+            mapper.canDeserialize(mapper.constructType(type));
+        }
+        try {
+            loyaltyReader.readValue("{}");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        warm = true;
+    }
+}
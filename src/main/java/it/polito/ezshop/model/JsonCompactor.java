@@ -0,0 +1,273 @@
+package it.polito.ezshop.model;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Folds the journals of the persistent folder into fresh snapshots, so that the replay done by
+ * JsonRead at startup stays bounded. A compaction runs on a background thread and is triggered when
+ * a live journal grows past the threshold, it never blocks the thread that appends to the journal:
+ * 1. the live journal is sealed (renamed), new records go to a fresh live journal
+ * 2. snapshot + sealed journal are folded entity by entity while streaming a new generation of the snapshot,
+ *    which atomically replaces the old one (see SnapshotFile)
+ * 3. the sealed journal is dropped
+ * A crash at any step leaves a state that JsonRead replays correctly.
+ */
+public class JsonCompactor {
+
+    // size in bytes a live journal can reach before a compaction is scheduled
+    static final long DEFAULT_THRESHOLD = 1 << 20;
+    // K = journal map name, V = field of BalanceModel holding the map
+    static final Map<String, String> balanceMaps = new HashMap<>();
+    // K = folder path, V = lock of the folder, held in write mode while compacting or resetting it
+    private static final ConcurrentHashMap<String, ReentrantReadWriteLock> locks = new ConcurrentHashMap<>();
+    // a single thread for every folder, so that compactions never run concurrently
+    static final ExecutorService executor = Executors.newSingleThreadExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "ezshop-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        balanceMaps.put("order", "orderTransactionMap");
+        balanceMaps.put("return", "returnTransactionMap");
+        balanceMaps.put("sale", "saleTransactionMap");
+        balanceMaps.put("credit", "creditAndDebitsOperationMap");
+    }
+
+    final ReentrantReadWriteLock lock;
+    // format the snapshots are written in
+    final StorageCodec codec;
+    long threshold;
+    // K = journal, V = compaction of the snapshot the journal belongs to
+    private final Map<JsonJournal, Runnable> sections = new LinkedHashMap<>();
+    private final Set<JsonJournal> scheduled = ConcurrentHashMap.newKeySet();
+
+    public JsonCompactor(JsonWrite writer, String Folder){
+        this(writer, Folder, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param writer writer owning the journals to compact
+     * @param Folder persistent folder, compactions of the same folder never overlap
+     * @param threshold size in bytes of a live journal that triggers a compaction
+     */
+    public JsonCompactor(JsonWrite writer, String Folder, long threshold){
+        this.lock = lockFor(Folder);
+        this.codec = writer.codec;
+        this.threshold = threshold;
+        sections.put(writer.ProductJournal, () -> compactList(new File(writer.ProductTypeFile), writer.ProductJournal, "barCode"));
+        sections.put(writer.UserJournal, () -> compactList(new File(writer.UserFile), writer.UserJournal, "id"));
+        sections.put(writer.CustomerJournal, () -> compactList(new File(writer.CustomerFile), writer.CustomerJournal, "id"));
+        sections.put(writer.OrderJournal, () -> compactList(new File(writer.OrderFile), writer.OrderJournal, "orderId"));
+        sections.put(writer.LoyaltyJournal, () -> compactMap(new File(writer.LoyaltyFile), writer.LoyaltyJournal));
+        sections.put(writer.BalanceJournal, () -> compactBalance(new File(writer.BalanceFile), writer.BalanceJournal));
+    }
+
+    /**
+     * @return the lock of the folder: readers share it, compactions and resets hold it exclusively
+     */
+    static ReentrantReadWriteLock lockFor(String Folder){
+        return locks.computeIfAbsent(new File(Folder).getAbsolutePath(), (path) -> new ReentrantReadWriteLock());
+    }
+
+    /**
+     * Called after an append, schedules the compaction of the journal if it grew past the threshold
+     */
+    public void appended(JsonJournal journal){
+        if(journal.size() >= threshold)
+            schedule(journal);
+    }
+
+    /**
+     * Schedules the compaction of every journal of the folder
+     * @return a future completing once all the scheduled compactions are done
+     */
+    public Future<?> compactAll(){
+        sections.keySet().forEach(this::schedule);
+        // the executor runs one task at a time in submission order
+        return executor.submit(() -> {});
+    }
+
+    private void schedule(JsonJournal journal){
+        if(!scheduled.add(journal))
+            return;
+        executor.submit(() -> {
+            scheduled.remove(journal);
+            lock.writeLock().lock();
+            try {
+                sections.get(journal).run();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        });
+    }
+
+    private void compactList(File snapshot, JsonJournal journal, String keyField){
+        if(!journal.seal())
+            return;
+        Map<String, JsonNode> changes = changes(journal.readSealed(JsonCodec.mapper));
+        boolean written = writeSnapshot(snapshot, codec, (generator) -> {
+            generator.writeStartArray();
+            try (JsonParser parser = openSnapshot(snapshot)) {
+                if (parser != null && parser.nextToken() == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        // a single entity at a time is kept in memory
+                        JsonNode entity = parser.readValueAsTree();
+                        JsonNode record = changes.remove(entity.path(keyField).asText());
+                        if (record == null)
+                            generator.writeTree(entity);
+                        else if (!JsonJournal.isDelete(record))
+                            generator.writeTree(record.get("value"));
+                    }
+                }
+            }
+            for (JsonNode record : changes.values()) {
+                if (!JsonJournal.isDelete(record))
+                    generator.writeTree(record.get("value"));
+            }
+            generator.writeEndArray();
+        });
+        if(written)
+            journal.dropSealed();
+    }
+
+    private void compactMap(File snapshot, JsonJournal journal){
+        if(!journal.seal())
+            return;
+        Map<String, JsonNode> changes = changes(journal.readSealed(JsonCodec.mapper));
+        boolean written = writeSnapshot(snapshot, codec, (generator) -> {
+            try (JsonParser parser = openSnapshot(snapshot)) {
+                boolean stored = parser != null && parser.nextToken() == JsonToken.START_OBJECT;
+                fold(stored ? parser : null, generator, changes);
+            }
+        });
+        if(written)
+            journal.dropSealed();
+    }
+
+    private void compactBalance(File snapshot, JsonJournal journal){
+        if(!journal.seal())
+            return;
+        // K = field of BalanceModel, V = changes of the map
+        Map<String, Map<String, JsonNode>> changes = new HashMap<>();
+        for (String field : balanceMaps.values())
+            changes.put(field, new LinkedHashMap<>());
+        for (JsonNode record : journal.readSealed(JsonCodec.mapper)) {
+            String field = balanceMaps.get(record.path("map").asText());
+            if(field != null)
+                changes.get(field).put(record.get("key").asText(), record);
+        }
+        boolean written = writeSnapshot(snapshot, codec, (generator) -> {
+            generator.writeStartObject();
+            try (JsonParser parser = openSnapshot(snapshot)) {
+                if (parser != null && parser.nextToken() == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String field = parser.getCurrentName();
+                        JsonToken value = parser.nextToken();
+                        generator.writeFieldName(field);
+                        if (!changes.containsKey(field)) {
+                            generator.copyCurrentStructure(parser);
+                            continue;
+                        }
+                        if (value != JsonToken.START_OBJECT)
+                            parser.skipChildren();
+                        fold(value == JsonToken.START_OBJECT ? parser : null, generator, changes.remove(field));
+                    }
+                }
+            }
+            for (Map.Entry<String, Map<String, JsonNode>> map : changes.entrySet()) {
+                generator.writeFieldName(map.getKey());
+                fold(null, generator, map.getValue());
+            }
+            generator.writeEndObject();
+        });
+        if(written)
+            journal.dropSealed();
+    }
+
+    /**
+     * @return K = entity key, V = last record of the entity
+     */
+    private static Map<String, JsonNode> changes(List<JsonNode> records){
+        Map<String, JsonNode> changes = new LinkedHashMap<>();
+        for (JsonNode record : records)
+            changes.put(record.get("key").asText(), record);
+        return changes;
+    }
+
+    /**
+     * Copies a map of the snapshot entry by entry, applying the changes
+     * @param parser parser positioned on the start of the map, null if the snapshot has no map
+     */
+    private static void fold(JsonParser parser, JsonGenerator generator, Map<String, JsonNode> changes) throws IOException {
+        generator.writeStartObject();
+        if (parser != null) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String key = parser.getCurrentName();
+                parser.nextToken();
+                JsonNode record = changes.remove(key);
+                if (record == null) {
+                    generator.writeFieldName(key);
+                    generator.copyCurrentStructure(parser);
+                    continue;
+                }
+                parser.skipChildren();
+                if (!JsonJournal.isDelete(record)) {
+                    generator.writeFieldName(key);
+                    generator.writeTree(record.get("value"));
+                }
+            }
+        }
+        for (Map.Entry<String, JsonNode> change : changes.entrySet()) {
+            if (!JsonJournal.isDelete(change.getValue())) {
+                generator.writeFieldName(change.getKey());
+                generator.writeTree(change.getValue().get("value"));
+            }
+        }
+        generator.writeEndObject();
+    }
+
+    /**
+     * @return a parser on the newest valid generation of the snapshot, null if there is none. The generation is
+     * verified before it is folded, a compaction cannot start over on the previous one once it is being written
+     */
+    static JsonParser openSnapshot(File snapshot) throws IOException {
+        InputStream in;
+        try {
+            in = new SnapshotFile(snapshot.getPath()).openVerified();
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        return StorageCodec.open(in);
+    }
+
+    interface SnapshotContent {
+        void writeTo(JsonGenerator generator) throws IOException;
+    }
+
+    /**
+     * Streams the snapshot to a new generation of the file, see SnapshotFile
+     * @return true if the snapshot has been replaced
+     */
+    static boolean writeSnapshot(File snapshot, StorageCodec codec, SnapshotContent content){
+        return new SnapshotFile(snapshot.getPath()).write((out) -> {
+            try (JsonGenerator generator = codec.createGenerator(out)) {
+                content.writeTo(generator);
+            }
+        });
+    }
+}
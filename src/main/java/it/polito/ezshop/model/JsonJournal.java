@@ -0,0 +1,223 @@
+package it.polito.ezshop.model;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only journal kept next to a snapshot file (e.g. product.json -> product.journal).
+ * Every line is a self contained JSON record describing the put or the delete of a single entity,
+ * so a mutation costs the size of the changed entity instead of a rewrite of the whole file.
+ * The state of a file is its snapshot with all the journal records applied in order.
+ * While a compaction is running the older records are moved to a sealed journal
+ * (product.journal.sealed), which is replayed before the live one.
+ */
+public class JsonJournal {
+
+    static final String PUT = "put";
+    static final String DELETE = "del";
+    // K = journal path, V = lock shared by every JsonJournal instance on the same file
+    private static final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<>();
+
+    File file;
+    File sealed;
+    final Object lock;
+
+    /**
+     * @param snapshotFile path of the snapshot file this journal belongs to
+     */
+    public JsonJournal(String snapshotFile){
+        this.file = new File(snapshotFile.substring(0, snapshotFile.lastIndexOf('.')) + ".journal");
+        this.sealed = new File(file.getPath() + ".sealed");
+        this.lock = locks.computeIfAbsent(file.getAbsolutePath(), (path) -> new Object());
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public File getSealedFile() {
+        return sealed;
+    }
+
+    /**
+     * @return size in bytes of the live journal
+     */
+    public long size(){
+        return file.length();
+    }
+
+    /**
+     * @param map name of the map inside the snapshot the entity belongs to, null for flat files
+     * @param key key of the entity
+     * @param json serialized entity
+     * @return the journal line storing the entity
+     */
+    public static String putRecord(String map, String key, String json){
+        return header(PUT, map, key).append(",\"value\":").append(json).append('}').toString();
+    }
+
+    /**
+     * @param map name of the map inside the snapshot the entity belongs to, null for flat files
+     * @param key key of the removed entity
+     * @return the journal line removing the entity
+     */
+    public static String deleteRecord(String map, String key){
+        return header(DELETE, map, key).append('}').toString();
+    }
+
+    private static StringBuilder header(String op, String map, String key){
+        JsonStringEncoder encoder = JsonStringEncoder.getInstance();
+        StringBuilder record = new StringBuilder("{\"op\":\"").append(op).append('"');
+        if(map != null)
+            record.append(",\"map\":\"").append(encoder.quoteAsString(map)).append('"');
+        return record.append(",\"key\":\"").append(encoder.quoteAsString(key)).append('"');
+    }
+
+    public static boolean isDelete(JsonNode record){
+        return DELETE.equals(record.path("op").asText());
+    }
+
+    /**
+     * Appends the records to the journal with a single write and forces them to disk before returning.
+     * A torn last line left by a crash in the middle of an append is cut off first, otherwise the first
+     * record would be glued to it and lost on replay.
+     * @param records journal lines, as produced by putRecord and deleteRecord
+     * @return true if the records were written
+     */
+    public boolean append(List<String> records){
+        if(records.isEmpty())
+            return true;
+        StringBuilder lines = new StringBuilder();
+        for (String record : records)
+            lines.append(record).append('\n');
+        ByteBuffer content = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+        synchronized (lock) {
+            boolean created = !file.exists();
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long end = lastLineEnd(channel);
+                if(end < channel.size())
+                    channel.truncate(end);
+                while (content.hasRemaining())
+                    end += channel.write(content, end);
+                channel.force(false);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+            if(created)
+                SnapshotFile.syncFolder(file);
+            return true;
+        }
+    }
+
+    /**
+     * @return the position after the last newline of the file, 0 if there is none
+     */
+    private static long lastLineEnd(FileChannel channel) throws IOException {
+        long size = channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        // the common case, the file ends with a complete line
+        if(size == 0 || (channel.read(buffer, size - 1) == 1 && buffer.get(0) == '\n'))
+            return size;
+        buffer = ByteBuffer.allocate(4096);
+        long end = size;
+        while (end > 0) {
+            int length = (int) Math.min(buffer.capacity(), end);
+            buffer.clear();
+            buffer.limit(length);
+            while (buffer.hasRemaining())
+                if(channel.read(buffer, end - length + buffer.position()) < 0)
+                    throw new EOFException();
+            for (int i = length - 1; i >= 0; i--)
+                if(buffer.get(i) == '\n')
+                    return end - length + i + 1;
+            end -= length;
+        }
+        return 0;
+    }
+
+    /**
+     * Reads the journal records in the order they were written.
+     * A torn line (crash in the middle of an append) is skipped.
+     * @param mapper mapper used to parse the records
+     * @return the list of records, empty if there is no journal
+     */
+    public List<JsonNode> read(ObjectMapper mapper){
+        List<JsonNode> records = new ArrayList<>();
+        synchronized (lock) {
+            readFrom(sealed, mapper, records);
+            readFrom(file, mapper, records);
+        }
+        return records;
+    }
+
+    /**
+     * @return the records of the sealed journal only, the ones a running compaction folds into the snapshot
+     */
+    public List<JsonNode> readSealed(ObjectMapper mapper){
+        List<JsonNode> records = new ArrayList<>();
+        synchronized (lock) {
+            readFrom(sealed, mapper, records);
+        }
+        return records;
+    }
+
+    private static void readFrom(File file, ObjectMapper mapper, List<JsonNode> records){
+        if(!file.exists())
+            return;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if(line.isEmpty())
+                    continue;
+                try {
+                    JsonNode record = mapper.readTree(line);
+                    if(record != null && record.has("key"))
+                        records.add(record);
+                } catch (JsonProcessingException ignored) {
+                }
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Moves the live journal aside so that it can be folded into the snapshot while new records
+     * keep being appended to a fresh live journal. A sealed journal left by an interrupted
+     * compaction is kept and folded again, which is safe since replaying it is idempotent.
+     * @return true if there is a sealed journal to fold
+     */
+    public boolean seal(){
+        synchronized (lock) {
+            if(sealed.exists())
+                return true;
+            return file.exists() && file.length() > 0 && file.renameTo(sealed);
+        }
+    }
+
+    /**
+     * Drops the sealed journal once its records are part of the snapshot
+     */
+    public boolean dropSealed(){
+        synchronized (lock) {
+            return !sealed.exists() || sealed.delete();
+        }
+    }
+
+    public boolean clear(){
+        synchronized (lock) {
+            return (!file.exists() || file.delete()) && (!sealed.exists() || sealed.delete());
+        }
+    }
+}
@@ -1,14 +1,18 @@
 package it.polito.ezshop.model;
 
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class JsonRead {
 
@@ -18,6 +22,14 @@ public class JsonRead {
     File CustomerFile;
     File OrderFile;
     File LoyaltyFile;
+    JsonJournal ProductJournal;
+    JsonJournal BalanceJournal;
+    JsonJournal UserJournal;
+    JsonJournal CustomerJournal;
+    JsonJournal OrderJournal;
+    JsonJournal LoyaltyJournal;
+    // held while reading snapshot and journal, so that a compaction cannot swap them in between
+    ReentrantReadWriteLock lock;
 
     public JsonRead(String Folder){
         this.ProductFile = new File(Folder+"/product.json");
@@ -26,73 +38,193 @@ public class JsonRead {
         this.CustomerFile = new File(Folder+"/customer.json");
         this.OrderFile = new File(Folder+"/order.json");
         this.LoyaltyFile = new File(Folder+"/loyalty.json");
+        this.ProductJournal = new JsonJournal(ProductFile.getPath());
+        this.BalanceJournal = new JsonJournal(BalanceFile.getPath());
+        this.UserJournal = new JsonJournal(UserFile.getPath());
+        this.CustomerJournal = new JsonJournal(CustomerFile.getPath());
+        this.OrderJournal = new JsonJournal(OrderFile.getPath());
+        this.LoyaltyJournal = new JsonJournal(LoyaltyFile.getPath());
+        this.lock = JsonCompactor.lockFor(Folder);
     }
 
     public BalanceModel parseBalance(){
-        ObjectMapper objectMapper = new ObjectMapper();
+        lock.readLock().lock();
         try {
-            BalanceModel bal = objectMapper.readValue(this.BalanceFile, BalanceModel.class);
-            bal.balanceOperationList.addAll(bal.getSaleTransactionMap().values());
-            bal.balanceOperationList.addAll(bal.getOrderTransactionMap().values());
-            bal.balanceOperationList.addAll(bal.getReturnTransactionMap().values());
-            bal.balanceOperationList.addAll(bal.getCreditAndDebitsOperationMap().values());
+            ObjectMapper objectMapper = JsonCodec.mapper;
+            BalanceModel bal = readValue(BalanceFile, JsonCodec.balanceReader, BalanceModel::new);
+            for (JsonNode record : BalanceJournal.read(objectMapper)) {
+                switch (record.path("map").asText()) {
+                    case "order":
+                        replay(bal.getOrderTransactionMap(), record, OrderTransactionModel.class);
+                        break;
+                    case "return":
+                        replay(bal.getReturnTransactionMap(), record, ReturnTransactionModel.class);
+                        break;
+                    case "sale":
+                        replay(bal.getSaleTransactionMap(), record, SaleTransactionModel.class);
+                        break;
+                    case "credit":
+                        replay(bal.getCreditAndDebitsOperationMap(), record, BalanceOperationModel.class);
+                        break;
+                }
+            }
+            bal.getSaleTransactionMap().values().forEach(bal::track);
+            bal.getOrderTransactionMap().values().forEach(bal::track);
+            bal.getReturnTransactionMap().values().forEach(bal::track);
+            bal.getCreditAndDebitsOperationMap().values().forEach(bal::track);
             return bal;
-        } catch (IOException e) {
-            return new BalanceModel();
+        } finally {
+            lock.readLock().unlock();
         }
-
     }
 
     public List<ProductTypeModel> parseProductType() {
-        ObjectMapper objectMapper = new ObjectMapper();
+        lock.readLock().lock();
         try {
-            return objectMapper.<ArrayList<ProductTypeModel>>readValue(this.ProductFile, new TypeReference<List<ProductTypeModel>>(){});
-        } catch (IOException e) {
-            return new ArrayList<>();
+            ObjectMapper objectMapper = JsonCodec.mapper;
+            List<ProductTypeModel> products = readList(this.ProductFile, ProductTypeModel.class);
+            return replay(objectMapper, ProductJournal, products, ProductTypeModel::getBarCode, ProductTypeModel.class);
+        } finally {
+            lock.readLock().unlock();
         }
     }
 
     public List<UserModel> parseUsers(){
-
-        ObjectMapper objectMapper = new ObjectMapper();
+        lock.readLock().lock();
         try {
-            return objectMapper.readValue(this.UserFile, new TypeReference<List<UserModel>>(){});
-        } catch (IOException e) {
-            return new ArrayList<>();
+            ObjectMapper objectMapper = JsonCodec.mapper;
+            List<UserModel> users = readList(this.UserFile, UserModel.class);
+            return replay(objectMapper, UserJournal, users, (user) -> String.valueOf(user.getId()), UserModel.class);
+        } finally {
+            lock.readLock().unlock();
         }
     }
 
     public List<CustomerModel> parseCustomers(){
-
-        ObjectMapper objectMapper = new ObjectMapper();
+        lock.readLock().lock();
         try {
-            return objectMapper.readValue(this.CustomerFile, new TypeReference<List<CustomerModel>>(){});
-        } catch (IOException e) {
-            return new ArrayList<>();
+            ObjectMapper objectMapper = JsonCodec.mapper;
+            List<CustomerModel> customers = readList(this.CustomerFile, CustomerModel.class);
+            return replay(objectMapper, CustomerJournal, customers, (customer) -> String.valueOf(customer.getId()), CustomerModel.class);
+        } finally {
+            lock.readLock().unlock();
         }
     }
 
     public List<OrderModel> parseOrders(){
-
-        ObjectMapper objectMapper = new ObjectMapper();
+        lock.readLock().lock();
         try {
-            return objectMapper.readValue(this.OrderFile, new TypeReference<List<OrderModel>>(){});
-        } catch (IOException e) {
-            return new ArrayList<>();
+            ObjectMapper objectMapper = JsonCodec.mapper;
+            List<OrderModel> orders = readList(this.OrderFile, OrderModel.class);
+            return replay(objectMapper, OrderJournal, orders, (order) -> String.valueOf(order.getOrderId()), OrderModel.class);
+        } finally {
+            lock.readLock().unlock();
         }
-
     }
 
     public Map<Integer, Integer> parseLoyalty(){
-        ObjectMapper objectMapper = new ObjectMapper();
+        lock.readLock().lock();
         try {
-            return objectMapper.readValue(this.LoyaltyFile, new TypeReference<HashMap<Integer, Integer>>(){});
-        } catch (IOException e) {
-            return new HashMap<>();
+            ObjectMapper objectMapper = JsonCodec.mapper;
+            Map<Integer, Integer> cards = readValue(LoyaltyFile, JsonCodec.loyaltyReader, HashMap::new);
+            for (JsonNode record : LoyaltyJournal.read(objectMapper)) {
+                Integer card = Integer.valueOf(record.get("key").asText());
+                if (JsonJournal.isDelete(record))
+                    cards.remove(card);
+                else
+                    cards.put(card, record.get("value").isNull() ? null : record.get("value").asInt());
+            }
+            return cards;
+        } finally {
+            lock.readLock().unlock();
         }
     }
 
+    /**
+     * Binds the elements of a snapshot array one at a time, the document is never loaded as a whole.
+     * If the newest valid generation cannot be parsed the previous one is read.
+     * @return the entities, empty if the file is empty or no generation of it can be parsed
+     */
+    static <T> List<T> readList(File file, Class<T> type){
+        ObjectReader reader = JsonCodec.readerFor(type);
+        SnapshotFile snapshot = new SnapshotFile(file.getPath());
+        for (int skip = 0; ; skip++) {
+            List<T> entities = new ArrayList<>();
+            try (JsonParser parser = StorageCodec.open(snapshot.open(skip))) {
+                if (parser.nextToken() != JsonToken.START_ARRAY)
+                    return entities;
+                JsonToken token;
+                while ((token = parser.nextToken()) != null && token != JsonToken.END_ARRAY)
+                    entities.add(reader.readValue(parser));
+                return entities;
+            } catch (FileNotFoundException e) {
+                // no (further) generation to read
+                return entities;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Binds the single value of a snapshot. If the newest valid generation cannot be parsed the previous one is read.
+     * @param empty supplier of the value of an empty file
+     * @return the value, the empty one if the file is empty or no generation of it can be parsed
+     */
+    static <T> T readValue(File file, ObjectReader reader, Supplier<T> empty){
+        SnapshotFile snapshot = new SnapshotFile(file.getPath());
+        for (int skip = 0; ; skip++) {
+            try (JsonParser parser = StorageCodec.open(snapshot.open(skip))) {
+                if (parser.nextToken() == null)
+                    return empty.get();
+                T value = reader.readValue(parser);
+                return value == null ? empty.get() : value;
+            } catch (FileNotFoundException e) {
+                // no (further) generation to read
+                return empty.get();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
+    /**
+     * Applies the journal of a flat file on top of its snapshot, keeping the snapshot order
+     * @param key function returning the key the entities are journaled with
+     * @return the current list of entities
+     */
+    private <T> List<T> replay(ObjectMapper mapper, JsonJournal journal, List<T> snapshot, Function<T, String> key, Class<T> type){
+        List<JsonNode> records = journal.read(mapper);
+        if(records.isEmpty())
+            return snapshot;
+        LinkedHashMap<String, T> entities = new LinkedHashMap<>();
+        snapshot.forEach((entity) -> entities.put(key.apply(entity), entity));
+        for (JsonNode record : records) {
+            String k = record.get("key").asText();
+            if (JsonJournal.isDelete(record))
+                entities.remove(k);
+            else {
+                try {
+                    entities.put(k, JsonCodec.readerFor(type).readValue(record.get("value")));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return new ArrayList<>(entities.values());
+    }
 
+    private <T> void replay(Map<Integer, T> map, JsonNode record, Class<T> type){
+        Integer k = Integer.valueOf(record.get("key").asText());
+        if (JsonJournal.isDelete(record)) {
+            map.remove(k);
+            return;
+        }
+        try {
+            map.put(k, JsonCodec.readerFor(type).readValue(record.get("value")));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
 }
@@ -0,0 +1,29 @@
+package it.polito.ezshop.model;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The original format of the persistent folder, plain json written by the shared mapper
+ */
+public class JsonStorageCodec implements StorageCodec {
+
+    @Override
+    public JsonGenerator createGenerator(OutputStream out) throws IOException {
+        return JsonCodec.mapper.getFactory().createGenerator(out);
+    }
+
+    @Override
+    public JsonParser createParser(InputStream in) throws IOException {
+        return JsonCodec.mapper.getFactory().createParser(in);
+    }
+
+    @Override
+    public String toString() {
+        return "json";
+    }
+}
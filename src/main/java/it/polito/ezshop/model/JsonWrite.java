@@ -1,34 +1,61 @@
 package it.polito.ezshop.model;
 
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectWriter;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class JsonWrite {
 
-
-    BufferedWriter ProductWriter;
-    BufferedWriter BalanceWriter;
-    BufferedWriter UserWriter;
-    BufferedWriter CustomerWriter;
-    BufferedWriter OrderWriter;
-    BufferedWriter LoyaltyWriter;
     String ProductTypeFile;
     String BalanceFile;
     String UserFile;
     String CustomerFile;
     String OrderFile;
     String LoyaltyFile;
+    JsonJournal ProductJournal;
+    JsonJournal BalanceJournal;
+    JsonJournal UserJournal;
+    JsonJournal CustomerJournal;
+    JsonJournal OrderJournal;
+    JsonJournal LoyaltyJournal;
+    JsonRead reader;
+    JsonCompactor compactor;
+    // partitions of the older balance operations, in the ledger subfolder
+    LedgerArchive ledger;
+    // format of the snapshot files written, files of any format are read
+    StorageCodec codec;
+    // stock quantities of the products, updated in place
+    QuantityFile quantities;
+    // when true every write appends only the changed entities to the journal instead of rewriting the snapshot
+    boolean journaled;
+    // K = journal section (file or balance map), V = (K = entity key, V = last persisted json)
+    Map<String, Map<String, String>> journalState = new HashMap<>();
+    // set when a write failed after the journal state was updated, the state is then reloaded from disk
+    volatile boolean stale;
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
     public JsonWrite(String Folder) throws IOException {
+        this(Folder, false);
+    }
+
+    public JsonWrite(String Folder, boolean journaled) throws IOException {
+        this(Folder, journaled, StorageCodec.JSON);
+    }
+
+    /**
+     * @param journaled when true the changes are appended to the journals
+     * @param codec format of the snapshot files
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public JsonWrite(String Folder, boolean journaled, StorageCodec codec) throws IOException {
+        this.journaled = journaled;
+        this.codec = codec;
         this.ProductTypeFile = Folder+"/product.json";
         this.BalanceFile = Folder+"/balance.json";
         this.UserFile = Folder+"/user.json";
@@ -46,107 +73,386 @@ public class JsonWrite {
             new File(CustomerFile).createNewFile();
         if(!new File(OrderFile).createNewFile())
             new File(OrderFile).createNewFile();
+
+        this.ProductJournal = new JsonJournal(ProductTypeFile);
+        this.BalanceJournal = new JsonJournal(BalanceFile);
+        this.UserJournal = new JsonJournal(UserFile);
+        this.CustomerJournal = new JsonJournal(CustomerFile);
+        this.OrderJournal = new JsonJournal(OrderFile);
+        this.LoyaltyJournal = new JsonJournal(LoyaltyFile);
+        this.reader = new JsonRead(Folder);
+        this.compactor = new JsonCompactor(this, Folder);
+        this.ledger = new LedgerArchive(Folder + "/ledger", codec);
+        this.quantities = new QuantityFile(Folder + "/quantity.bin");
     }
 
     public JsonWrite(){}
 
     public boolean reset(){
+        compactor.lock.writeLock().lock();
         try {
-            new BufferedWriter(new FileWriter(UserFile)).close();
-            new BufferedWriter(new FileWriter(ProductTypeFile)).close();
-            new BufferedWriter(new FileWriter(BalanceFile)).close();
-            new BufferedWriter(new FileWriter(CustomerFile)).close();
-            new BufferedWriter(new FileWriter(OrderFile)).close();
-            new BufferedWriter(new FileWriter(LoyaltyFile)).close();
-            return true;
-        } catch (IOException e) {
-            return false;
+            return truncate();
+        } finally {
+            compactor.lock.writeLock().unlock();
         }
     }
 
+    private boolean truncate(){
+        journalState.clear();
+        return new SnapshotFile(UserFile).clear() && new SnapshotFile(ProductTypeFile).clear()
+                && new SnapshotFile(BalanceFile).clear() && new SnapshotFile(CustomerFile).clear()
+                && new SnapshotFile(OrderFile).clear() && new SnapshotFile(LoyaltyFile).clear()
+                && ProductJournal.clear() && BalanceJournal.clear() && UserJournal.clear()
+                && CustomerJournal.clear() && OrderJournal.clear() && LoyaltyJournal.clear()
+                && ledger.clear() && quantities.clear();
+    }
+
     public boolean writeProducts(Map<String, ProductTypeModel> ProductMap){ return writeProducts(new ArrayList<>(ProductMap.values())); }
     public boolean writeOrders(Map<Integer, OrderModel> OrderMap){ return writeOrders(new ArrayList<>(OrderMap.values())); }
     public boolean writeUsers(Map<String, UserModel> UserMap){ return writeUsers(new ArrayList<>(UserMap.values())); }
     public boolean writeCustomers(Map<String, CustomerModel> CustomerMap){ return writeCustomers(new ArrayList<>(CustomerMap.values())); }
 
+    /**
+     * The writes taking a DirtyTracker skip the section if it is not dirty. In journal mode only the
+     * dirty entities are serialized and appended, otherwise the whole section is rewritten.
+     * @return true if the dirty entities were written
+     */
+    public boolean writeProducts(Map<String, ProductTypeModel> ProductMap, DirtyTracker dirty){
+        if(!dirty.isDirty(DirtyTracker.PRODUCT))
+            return true;
+        if(!journaled || dirty.keys(DirtyTracker.PRODUCT) == null)
+            return writeProducts(ProductMap);
+        return journal(JsonCodec.entityWriter, ProductJournal, DirtyTracker.PRODUCT, dirty, ProductMap, (key) -> key);
+    }
+
+    public boolean writeUsers(List<UserModel> UserList, DirtyTracker dirty){
+        if(!dirty.isDirty(DirtyTracker.USER))
+            return true;
+        if(!journaled || dirty.keys(DirtyTracker.USER) == null)
+            return writeUsers(UserList);
+        return journal(JsonCodec.entityWriter, UserJournal, DirtyTracker.USER, dirty, keyed(UserList, UserModel::getId), (key) -> key);
+    }
+
+    public boolean writeCustomers(Map<Integer, CustomerModel> CustomerMap, DirtyTracker dirty){
+        if(!dirty.isDirty(DirtyTracker.CUSTOMER))
+            return true;
+        if(!journaled || dirty.keys(DirtyTracker.CUSTOMER) == null)
+            return writeCustomers(new ArrayList<>(CustomerMap.values()));
+        return journal(JsonCodec.entityWriter, CustomerJournal, DirtyTracker.CUSTOMER, dirty, CustomerMap, Integer::valueOf);
+    }
+
+    public boolean writeOrders(Map<Integer, OrderModel> OrderMap, DirtyTracker dirty){
+        if(!dirty.isDirty(DirtyTracker.ORDER))
+            return true;
+        if(!journaled || dirty.keys(DirtyTracker.ORDER) == null)
+            return writeOrders(OrderMap);
+        return journal(JsonCodec.entityWriter, OrderJournal, DirtyTracker.ORDER, dirty, OrderMap, Integer::valueOf);
+    }
+
+    public boolean writeLoyaltyCards(Map<Integer, Integer> cardList, DirtyTracker dirty){
+        if(!dirty.isDirty(DirtyTracker.LOYALTY))
+            return true;
+        if(!journaled || dirty.keys(DirtyTracker.LOYALTY) == null)
+            return writeLoyaltyCards(cardList);
+        return journal(JsonCodec.entityWriter, LoyaltyJournal, DirtyTracker.LOYALTY, dirty, cardList, Integer::valueOf);
+    }
+
+    public boolean writeBalance(BalanceModel balance, DirtyTracker dirty){
+        if(!dirty.isBalanceDirty())
+            return true;
+        if(!journaled || (dirty.isDirty(DirtyTracker.ORDER_TRANSACTION) && dirty.keys(DirtyTracker.ORDER_TRANSACTION) == null)
+                || (dirty.isDirty(DirtyTracker.RETURN) && dirty.keys(DirtyTracker.RETURN) == null)
+                || (dirty.isDirty(DirtyTracker.SALE) && dirty.keys(DirtyTracker.SALE) == null)
+                || (dirty.isDirty(DirtyTracker.CREDIT) && dirty.keys(DirtyTracker.CREDIT) == null))
+            return writeBalance(balance);
+        reloadIfStale();
+        ObjectWriter entityWriter = JsonCodec.entityWriter;
+        List<String> records = new ArrayList<>();
+        boolean ok = diff(entityWriter, DirtyTracker.ORDER_TRANSACTION, "order", dirty, balance.getOrderTransactionMap(), Integer::valueOf, records)
+                && diff(entityWriter, DirtyTracker.RETURN, "return", dirty, balance.getReturnTransactionMap(), Integer::valueOf, records)
+                && diff(entityWriter, DirtyTracker.SALE, "sale", dirty, balance.getSaleTransactionMap(), Integer::valueOf, records)
+                && diff(entityWriter, DirtyTracker.CREDIT, "credit", dirty, balance.getCreditAndDebitsOperationMap(), Integer::valueOf, records);
+        if(ok && append(BalanceJournal, records))
+            return true;
+        journalState.keySet().removeIf((section) -> section.startsWith("balance."));
+        return false;
+    }
+
+    /**
+     * Writes the dirty entities of every section
+     * @return true if every section was written
+     */
+    public boolean write(Map<String, ProductTypeModel> ProductMap, List<UserModel> UserList, Map<Integer, CustomerModel> CustomerMap,
+                         Map<Integer, OrderModel> OrderMap, Map<Integer, Integer> cardList, BalanceModel balance, DirtyTracker dirty){
+        boolean outcome = writeProducts(ProductMap, dirty);
+        outcome &= writeUsers(UserList, dirty);
+        outcome &= writeCustomers(CustomerMap, dirty);
+        outcome &= writeOrders(OrderMap, dirty);
+        outcome &= writeLoyaltyCards(cardList, dirty);
+        outcome &= writeBalance(balance, dirty);
+        return outcome;
+    }
+
     public boolean writeProducts(List<ProductTypeModel> ProductList){
-        ObjectMapper mapper = new ObjectMapper();
-        try {
-            ProductWriter = new BufferedWriter(new FileWriter(ProductTypeFile));
-            ProductWriter.write(mapper.writeValueAsString(ProductList));
-            ProductWriter.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
-        }
-        return true;
+        ObjectWriter entityWriter = JsonCodec.entityWriter;
+        if(journaled)
+            return journal(entityWriter, ProductJournal, "product", null, keyed(ProductList, ProductTypeModel::getBarCode),
+                    () -> keyed(reader.parseProductType(), ProductTypeModel::getBarCode));
+        return replace(ProductTypeFile, ProductJournal, JsonCodec.productWriter, ProductList);
     }
 
 
     public boolean writeUsers(List<UserModel> UserList){
 
-        ObjectMapper mapper = new ObjectMapper();
-        try {
-            UserWriter = new BufferedWriter(new FileWriter(UserFile));
-            UserWriter.write(mapper.writeValueAsString(UserList));
-            UserWriter.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
-        }
-        return true;
+        ObjectWriter entityWriter = JsonCodec.entityWriter;
+        if(journaled)
+            return journal(entityWriter, UserJournal, "user", null, keyed(UserList, UserModel::getId),
+                    () -> keyed(reader.parseUsers(), UserModel::getId));
+        return replace(UserFile, UserJournal, JsonCodec.userWriter, UserList);
     }
 
     public boolean writeCustomers(List<CustomerModel> CustomerList){
-        ObjectMapper mapper = new ObjectMapper();
-        try {
-            CustomerWriter = new BufferedWriter(new FileWriter(CustomerFile));
-            CustomerWriter.write(mapper.writeValueAsString(CustomerList));
-            CustomerWriter.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
-        }
-        return true;
+        ObjectWriter entityWriter = JsonCodec.entityWriter;
+        if(journaled)
+            return journal(entityWriter, CustomerJournal, "customer", null, keyed(CustomerList, CustomerModel::getId),
+                    () -> keyed(reader.parseCustomers(), CustomerModel::getId));
+        return replace(CustomerFile, CustomerJournal, JsonCodec.customerWriter, CustomerList);
     }
 
     public boolean writeBalance(BalanceModel balance){
-        ObjectMapper mapper = new ObjectMapper();
-        try {
-            BalanceWriter = new BufferedWriter(new FileWriter(BalanceFile));
-            BalanceWriter.write(mapper.writeValueAsString(balance));
-            BalanceWriter.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+        ObjectWriter entityWriter = JsonCodec.entityWriter;
+        if(journaled)
+            return journalBalance(entityWriter, balance);
+        return replace(BalanceFile, BalanceJournal, JsonCodec.balanceWriter, balance);
+    }
+
+    public boolean writeOrders(List<OrderModel> OrderList){
+        ObjectWriter entityWriter = JsonCodec.entityWriter;
+        if(journaled)
+            return journal(entityWriter, OrderJournal, "order", null, keyed(OrderList, OrderModel::getOrderId),
+                    () -> keyed(reader.parseOrders(), OrderModel::getOrderId));
+        return replace(OrderFile, OrderJournal, JsonCodec.orderWriter, OrderList);
+    }
+
+    public boolean writeLoyaltyCards(Map<Integer, Integer> cardList){
+        ObjectWriter entityWriter = JsonCodec.entityWriter;
+        if(journaled)
+            return journal(entityWriter, LoyaltyJournal, "loyalty", null, keyed(cardList),
+                    () -> keyed(reader.parseLoyalty()));
+        return replace(LoyaltyFile, LoyaltyJournal, JsonCodec.loyaltyWriter, cardList);
+    }
+
+    /**
+     * Writes are synchronous, there is never anything pending
+     * @return true if every write is on disk
+     */
+    public boolean flush(){
+        return true;
+    }
+
+    /**
+     * Stores the stock quantity of a product in quantity.bin
+     * @return false if the quantity was not stored, the product must then be written with the catalog
+     */
+    public boolean storeQuantity(int productId, int quantity){
+        return quantities != null && quantities.store(productId, quantity);
+    }
+
+    /**
+     * Frees the quantity.bin slot of a deleted product
+     */
+    public boolean removeQuantity(int productId){
+        return quantities != null && quantities.remove(productId);
+    }
+
+    /**
+     * Releases quantity.bin, the writer can still be used afterwards
+     */
+    public void close(){
+        if(quantities != null)
+            quantities.close();
+    }
+
+    /**
+     * Replaces the content of a snapshot file, the journal of the file is dropped since the snapshot supersedes it.
+     * The value is streamed to the file, it is never materialized as a String. See SnapshotFile for the crash safety.
+     * @param writer writer of the snapshot type
+     * @return true if the file was written
+     */
+    boolean replace(String file, JsonJournal journal, ObjectWriter writer, Object value){
+        if(!new SnapshotFile(file).write((out) -> serialize(out, writer, value)))
             return false;
+        return journal.clear();
+    }
+
+    /**
+     * Writes the value with the codec of the writer
+     */
+    void serialize(OutputStream out, ObjectWriter writer, Object value) throws IOException {
+        try (JsonGenerator generator = codec.createGenerator(out)) {
+            writer.writeValue(generator, value);
         }
+    }
+
+    /**
+     * Replaces the content of a snapshot file with an already serialized value
+     * @return true if the file was written
+     */
+    boolean replace(String file, JsonJournal journal, byte[] content){
+        if(!new SnapshotFile(file).write((out) -> out.write(content)))
+            return false;
+        return journal.clear();
+    }
+
+    /**
+     * Appends the records to the journal and schedules its compaction if it grew too much
+     * @return true if the records were written
+     */
+    boolean append(JsonJournal journal, List<String> records){
+        if(!journal.append(records))
+            return false;
+        compactor.appended(journal);
         return true;
     }
 
-    public boolean writeOrders(List<OrderModel> OrderList){
-        ObjectMapper mapper = new ObjectMapper();
+    private void reloadIfStale(){
+        if(stale) {
+            stale = false;
+            journalState.clear();
+        }
+    }
+
+    /**
+     * Folds the journals into the snapshots on the background compaction thread
+     * @return a future completing once the compactions are done
+     */
+    public Future<?> compact(){
+        return compactor.compactAll();
+    }
+
+    /**
+     * Appends to the journal only the entities that changed since the last write of the section
+     * @param map name of the balance map, null for flat files
+     * @param current current entities by key
+     * @param persisted loads the persisted entities, used the first time a section is written
+     * @return true if the journal was written
+     */
+    private <T> boolean journal(ObjectWriter entityWriter, JsonJournal journal, String section, String map,
+                                Map<String, T> current, Supplier<Map<String, T>> persisted){
+        reloadIfStale();
+        List<String> records = new ArrayList<>();
+        if(!diff(entityWriter, section, map, current, persisted, records))
+            return false;
+        if(append(journal, records))
+            return true;
+        journalState.remove(section);
+        return false;
+    }
+
+    /**
+     * Appends to the journal the dirty entities of the section
+     * @param current current entities
+     * @param key converts a journal key to the key of current
+     * @return true if the journal was written
+     */
+    private <K, T> boolean journal(ObjectWriter entityWriter, JsonJournal journal, String section, DirtyTracker dirty,
+                                   Map<K, T> current, Function<String, K> key){
+        reloadIfStale();
+        List<String> records = new ArrayList<>();
+        if(!diff(entityWriter, section, null, dirty, current, key, records))
+            return false;
+        if(append(journal, records))
+            return true;
+        journalState.remove(section);
+        return false;
+    }
+
+    private <K, T> boolean diff(ObjectWriter entityWriter, String section, String map, DirtyTracker dirty,
+                                Map<K, T> current, Function<String, K> key, List<String> records){
+        if(!dirty.isDirty(section))
+            return true;
+        // the state is only kept up to date here, it is loaded from disk by the next full diff if needed
+        Map<String, String> state = journalState.get(section);
         try {
-            OrderWriter = new BufferedWriter(new FileWriter(OrderFile));
-            OrderWriter.write(mapper.writeValueAsString(OrderList));
-            OrderWriter.close();
-        } catch (IOException e) {
+            for (String k : dirty.keys(section)) {
+                K currentKey = key.apply(k);
+                if (current.containsKey(currentKey)) {
+                    String json = entityWriter.writeValueAsString(current.get(currentKey));
+                    if (state == null || !json.equals(state.put(k, json)))
+                        records.add(JsonJournal.putRecord(map, k, json));
+                } else {
+                    if (state == null || state.remove(k) != null)
+                        records.add(JsonJournal.deleteRecord(map, k));
+                }
+            }
+        } catch (JsonProcessingException e) {
             e.printStackTrace();
+            journalState.remove(section);
             return false;
         }
         return true;
     }
 
-    public boolean writeLoyaltyCards(Map<Integer, Integer> cardList){
-        ObjectMapper mapper = new ObjectMapper();
+    private boolean journalBalance(ObjectWriter entityWriter, BalanceModel balance){
+        reloadIfStale();
+        List<String> records = new ArrayList<>();
+        BalanceModel[] persisted = new BalanceModel[1];
+        Supplier<BalanceModel> stored = () -> persisted[0] != null ? persisted[0] : (persisted[0] = reader.parseBalance());
+        boolean ok = diff(entityWriter, "balance.order", "order", keyed(balance.getOrderTransactionMap()),
+                        () -> keyed(stored.get().getOrderTransactionMap()), records)
+                && diff(entityWriter, "balance.return", "return", keyed(balance.getReturnTransactionMap()),
+                        () -> keyed(stored.get().getReturnTransactionMap()), records)
+                && diff(entityWriter, "balance.sale", "sale", keyed(balance.getSaleTransactionMap()),
+                        () -> keyed(stored.get().getSaleTransactionMap()), records)
+                && diff(entityWriter, "balance.credit", "credit", keyed(balance.getCreditAndDebitsOperationMap()),
+                        () -> keyed(stored.get().getCreditAndDebitsOperationMap()), records);
+        if(ok && append(BalanceJournal, records))
+            return true;
+        journalState.keySet().removeIf((section) -> section.startsWith("balance."));
+        return false;
+    }
+
+    private <T> boolean diff(ObjectWriter entityWriter, String section, String map, Map<String, T> current,
+                             Supplier<Map<String, T>> persisted, List<String> records){
         try {
-            LoyaltyWriter = new BufferedWriter(new FileWriter(LoyaltyFile));
-            LoyaltyWriter.write(mapper.writeValueAsString(cardList));
-            LoyaltyWriter.close();
-        } catch (IOException e) {
+            Map<String, String> state = journalState.get(section);
+            if (state == null) {
+                state = new HashMap<>();
+                for (Map.Entry<String, T> entry : persisted.get().entrySet())
+                    state.put(entry.getKey(), entityWriter.writeValueAsString(entry.getValue()));
+                journalState.put(section, state);
+            }
+            for (Map.Entry<String, T> entry : current.entrySet()) {
+                String json = entityWriter.writeValueAsString(entry.getValue());
+                if (!json.equals(state.put(entry.getKey(), json)))
+                    records.add(JsonJournal.putRecord(map, entry.getKey(), json));
+            }
+            Iterator<String> keys = state.keySet().iterator();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (!current.containsKey(key)) {
+                    keys.remove();
+                    records.add(JsonJournal.deleteRecord(map, key));
+                }
+            }
+        } catch (JsonProcessingException e) {
+            e.printStackTrace();
+            journalState.remove(section);
             return false;
         }
         return true;
     }
 
+    static <T, K> Map<String, T> keyed(Collection<T> entities, Function<T, K> key){
+        Map<String, T> map = new LinkedHashMap<>();
+        entities.forEach((entity) -> map.put(String.valueOf(key.apply(entity)), entity));
+        return map;
+    }
+
+    static <K, T> Map<String, T> keyed(Map<K, T> entities){
+        Map<String, T> map = new LinkedHashMap<>();
+        entities.forEach((key, entity) -> map.put(String.valueOf(key), entity));
+        return map;
+    }
 
 }
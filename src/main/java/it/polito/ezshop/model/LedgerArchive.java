@@ -0,0 +1,494 @@
+package it.polito.ezshop.model;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.*;
+
+/**
+ * Date partitioned archive of the balance operations (persistent/ledger). The settled operations of the
+ * months before the resident window are moved out of balance.json into one partition per month
+ * (ledger/2021-05.json, same format as balance.json). ledger/index.json keeps for every partition the ids
+ * it holds and the money it adds to the balance, so computeBalance and the lookup of an id never read a
+ * partition. A partition is read only when one of its operations is requested and it is held through a
+ * SoftReference, so the gc drops it again under memory pressure.
+ * An operation requested through BalanceModel is restored there, the resident copy wins over the archived
+ * one and the duplicate is dropped from its partition by the next archive().
+ */
+public class LedgerArchive {
+
+    // names of the maps of BalanceModel, the same used by the balance journal
+    static final String SALE = "sale";
+    static final String ORDER = "order";
+    static final String RETURN = "return";
+    static final String CREDIT = "credit";
+    static final List<String> MAPS = Arrays.asList(SALE, ORDER, RETURN, CREDIT);
+
+    private static final ObjectReader indexReader = JsonCodec.mapper.readerFor(new TypeReference<List<Partition>>(){});
+    private static final ObjectWriter indexWriter = JsonCodec.mapper.writerFor(new TypeReference<List<Partition>>(){});
+
+    /**
+     * Entry of index.json
+     */
+    public static class Partition {
+        public String month;
+        // sum of getRealMoney of the operations that are not returns, as in BalanceModel.computeBalance
+        public double total;
+        public int maxBalanceId;
+        // K = map, V = ids of the map stored in the partition
+        public Map<String, TreeSet<Integer>> ids = new HashMap<>();
+        // balanceIds of the operations stored in the partition, null in the index of older versions
+        public TreeSet<Integer> balanceIds;
+        // totals of the operations of the month, null in the index of older versions
+        public Rollup rollup;
+        // K = day (ISO format), V = totals of the operations of the day
+        public TreeMap<String, Rollup> days;
+    }
+
+    File folder;
+    SnapshotFile index;
+    // format the partitions and the index are written in
+    StorageCodec codec;
+    // K = month, V = summary of the partition, null until the index is read
+    private TreeMap<YearMonth, Partition> partitions;
+    // K = map, V = (K = id, V = month of the partition holding it)
+    private final Map<String, Map<Integer, YearMonth>> location = new HashMap<>();
+    // K = balanceId, V = month of the partition holding the operation
+    private final Map<Integer, YearMonth> balanceLocation = new HashMap<>();
+    // K = map, V = (K = id, V = month) of the operations restored in BalanceModel since the index was read
+    private final Map<String, Map<Integer, YearMonth>> restored = new HashMap<>();
+    // K = month, V = partition read from disk
+    private final Map<YearMonth, SoftReference<BalanceModel>> loaded = new HashMap<>();
+
+    public LedgerArchive(String folder){
+        this(folder, StorageCodec.JSON);
+    }
+
+    public LedgerArchive(String folder, StorageCodec codec){
+        this.folder = new File(folder);
+        this.codec = codec;
+        this.index = new SnapshotFile(folder + "/index.json");
+    }
+
+    /**
+     * Moves the settled operations dated before the given month from the balance to their partitions and
+     * attaches the archive to the balance. Resident operations that are also archived (restored ones)
+     * are dropped from the partitions. The partitions and the index are on disk before the operations
+     * leave the balance, a crash in between leaves duplicates that the next call drops.
+     * @param before first month that stays resident
+     * @param dirty tracker marked with the operations that left the balance
+     * @return false if a partition could not be read or written, the balance is then left as it is and
+     * an unreadable partition is not touched
+     */
+    public synchronized boolean archive(BalanceModel balance, YearMonth before, DirtyTracker dirty){
+        open();
+        balance.archive = this;
+        // K = month, V = operations to move to the partition
+        Map<YearMonth, BalanceModel> incoming = new TreeMap<>();
+        // K = month, V = (K = map, V = ids) resident operations to drop from the partition
+        Map<YearMonth, Map<String, Set<Integer>>> duplicates = new TreeMap<>();
+        for (String map : MAPS) {
+            for (Map.Entry<Integer, BalanceOperationModel> entry : map(balance, map).entrySet()) {
+                BalanceOperationModel operation = entry.getValue();
+                if (operation.getDate() != null && YearMonth.from(operation.getDate()).isBefore(before) && isSettled(operation)) {
+                    map(incoming.computeIfAbsent(YearMonth.from(operation.getDate()), (m) -> new BalanceModel()), map)
+                            .put(entry.getKey(), operation);
+                }
+                else {
+                    YearMonth month = location.get(map).containsKey(entry.getKey())
+                            ? location.get(map).get(entry.getKey()) : restored.get(map).get(entry.getKey());
+                    if (month != null)
+                        duplicates.computeIfAbsent(month, (m) -> new HashMap<>())
+                                .computeIfAbsent(map, (m) -> new HashSet<>()).add(entry.getKey());
+                }
+            }
+        }
+        Set<YearMonth> touched = new TreeSet<>(incoming.keySet());
+        touched.addAll(duplicates.keySet());
+        // K = month, V = current content of the partition, every one is read before any is written
+        Map<YearMonth, BalanceModel> contents = new TreeMap<>();
+        for (YearMonth month : touched) {
+            BalanceModel partition = read(month);
+            if (partition == null)
+                return false;
+            contents.put(month, partition);
+        }
+        for (YearMonth month : touched) {
+            BalanceModel partition = contents.get(month);
+            for (String map : MAPS) {
+                Map<Integer, BalanceOperationModel> operations = map(partition, map);
+                duplicates.getOrDefault(month, Collections.emptyMap()).getOrDefault(map, Collections.emptySet())
+                        .forEach(operations::remove);
+                if (incoming.containsKey(month))
+                    operations.putAll(map(incoming.get(month), map));
+            }
+            if (!write(month, partition))
+                return false;
+        }
+        if (!touched.isEmpty() && !index.write((out) -> serialize(out, indexWriter, new ArrayList<>(partitions.values()))))
+            return false;
+        for (BalanceModel moved : incoming.values()) {
+            for (String map : MAPS) {
+                for (Map.Entry<Integer, BalanceOperationModel> entry : map(moved, map).entrySet()) {
+                    map(balance, map).remove(entry.getKey());
+                    balance.untrack(entry.getValue());
+                    dirty.mark("balance." + map, entry.getKey());
+                }
+            }
+        }
+        restored.values().forEach(Map::clear);
+        locate();
+        return true;
+    }
+
+    /**
+     * Looks up an archived operation, reading its partition if it is not loaded. The operation is no more
+     * accounted by the archive, the caller keeps it resident.
+     * @param map map of BalanceModel the id belongs to (sale, order, return, credit)
+     * @return the operation, null if it is not archived
+     */
+    public synchronized BalanceOperationModel restore(String map, Integer id){
+        open();
+        YearMonth month = location.get(map).get(id);
+        if (month == null)
+            return null;
+        BalanceModel partition = load(month);
+        if (partition == null)
+            return null;
+        BalanceOperationModel operation = map(partition, map).get(id);
+        location.get(map).remove(id);
+        restored.get(map).put(id, month);
+        if (operation != null) {
+            balanceLocation.remove(operation.getBalanceId());
+            roll(partitions.get(month), operation, -1);
+        }
+        if (operation != null && !operation.isReturn())
+            partitions.get(month).total -= operation.getRealMoney();
+        return operation;
+    }
+
+    /**
+     * Looks up an archived operation by balanceId through the index, reading only the partition holding it
+     * @return K = map of BalanceModel, V = id of the operation in the map, null if it is not archived
+     */
+    public synchronized Map.Entry<String, Integer> find(int balanceId){
+        open();
+        YearMonth month = balanceLocation.get(balanceId);
+        if (month == null)
+            return null;
+        BalanceModel partition = load(month);
+        if (partition == null)
+            return null;
+        for (String map : MAPS)
+            for (Map.Entry<Integer, BalanceOperationModel> entry : map(partition, map).entrySet())
+                if (entry.getValue().getBalanceId() == balanceId && !restored.get(map).containsKey(entry.getKey()))
+                    return new AbstractMap.SimpleImmutableEntry<>(map, entry.getKey());
+        return null;
+    }
+
+    /**
+     * @param from first day, null for no constraint
+     * @param to last day, null for no constraint
+     * @return the totals of the archived operations of every day between the two, read from the index only
+     */
+    public synchronized TreeMap<LocalDate, Rollup> dailyRollups(LocalDate from, LocalDate to){
+        open();
+        TreeMap<LocalDate, Rollup> rollups = new TreeMap<>();
+        for (Map.Entry<YearMonth, Partition> partition : partitions.entrySet()) {
+            YearMonth month = partition.getKey();
+            if ((from != null && month.isBefore(YearMonth.from(from))) || (to != null && month.isAfter(YearMonth.from(to))))
+                continue;
+            partition.getValue().days.forEach((day, rollup) -> {
+                LocalDate date = LocalDate.parse(day);
+                if ((from == null || !date.isBefore(from)) && (to == null || !date.isAfter(to)))
+                    rollups.put(date, new Rollup(rollup));
+            });
+        }
+        return rollups;
+    }
+
+    /**
+     * @param from first month, null for no constraint
+     * @param to last month, null for no constraint
+     * @return the totals of the archived operations of every month between the two, read from the index only
+     */
+    public synchronized TreeMap<YearMonth, Rollup> monthlyRollups(YearMonth from, YearMonth to){
+        open();
+        TreeMap<YearMonth, Rollup> rollups = new TreeMap<>();
+        NavigableMap<YearMonth, Partition> months = partitions;
+        if (from != null)
+            months = months.tailMap(from, true);
+        if (to != null)
+            months = months.headMap(to, true);
+        months.forEach((month, partition) -> {
+            if (!partition.rollup.isEmpty())
+                rollups.put(month, new Rollup(partition.rollup));
+        });
+        return rollups;
+    }
+
+    /**
+     * @return true if no partition is archived
+     */
+    public synchronized boolean isEmpty(){
+        open();
+        return partitions.isEmpty();
+    }
+
+    /**
+     * @param from first day, null for no constraint
+     * @param to last day, null for no constraint
+     * @return the archived operations between the two days, reading only the partitions of those months
+     */
+    public synchronized List<BalanceOperationModel> operations(LocalDate from, LocalDate to){
+        open();
+        List<BalanceOperationModel> operations = new ArrayList<>();
+        for (YearMonth month : partitions.keySet()) {
+            if ((from != null && month.isBefore(YearMonth.from(from))) || (to != null && month.isAfter(YearMonth.from(to))))
+                continue;
+            BalanceModel partition = load(month);
+            if (partition == null)
+                continue;
+            for (String map : MAPS) {
+                for (Map.Entry<Integer, BalanceOperationModel> entry : map(partition, map).entrySet()) {
+                    LocalDate date = entry.getValue().getDate();
+                    if (!restored.get(map).containsKey(entry.getKey())
+                            && (from == null || !date.isBefore(from)) && (to == null || !date.isAfter(to)))
+                        operations.add(entry.getValue());
+                }
+            }
+        }
+        return operations;
+    }
+
+    /**
+     * @return the money the archived operations add to the balance, computed from the index only
+     */
+    public synchronized double total(){
+        open();
+        return partitions.values().stream().mapToDouble((partition) -> partition.total).sum();
+    }
+
+    public synchronized int maxBalanceId(){
+        open();
+        return partitions.values().stream().mapToInt((partition) -> partition.maxBalanceId).max().orElse(0);
+    }
+
+    public synchronized boolean contains(String map, Integer id){
+        open();
+        return location.get(map).containsKey(id);
+    }
+
+    /**
+     * @return the months of the archived partitions
+     */
+    public synchronized Set<YearMonth> getMonths(){
+        open();
+        return new TreeSet<>(partitions.keySet());
+    }
+
+    /**
+     * @return true if the partition of the month is in memory
+     */
+    public synchronized boolean isLoaded(YearMonth month){
+        SoftReference<BalanceModel> reference = loaded.get(month);
+        return reference != null && reference.get() != null;
+    }
+
+    /**
+     * Drops the partitions held in memory, they are read again when requested
+     */
+    public synchronized void evict(){
+        loaded.clear();
+    }
+
+    /**
+     * Deletes every partition and the index
+     */
+    public synchronized boolean clear(){
+        boolean outcome = true;
+        File[] files = folder.listFiles();
+        if (files != null)
+            for (File file : files)
+                outcome &= file.delete();
+        partitions = null;
+        loaded.clear();
+        location.clear();
+        balanceLocation.clear();
+        restored.clear();
+        return outcome;
+    }
+
+    /**
+     * A sale is settled once payed with no return waiting for the refund, returns once refunded,
+     * orders and credits/debits always
+     */
+    static boolean isSettled(BalanceOperationModel operation){
+        if (operation instanceof SaleTransactionModel) {
+            SaleTransactionModel sale = (SaleTransactionModel) operation;
+            return sale.getTicket() != null && "PAYED".equals(sale.getTicket().getStatus()) && sale.beforeMoney == 0;
+        }
+        if (operation instanceof ReturnTransactionModel)
+            return "payed".equals(((ReturnTransactionModel) operation).getStatus());
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map<Integer, BalanceOperationModel> map(BalanceModel balance, String map){
+        switch (map) {
+            case SALE:
+                return (Map) balance.getSaleTransactionMap();
+            case ORDER:
+                return (Map) balance.getOrderTransactionMap();
+            case RETURN:
+                return (Map) balance.getReturnTransactionMap();
+            default:
+                return (Map) balance.getCreditAndDebitsOperationMap();
+        }
+    }
+
+    /**
+     * Reads the index, it is rebuilt from the partitions if it is missing or corrupted
+     */
+    private void open(){
+        if (partitions != null)
+            return;
+        partitions = new TreeMap<>();
+        try (JsonParser parser = StorageCodec.open(index.open())) {
+            List<Partition> entries = indexReader.readValue(parser);
+            for (Partition partition : entries) {
+                YearMonth month = YearMonth.parse(partition.month);
+                // the index of older versions has no balanceIds and rollups, they are read once from the partition
+                boolean old = partition.balanceIds == null || partition.rollup == null || partition.days == null;
+                partitions.put(month, old ? summary(month) : partition);
+            }
+        } catch (IOException e) {
+            File[] files = folder.listFiles((dir, name) -> name.matches("\\d{4}-\\d{2}\\.json"));
+            if (files != null)
+                for (File file : files) {
+                    YearMonth month = YearMonth.parse(file.getName().substring(0, 7));
+                    partitions.put(month, summary(month));
+                }
+        }
+        locate();
+    }
+
+    private void locate(){
+        for (String map : MAPS) {
+            location.put(map, new HashMap<>());
+            restored.putIfAbsent(map, new HashMap<>());
+        }
+        balanceLocation.clear();
+        partitions.forEach((month, partition) -> {
+            partition.ids.forEach((map, ids) -> {
+                if (location.containsKey(map))
+                    ids.forEach((id) -> location.get(map).put(id, month));
+            });
+            partition.balanceIds.forEach((balanceId) -> balanceLocation.put(balanceId, month));
+        });
+    }
+
+    /**
+     * @return the partition of the month, cached, null if it cannot be read
+     */
+    private BalanceModel load(YearMonth month){
+        SoftReference<BalanceModel> reference = loaded.get(month);
+        BalanceModel partition = reference == null ? null : reference.get();
+        if (partition == null) {
+            partition = read(month);
+            if (partition != null)
+                loaded.put(month, new SoftReference<>(partition));
+        }
+        return partition;
+    }
+
+    /**
+     * @return the summary of the partition of the month, an empty one if the partition cannot be read
+     */
+    private Partition summary(YearMonth month){
+        BalanceModel partition = load(month);
+        return summary(month, partition == null ? new BalanceModel() : partition);
+    }
+
+    /**
+     * Reads the newest generation of the partition that can be parsed
+     * @return the partition of the month, empty if it was never written, null if no generation of it can be read
+     */
+    private BalanceModel read(YearMonth month){
+        SnapshotFile file = partitionFile(month);
+        if (!file.getFile().exists() && !file.getPreviousFile().exists())
+            return new BalanceModel();
+        for (int skip = 0; ; skip++) {
+            try (JsonParser parser = StorageCodec.open(file.open(skip))) {
+                BalanceModel partition = JsonCodec.balanceReader.readValue(parser);
+                if (partition != null)
+                    return partition;
+            } catch (FileNotFoundException e) {
+                // no (further) generation to read
+                return null;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private boolean write(YearMonth month, BalanceModel partition){
+        folder.mkdirs();
+        if (!partitionFile(month).write((out) -> serialize(out, JsonCodec.balanceWriter, partition)))
+            return false;
+        loaded.put(month, new SoftReference<>(partition));
+        partitions.put(month, summary(month, partition));
+        return true;
+    }
+
+    private void serialize(OutputStream out, ObjectWriter writer, Object value) throws IOException {
+        try (JsonGenerator generator = codec.createGenerator(out)) {
+            writer.writeValue(generator, value);
+        }
+    }
+
+    private SnapshotFile partitionFile(YearMonth month){
+        return new SnapshotFile(new File(folder, month + ".json").getPath());
+    }
+
+    private static Partition summary(YearMonth month, BalanceModel content){
+        Partition partition = new Partition();
+        partition.month = month.toString();
+        partition.balanceIds = new TreeSet<>();
+        partition.rollup = new Rollup();
+        partition.days = new TreeMap<>();
+        for (String map : MAPS) {
+            partition.ids.put(map, new TreeSet<>(map(content, map).keySet()));
+            for (BalanceOperationModel operation : map(content, map).values()) {
+                partition.balanceIds.add(operation.getBalanceId());
+                roll(partition, operation, 1);
+                partition.maxBalanceId = Math.max(partition.maxBalanceId, operation.getBalanceId());
+                if (!operation.isReturn())
+                    partition.total += operation.getRealMoney();
+            }
+        }
+        return partition;
+    }
+
+    private static void roll(Partition partition, BalanceOperationModel operation, int sign){
+        partition.rollup.add(operation, sign);
+        if (operation.getDate() == null)
+            return;
+        String day = operation.getDate().toString();
+        Rollup rollup = partition.days.computeIfAbsent(day, (d) -> new Rollup());
+        rollup.add(operation, sign);
+        if (rollup.isEmpty())
+            partition.days.remove(day);
+    }
+}
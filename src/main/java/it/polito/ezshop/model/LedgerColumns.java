@@ -0,0 +1,174 @@
+package it.polito.ezshop.model;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Read only columnar copy of the ledger for analytics: one primitive array per field, rows ordered by day,
+ * so range queries binary search the days and aggregations are plain loops over the arrays. It is a
+ * snapshot of the balance when built, the operations keep serving the per-transaction API.
+ */
+public class LedgerColumns {
+
+    static final byte CREDIT = 0;
+    static final byte DEBIT = 1;
+    static final byte SALE = 2;
+    static final byte RETURN = 3;
+    static final byte ORDER = 4;
+    static final byte OTHER = 5;
+
+    // epoch day of the operations without a date, they come first
+    static final int NO_DAY = Integer.MIN_VALUE;
+
+    private final int[] balanceIds;
+    private final int[] days;
+    // getRealMoney of the operations in cents
+    private final long[] cents;
+    // money the operations add to the balance in cents, 0 for returns
+    private final long[] balanceCents;
+    private final byte[] types;
+
+    /**
+     * Builds the columns from the archived and the resident operations of the balance
+     */
+    public LedgerColumns(BalanceModel balance){
+        List<BalanceOperationModel> operations = new ArrayList<>();
+        balance.streamAllBalanceOperations().forEach(operations::add);
+        operations.sort(Comparator.comparingInt((operation) -> day(operation.getDate())));
+        int size = operations.size();
+        balanceIds = new int[size];
+        days = new int[size];
+        cents = new long[size];
+        balanceCents = new long[size];
+        types = new byte[size];
+        for (int i = 0; i < size; i++) {
+            BalanceOperationModel operation = operations.get(i);
+            balanceIds[i] = operation.getBalanceId();
+            days[i] = day(operation.getDate());
+            cents[i] = Math.round(operation.getRealMoney() * 100);
+            balanceCents[i] = Math.round(operation.getBalanceMoney() * 100);
+            types[i] = typeCode(operation.getType());
+        }
+    }
+
+    public int size(){
+        return days.length;
+    }
+
+    /**
+     * @param from first day, null for no constraint
+     * @param to last day, null for no constraint
+     * @return the money the operations between the two days add to the balance, in cents
+     */
+    public long balanceCents(LocalDate from, LocalDate to){
+        long sum = 0;
+        for (int i = lower(from), end = upper(to); i < end; i++)
+            sum += balanceCents[i];
+        return sum;
+    }
+
+    /**
+     * @param type type of the operations (CREDIT, DEBIT, SALE, RETURN, ORDER)
+     * @return the money of the operations of the type between the two days, in cents
+     */
+    public long cents(LocalDate from, LocalDate to, String type){
+        byte code = typeCode(type);
+        long sum = 0;
+        for (int i = lower(from), end = upper(to); i < end; i++)
+            if (types[i] == code)
+                sum += cents[i];
+        return sum;
+    }
+
+    /**
+     * @return the number of operations between the two days
+     */
+    public int count(LocalDate from, LocalDate to){
+        return Math.max(0, upper(to) - lower(from));
+    }
+
+    /**
+     * @return the balanceIds of the operations between the two days, by day
+     */
+    public int[] balanceIds(LocalDate from, LocalDate to){
+        int start = lower(from);
+        return Arrays.copyOfRange(balanceIds, start, Math.max(start, upper(to)));
+    }
+
+    /**
+     * Totals of the operations between the two days in a single pass over the columns
+     */
+    public Rollup rollup(LocalDate from, LocalDate to){
+        long[] byType = new long[OTHER + 1];
+        long total = 0;
+        int start = lower(from), end = upper(to);
+        for (int i = start; i < end; i++) {
+            byType[types[i]] += cents[i];
+            total += balanceCents[i];
+        }
+        Rollup rollup = new Rollup();
+        rollup.count = Math.max(0, end - start);
+        rollup.credits = byType[CREDIT] / 100.;
+        rollup.debits = byType[DEBIT] / 100.;
+        rollup.sales = byType[SALE] / 100.;
+        rollup.returns = byType[RETURN] / 100.;
+        rollup.orders = byType[ORDER] / 100.;
+        rollup.total = total / 100.;
+        return rollup;
+    }
+
+    /**
+     * @return index of the first row dated from or later
+     */
+    private int lower(LocalDate from){
+        return from == null ? 0 : search(day(from));
+    }
+
+    /**
+     * @return index after the last row dated to or earlier
+     */
+    private int upper(LocalDate to){
+        return to == null ? days.length : search(day(to) + 1);
+    }
+
+    /**
+     * @return index of the first row whose day is not before the given one
+     */
+    private int search(int day){
+        int low = 0, high = days.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (days[mid] < day)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private static int day(LocalDate date){
+        return date == null ? NO_DAY : (int) date.toEpochDay();
+    }
+
+    static byte typeCode(String type){
+        if (type == null)
+            return OTHER;
+        switch (type) {
+            case "CREDIT":
+                return CREDIT;
+            case "DEBIT":
+                return DEBIT;
+            case "SALE":
+                return SALE;
+            case "RETURN":
+                return RETURN;
+            case "ORDER":
+                return ORDER;
+            default:
+                return OTHER;
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package it.polito.ezshop.model;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Product map of the shop, keyed by barcode, that also indexes the products by productId, by location, by
+ * the trigrams of their description and by the RFIDs in stock. The indexes are updated by put and remove, so
+ * a product whose barcode, id or description changes must be removed and put again (as updateProduct does),
+ * a location changes through relocate and the RFIDs of a product in the catalog through addRfids and takeRfid.
+ * The views are read only.
+ */
+public class ProductCatalog extends AbstractMap<String, ProductTypeModel> {
+
+    // K = barCode, V = product
+    private final Map<String, ProductTypeModel> byBarCode = new HashMap<>();
+    // K = productId, V = product
+    private final Map<Integer, ProductTypeModel> byId = new HashMap<>();
+    // K = location, V = product, in aisle, rack, level order
+    private final TreeMap<Location, ProductTypeModel> byLocation = new TreeMap<>();
+    // K = trigram of a description (the whole description if shorter), V = products whose description contains it
+    private final Map<String, Set<ProductTypeModel>> byGram = new HashMap<>();
+    // K = first tag of an RFID range of a product, V = product, the end of the range is kept by the product
+    private final TreeMap<Long, ProductTypeModel> byRfid = new TreeMap<>();
+
+    static final int GRAM = 3;
+
+    /**
+     * Normalized aisle-rack-level position: aisle and level are numbers, so 01-a-1 and 1-a-1 are the same slot
+     */
+    public static class Location implements Comparable<Location> {
+        final int aisle;
+        final String rack;
+        final int level;
+
+        Location(int aisle, String rack, int level){
+            this.aisle = aisle;
+            this.rack = rack;
+            this.level = level;
+        }
+
+        /**
+         * @return the location, null if the position is not in the aisle-rack-level format
+         */
+        public static Location parse(String position){
+            if(position == null || !position.matches("^\\d+-\\w+-\\d+$"))
+                return null;
+            String[] parts = position.split("-");
+            try {
+                return new Location(Integer.parseInt(parts[0]), parts[1], Integer.parseInt(parts[2]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public int compareTo(Location other){
+            int c = Integer.compare(aisle, other.aisle);
+            if(c == 0)
+                c = rack.compareTo(other.rack);
+            return c != 0 ? c : Integer.compare(level, other.level);
+        }
+
+        @Override
+        public boolean equals(Object o){
+            return o instanceof Location && compareTo((Location) o) == 0;
+        }
+
+        @Override
+        public int hashCode(){
+            return Objects.hash(aisle, rack, level);
+        }
+
+        @Override
+        public String toString(){
+            return aisle + "-" + rack + "-" + level;
+        }
+    }
+
+    public ProductCatalog(){}
+
+    public ProductCatalog(Collection<ProductTypeModel> products){
+        products.forEach((product) -> put(product.getBarCode(), product));
+    }
+
+    /**
+     * @return the product with the id, null if there is none
+     */
+    public ProductTypeModel getById(Integer productId){
+        return byId.get(productId);
+    }
+
+    @Override
+    public ProductTypeModel put(String barCode, ProductTypeModel product){
+        ProductTypeModel previous = byBarCode.put(barCode, product);
+        unindex(previous);
+        if(product.getId() != null)
+            byId.put(product.getId(), product);
+        Location location = Location.parse(product.getLocation());
+        if(location != null)
+            byLocation.put(location, product);
+        for (String gram : grams(product.getProductDescription()))
+            byGram.computeIfAbsent(gram, (g) -> new HashSet<>()).add(product);
+        if(product.getRFIDset() != null)
+            product.getRFIDset().getRanges().keySet().forEach((first) -> byRfid.put(first, product));
+        return previous;
+    }
+
+    /**
+     * @return the product having the RFID in stock, null if there is none
+     */
+    public ProductTypeModel getByRfid(long rfid){
+        Map.Entry<Long, ProductTypeModel> range = byRfid.floorEntry(rfid);
+        if(range == null)
+            return null;
+        Long last = range.getValue().getRFIDset().getRanges().get(range.getKey());
+        return last != null && last >= rfid ? range.getValue() : null;
+    }
+
+    /**
+     * @return true if no product has any of the count tags starting from first in stock
+     */
+    public boolean isRfidFree(long first, long count){
+        long last = first + count - 1;
+        if(getByRfid(first) != null)
+            return false;
+        Long next = byRfid.higherKey(first);
+        return next == null || next > last;
+    }
+
+    /**
+     * Adds the count tags starting from first to the RFIDs of a product of the catalog
+     */
+    public void addRfids(ProductTypeModel product, long first, long count){
+        if(count <= 0)
+            return;
+        NavigableMap<Long, Long> ranges = product.getRFIDset().getRanges();
+        // the ranges of the product the new one can merge with
+        Long from = ranges.floorKey(first - 1);
+        if(from == null)
+            from = first - 1;
+        long to = first + count;
+        new ArrayList<>(ranges.subMap(from, true, to, true).keySet()).forEach((key) -> byRfid.remove(key, product));
+        product.getRFIDset().add(first, count);
+        ranges.subMap(from, true, to, true).keySet().forEach((key) -> byRfid.put(key, product));
+    }
+
+    /**
+     * Removes an RFID from the stock of the product having it
+     * @return the product that had the RFID, null if there is none
+     */
+    public ProductTypeModel takeRfid(long rfid){
+        ProductTypeModel product = getByRfid(rfid);
+        if(product == null)
+            return null;
+        long first = byRfid.floorKey(rfid);
+        long last = product.getRFIDset().getRanges().get(first);
+        product.getRFIDset().remove(rfid);
+        byRfid.remove(first);
+        if(first < rfid)
+            byRfid.put(first, product);
+        if(last > rfid)
+            byRfid.put(rfid + 1, product);
+        return product;
+    }
+
+    /**
+     * Substring search over the descriptions, case sensitive like String.contains. The candidates are the
+     * products having every trigram of the text, a text shorter than a trigram matches the grams containing it.
+     * @return the products whose description contains the text, all of them for an empty text. Descriptions
+     * starting with the text come first, then the ones containing it earlier, then the shorter ones
+     */
+    public List<ProductTypeModel> searchDescription(String text){
+        if(text == null)
+            text = "";
+        Collection<ProductTypeModel> candidates;
+        if(text.isEmpty())
+            candidates = byBarCode.values();
+        else if(text.length() < GRAM) {
+            candidates = new HashSet<>();
+            for (Map.Entry<String, Set<ProductTypeModel>> gram : byGram.entrySet())
+                if(gram.getKey().contains(text))
+                    candidates.addAll(gram.getValue());
+        } else {
+            List<Set<ProductTypeModel>> postings = new ArrayList<>();
+            for (String gram : grams(text)) {
+                Set<ProductTypeModel> posting = byGram.get(gram);
+                if(posting == null)
+                    return new ArrayList<>();
+                postings.add(posting);
+            }
+            postings.sort(Comparator.comparingInt(Set::size));
+            candidates = new HashSet<>(postings.get(0));
+            for (Set<ProductTypeModel> posting : postings.subList(1, postings.size()))
+                candidates.retainAll(posting);
+        }
+        String query = text;
+        List<ProductTypeModel> matches = new ArrayList<>();
+        for (ProductTypeModel product : candidates)
+            if(product.getProductDescription() != null && product.getProductDescription().contains(query))
+                matches.add(product);
+        matches.sort(Comparator.<ProductTypeModel>comparingInt((product) -> product.getProductDescription().indexOf(query))
+                .thenComparingInt((product) -> product.getProductDescription().length())
+                .thenComparing(ProductTypeModel::getBarCode, Comparator.nullsFirst(Comparator.naturalOrder())));
+        return matches;
+    }
+
+    /**
+     * @param offset index of the first match of the page
+     * @param limit maximum number of matches of the page
+     * @return a page of the ranked matches of searchDescription
+     */
+    public List<ProductTypeModel> searchDescription(String text, int offset, int limit){
+        List<ProductTypeModel> matches = searchDescription(text);
+        if(offset < 0 || limit <= 0 || offset >= matches.size())
+            return new ArrayList<>();
+        return new ArrayList<>(matches.subList(offset, Math.min(matches.size(), offset + limit)));
+    }
+
+    /**
+     * @return the product at the position, null if the slot is free
+     */
+    public ProductTypeModel getByLocation(String position){
+        Location location = Location.parse(position);
+        return location == null ? null : byLocation.get(location);
+    }
+
+    /**
+     * Moves a product of the catalog to a new position
+     * @param position new position, null to remove the product from the shelves
+     * @return false if the slot is already taken (by the product itself too)
+     */
+    public boolean relocate(ProductTypeModel product, String position){
+        Location location = Location.parse(position);
+        if(location != null && byLocation.containsKey(location))
+            return false;
+        unindexLocation(product);
+        product.setLocation(position);
+        if(location != null)
+            byLocation.put(location, product);
+        return true;
+    }
+
+    /**
+     * @return the products placed in the aisles from fromAisle to toAisle, in aisle, rack, level order
+     */
+    public List<ProductTypeModel> getByAisle(int fromAisle, int toAisle){
+        if(fromAisle > toAisle)
+            return new ArrayList<>();
+        return new ArrayList<>(byLocation.subMap(new Location(fromAisle, "", Integer.MIN_VALUE), true,
+                new Location(toAisle, "\uffff", Integer.MAX_VALUE), true).values());
+    }
+
+    /**
+     * Racks are compared as strings
+     * @return the products placed in the racks from fromRack to toRack of the aisle, in rack, level order
+     */
+    public List<ProductTypeModel> getByRack(int aisle, String fromRack, String toRack){
+        if(fromRack.compareTo(toRack) > 0)
+            return new ArrayList<>();
+        return new ArrayList<>(byLocation.subMap(new Location(aisle, fromRack, Integer.MIN_VALUE), true,
+                new Location(aisle, toRack, Integer.MAX_VALUE), true).values());
+    }
+
+    @Override
+    public ProductTypeModel remove(Object barCode){
+        ProductTypeModel product = byBarCode.remove(barCode);
+        unindex(product);
+        return product;
+    }
+
+    @Override
+    public ProductTypeModel get(Object barCode){
+        return byBarCode.get(barCode);
+    }
+
+    @Override
+    public boolean containsKey(Object barCode){
+        return byBarCode.containsKey(barCode);
+    }
+
+    @Override
+    public int size(){
+        return byBarCode.size();
+    }
+
+    @Override
+    public void clear(){
+        byBarCode.clear();
+        byId.clear();
+        byLocation.clear();
+        byGram.clear();
+        byRfid.clear();
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super String, ? super ProductTypeModel> action){
+        byBarCode.forEach(action);
+    }
+
+    @Override
+    public Set<String> keySet(){
+        return Collections.unmodifiableSet(byBarCode.keySet());
+    }
+
+    @Override
+    public Collection<ProductTypeModel> values(){
+        return Collections.unmodifiableCollection(byBarCode.values());
+    }
+
+    @Override
+    public Set<Entry<String, ProductTypeModel>> entrySet(){
+        return Collections.unmodifiableMap(byBarCode).entrySet();
+    }
+
+    private void unindex(ProductTypeModel product){
+        if(product != null && product.getId() != null)
+            byId.remove(product.getId(), product);
+        if(product == null)
+            return;
+        unindexLocation(product);
+        for (String gram : grams(product.getProductDescription())) {
+            Set<ProductTypeModel> posting = byGram.get(gram);
+            if(posting != null && posting.remove(product) && posting.isEmpty())
+                byGram.remove(gram);
+        }
+        if(product.getRFIDset() != null)
+            product.getRFIDset().getRanges().keySet().forEach((first) -> byRfid.remove(first, product));
+    }
+
+    /**
+     * @return the distinct trigrams of the text, the text itself if shorter than a trigram
+     */
+    static Set<String> grams(String text){
+        Set<String> grams = new HashSet<>();
+        if(text == null || text.isEmpty())
+            return grams;
+        if(text.length() < GRAM)
+            grams.add(text);
+        for (int i = 0; i + GRAM <= text.length(); i++)
+            grams.add(text.substring(i, i + GRAM));
+        return grams;
+    }
+
+    private void unindexLocation(ProductTypeModel product){
+        Location location = Location.parse(product.getLocation());
+        if(location != null)
+            byLocation.remove(location, product);
+    }
+}
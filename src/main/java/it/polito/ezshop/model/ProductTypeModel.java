@@ -2,7 +2,6 @@ package it.polito.ezshop.model;
 
 import it.polito.ezshop.data.ProductType;
 
-import java.util.HashSet;
 
 public class ProductTypeModel implements ProductType {
     Integer quantity;
@@ -12,7 +11,7 @@ public class ProductTypeModel implements ProductType {
     String barCode;
     Double pricePerUnit;
     Integer productId;
-    HashSet<Integer> RFIDset;
+    RfidRanges RFIDset;
 
     public ProductTypeModel() {}
 
@@ -23,7 +22,7 @@ public class ProductTypeModel implements ProductType {
         this.note = note;
         this.productId = productId;
         this.quantity = 0;
-        this.RFIDset = new HashSet<>();
+        this.RFIDset = new RfidRanges();
     }
 
     @Override
@@ -105,23 +104,24 @@ public class ProductTypeModel implements ProductType {
         this.productId = productId;
     }
 
-    public HashSet<Integer> getRFIDset() {
+    public RfidRanges getRFIDset() {
         return RFIDset;
     }
 
-    public void setRFIDset(HashSet<Integer> RFIDset) {
+    public void setRFIDset(RfidRanges RFIDset) {
         this.RFIDset = RFIDset;
     }
 
     public void add_rfids(String Rfid, int n){
-        for(int i=Integer.parseInt(Rfid); i<Integer.parseInt(Rfid)+n; i++){
-            RFIDset.add(i);
-        }
+        RFIDset.add(Long.parseLong(Rfid), n);
     }
 
+    /**
+     * @return true if none of the n tags starting from Rfid belongs to the product
+     */
     public boolean valid_rfid_range(String Rfid, int n){
-        int rfid = Integer.parseInt(Rfid);
-        return RFIDset.stream().noneMatch((r)->rfid<= r&& r <=rfid+n);
+        long rfid = Long.parseLong(Rfid);
+        return !RFIDset.overlaps(rfid, rfid + n - 1);
     }
 
     //Made by Omar
@@ -0,0 +1,159 @@
+package it.polito.ezshop.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+
+/**
+ * Stock quantities of the products, kept in a memory-mapped file of fixed size slots (persistent/quantity.bin)
+ * while the rest of the product stays in the catalog (product.json). Slot i holds the product with id i as
+ * [int productId][int quantity], slot 0 holds the magic of the file. A stock change is a single in place store
+ * of the quantity instead of a journal record with the whole product. The productId marks the slot as taken,
+ * it is written after the quantity when a slot is claimed. When the shop is loaded the quantities of the file
+ * win over the ones of the catalog.
+ */
+public class QuantityFile {
+
+    static final int SLOT = 8;
+    // "EZQ1"
+    static final int MAGIC = 0x455A5131;
+    static final int INITIAL_SLOTS = 1024;
+
+    File file;
+    // when true every store is forced to disk, otherwise the stores are forced by force()
+    boolean sync = true;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+
+    public QuantityFile(String file){
+        this.file = new File(file);
+    }
+
+    /**
+     * Stores the quantity of a product, claiming its slot the first time
+     * @return false if the file can not be mapped
+     */
+    public synchronized boolean store(int productId, int quantity){
+        if(productId <= 0 || !map(productId))
+            return false;
+        int position = productId * SLOT;
+        buffer.putInt(position + 4, quantity);
+        if(buffer.getInt(position) != productId)
+            buffer.putInt(position, productId);
+        if(sync)
+            buffer.force();
+        return true;
+    }
+
+    /**
+     * @return the stored quantity of the product, null if the product has no slot
+     */
+    public synchronized Integer get(int productId){
+        if(productId <= 0 || !map(0))
+            return null;
+        int position = productId * SLOT;
+        if(position + SLOT > buffer.capacity() || buffer.getInt(position) != productId)
+            return null;
+        return buffer.getInt(position + 4);
+    }
+
+    /**
+     * Frees the slot of a deleted product, so that a product created later with the same id does not inherit it
+     */
+    public synchronized boolean remove(int productId){
+        if(productId <= 0 || !map(0))
+            return false;
+        int position = productId * SLOT;
+        if(position + SLOT <= buffer.capacity() && buffer.getInt(position) == productId) {
+            buffer.putInt(position, 0);
+            if(sync)
+                buffer.force();
+        }
+        return true;
+    }
+
+    /**
+     * Overwrites the quantity of the products that have a slot
+     */
+    public synchronized void apply(Collection<ProductTypeModel> products){
+        for (ProductTypeModel product : products) {
+            Integer quantity = product.getId() == null ? null : get(product.getId());
+            if(quantity != null)
+                product.setQuantity(quantity);
+        }
+    }
+
+    /**
+     * Forces the stores done since the last call to disk
+     */
+    public synchronized boolean force(){
+        if(buffer != null)
+            buffer.force();
+        return true;
+    }
+
+    /**
+     * Forces the stores to disk and unmaps the file, a later call maps it again
+     */
+    public synchronized void close(){
+        force();
+        buffer = null;
+        if(channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Frees every slot
+     */
+    public synchronized boolean clear(){
+        if(!file.exists() && buffer == null)
+            return true;
+        if(!map(0))
+            return false;
+        for (int position = SLOT; position + SLOT <= buffer.capacity(); position += SLOT)
+            buffer.putLong(position, 0);
+        buffer.force();
+        return true;
+    }
+
+    /**
+     * Maps the file, growing it if the slot of the product is past its end
+     */
+    private boolean map(int productId){
+        long required = (long) (productId + 1) * SLOT;
+        if(buffer != null && required <= buffer.capacity())
+            return true;
+        try {
+            if(channel == null) {
+                File folder = file.getAbsoluteFile().getParentFile();
+                if(!folder.exists() && !folder.mkdirs())
+                    return false;
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            }
+            long size = Math.max(channel.size(), (long) INITIAL_SLOTS * SLOT);
+            while(size < required)
+                size *= 2;
+            boolean fresh = channel.size() < SLOT;
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if(fresh || buffer.getInt(0) != MAGIC) {
+                // new or unknown content, no slot can be trusted
+                for (int position = 0; position < size; position += SLOT)
+                    buffer.putLong(position, 0);
+                buffer.putInt(0, MAGIC);
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+}
@@ -10,7 +10,7 @@ public class ReturnModel {
     Integer saleId;
     String status;
     ArrayList<TicketEntryModel> productList;
-    HashMap<Integer, String> RfidMap;
+    HashMap<Long, String> RfidMap;
     double returnedAmount;
     static Integer currentId = 0;
 
@@ -75,11 +75,11 @@ public class ReturnModel {
         this.saleId = saleId;
     }
 
-    public HashMap<Integer, String> getRfidMap() {
+    public HashMap<Long, String> getRfidMap() {
         return RfidMap;
     }
 
-    public void setRfidMap(HashMap<Integer, String> rfidMap) {
+    public void setRfidMap(HashMap<Long, String> rfidMap) {
         RfidMap = rfidMap;
     }
 
@@ -88,15 +88,14 @@ public class ReturnModel {
         for (TicketEntryModel entry : productList) {
             productMap.get(entry.getBarCode()).updateAvailableQuantity(entry.getAmount());
         }
+        // K = barCode, V = first line of the barcode in the ticket
+        Map<String, TicketEntryModel> saleLines = new HashMap<>();
+        for (TicketEntryModel saleEntry : sale.getTicket().getTicketEntryModelList())
+            saleLines.putIfAbsent(saleEntry.getBarCode(), saleEntry);
         for (TicketEntryModel entry : productList) {
-            for (TicketEntryModel saleEntry : sale.getTicket().getTicketEntryModelList()) {
-                if (saleEntry.getBarCode().equals(entry.getBarCode())) {
-                    saleEntry.removeAmount(entry.getAmount());
-/*                    if(saleEntry.getAmount() == 0)
-                        sale.getTicket().getTicketEntryModelList().remove(saleEntry);*/
-                    break;
-                }
-            }
+            TicketEntryModel saleEntry = saleLines.get(entry.getBarCode());
+            if (saleEntry != null)
+                saleEntry.removeAmount(entry.getAmount());
         }
         returnedAmount = sale.updateAmount();
     }
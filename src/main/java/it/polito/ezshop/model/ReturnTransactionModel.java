@@ -59,7 +59,7 @@ public class ReturnTransactionModel extends BalanceOperationModel{
 
     public void setPayment(PaymentModel payment) {
         if(payment != null )
-            super.money = payment.getAmount();
+            change(() -> super.money = payment.getAmount());
         this.payment = payment;
     }
 
@@ -0,0 +1,165 @@
+package it.polito.ezshop.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.*;
+
+/**
+ * Set of RFIDs stored as disjoint ranges of consecutive tags, adjacent ranges are merged.
+ * Membership, insertion and removal are O(log n) in the number of ranges, removing a tag from the
+ * middle of a range splits it. Serialized as [[first, last], ...], a flat array of single tags
+ * (the format of the older files) is read too.
+ */
+public class RfidRanges {
+
+    // K = first tag of the range, V = last tag of the range
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+    private long size;
+
+    public RfidRanges(){}
+
+    @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+    public static RfidRanges fromJson(JsonNode json){
+        RfidRanges rfids = new RfidRanges();
+        if(json == null)
+            return rfids;
+        for (JsonNode element : json) {
+            if(element.isArray() && element.size() == 2)
+                rfids.add(element.get(0).asLong(), element.get(1).asLong() - element.get(0).asLong() + 1);
+            else if(element.isNumber())
+                rfids.add(element.asLong());
+        }
+        return rfids;
+    }
+
+    @JsonValue
+    public List<long[]> toJson(){
+        List<long[]> json = new ArrayList<>();
+        ranges.forEach((first, last) -> json.add(new long[]{first, last}));
+        return json;
+    }
+
+    public boolean add(long rfid){
+        return add(rfid, 1) > 0;
+    }
+
+    /**
+     * Adds the count consecutive tags starting from first
+     * @return the number of tags that were not already in the set
+     */
+    public long add(long first, long count){
+        if(count <= 0)
+            return 0;
+        long last = first + count - 1;
+        long added = count - covered(first, last);
+        // merges the ranges overlapping or adjacent to [first, last]
+        Map.Entry<Long, Long> before = ranges.floorEntry(first);
+        if(before != null && before.getValue() >= first - 1) {
+            first = before.getKey();
+            last = Math.max(last, before.getValue());
+        }
+        Map.Entry<Long, Long> next;
+        while((next = ranges.ceilingEntry(first)) != null && next.getKey() <= last + 1) {
+            last = Math.max(last, next.getValue());
+            ranges.remove(next.getKey());
+        }
+        ranges.put(first, last);
+        size += added;
+        return added;
+    }
+
+    public boolean contains(long rfid){
+        Map.Entry<Long, Long> range = ranges.floorEntry(rfid);
+        return range != null && range.getValue() >= rfid;
+    }
+
+    /**
+     * @return true if any tag from first to last is in the set
+     */
+    public boolean overlaps(long first, long last){
+        if(first > last)
+            return false;
+        Map.Entry<Long, Long> before = ranges.floorEntry(first);
+        if(before != null && before.getValue() >= first)
+            return true;
+        Long next = ranges.higherKey(first);
+        return next != null && next <= last;
+    }
+
+    /**
+     * Removes a tag, splitting its range in two if needed
+     * @return true if the tag was in the set
+     */
+    public boolean remove(long rfid){
+        Map.Entry<Long, Long> range = ranges.floorEntry(rfid);
+        if(range == null || range.getValue() < rfid)
+            return false;
+        ranges.remove(range.getKey());
+        if(range.getKey() < rfid)
+            ranges.put(range.getKey(), rfid - 1);
+        if(range.getValue() > rfid)
+            ranges.put(rfid + 1, range.getValue());
+        size--;
+        return true;
+    }
+
+    /**
+     * @return the number of tags
+     */
+    public long size(){
+        return size;
+    }
+
+    public boolean isEmpty(){
+        return ranges.isEmpty();
+    }
+
+    /**
+     * @return the number of ranges the tags are stored in
+     */
+    public int rangeCount(){
+        return ranges.size();
+    }
+
+    /**
+     * @return the ranges as K = first tag, V = last tag
+     */
+    public NavigableMap<Long, Long> getRanges(){
+        return Collections.unmodifiableNavigableMap(ranges);
+    }
+
+    /**
+     * @return the number of tags from first to last already in the set
+     */
+    private long covered(long first, long last){
+        long covered = 0;
+        Map.Entry<Long, Long> range = ranges.floorEntry(first);
+        if(range == null)
+            range = ranges.ceilingEntry(first);
+        while(range != null && range.getKey() <= last) {
+            long from = Math.max(first, range.getKey());
+            long to = Math.min(last, range.getValue());
+            if(from <= to)
+                covered += to - from + 1;
+            range = ranges.higherEntry(range.getKey());
+        }
+        return covered;
+    }
+
+    @Override
+    public boolean equals(Object o){
+        return o instanceof RfidRanges && ranges.equals(((RfidRanges) o).ranges);
+    }
+
+    @Override
+    public int hashCode(){
+        return ranges.hashCode();
+    }
+
+    @Override
+    public String toString(){
+        return ranges.toString();
+    }
+}
@@ -0,0 +1,77 @@
+package it.polito.ezshop.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * Totals of the balance operations of a period (a day or a month). BalanceModel keeps them for the resident
+ * operations and the LedgerArchive index for the archived ones, so period totals never walk the operations.
+ */
+public class Rollup {
+    public int count;
+    // getRealMoney of the operations by type, debits and orders are negative
+    public double credits;
+    public double debits;
+    public double sales;
+    public double returns;
+    public double orders;
+    // money the operations add to the balance, as in BalanceModel.computeBalance
+    public double total;
+
+    public Rollup(){}
+
+    public Rollup(Rollup other){
+        add(other);
+    }
+
+    /**
+     * Accounts an operation in the totals
+     * @param sign 1 to add the operation, -1 to remove it
+     */
+    void add(BalanceOperationModel operation, int sign){
+        double money = sign * operation.getRealMoney();
+        count += sign;
+        switch (String.valueOf(operation.getType())) {
+            case "CREDIT":
+                credits += money;
+                break;
+            case "DEBIT":
+                debits += money;
+                break;
+            case "SALE":
+                sales += money;
+                break;
+            case "RETURN":
+                returns += money;
+                break;
+            case "ORDER":
+                orders += money;
+                break;
+        }
+        total += sign * operation.getBalanceMoney();
+    }
+
+    void add(Rollup other){
+        count += other.count;
+        credits += other.credits;
+        debits += other.debits;
+        sales += other.sales;
+        returns += other.returns;
+        orders += other.orders;
+        total += other.total;
+    }
+
+    /**
+     * @return true if every total of the two rollups differs by less than the tolerance
+     */
+    boolean matches(Rollup other, double tolerance){
+        return count == other.count && Math.abs(credits - other.credits) < tolerance
+                && Math.abs(debits - other.debits) < tolerance && Math.abs(sales - other.sales) < tolerance
+                && Math.abs(returns - other.returns) < tolerance && Math.abs(orders - other.orders) < tolerance
+                && Math.abs(total - other.total) < tolerance;
+    }
+
+    @JsonIgnore
+    public boolean isEmpty(){
+        return count == 0;
+    }
+}
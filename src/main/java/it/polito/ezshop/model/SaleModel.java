@@ -3,6 +3,7 @@ package it.polito.ezshop.model;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 
 public class SaleModel {
     int balanceOperationId;
@@ -11,7 +12,11 @@ public class SaleModel {
     ArrayList<TicketEntryModel> productList;
     double saleDiscountRate;
     static Integer currentId = 0;
-    HashMap<Integer, String> RFIDset;
+    HashMap<Long, String> RFIDset;
+    // K = barCode, V = line of the barcode in productList, lines are changed through addProduct and removeProduct
+    private final LinkedHashMap<String, TicketEntryModel> lines = new LinkedHashMap<>();
+    // sum of the cost of the lines before the sale discount, updated by every change of a line
+    private double subtotal;
 
     public SaleModel() {
         id = ++currentId;
@@ -43,6 +48,16 @@ public class SaleModel {
 
     public void setProductList(ArrayList<TicketEntryModel> productList) {
         this.productList = productList;
+        lines.clear();
+        productList.forEach((entry) -> lines.putIfAbsent(entry.getBarCode(), entry));
+        subtotal = recomputeSubtotal();
+    }
+
+    /**
+     * @return the line of the barcode, null if the product is not in the sale
+     */
+    public TicketEntryModel getLine(String barCode) {
+        return lines.get(barCode);
     }
 
     public double getSaleDiscountRate() {
@@ -53,11 +68,11 @@ public class SaleModel {
         this.saleDiscountRate = saleDiscountRate;
     }
 
-    public HashMap<Integer, String> getRFIDset() {
+    public HashMap<Long, String> getRFIDset() {
         return RFIDset;
     }
 
-    public void setRFIDMap(HashMap<Integer, String> RFIDset) {
+    public void setRFIDMap(HashMap<Long, String> RFIDset) {
         this.RFIDset = RFIDset;
     }
 
@@ -71,12 +86,16 @@ public class SaleModel {
         if(t == null)
             return false;
         if(t.getAmount()<=0) return false;
-        for(TicketEntryModel entry : productList){
-            if(entry.getBarCode().equals(t.getBarCode())){
-                return entry.addAmount(t.getAmount());
-            }
+        TicketEntryModel entry = lines.get(t.getBarCode());
+        if(entry != null) {
+            double before = entry.computeCost();
+            boolean res = entry.addAmount(t.getAmount());
+            subtotal += entry.computeCost() - before;
+            return res;
         }
         productList.add(t);
+        lines.put(t.getBarCode(), t);
+        subtotal += t.computeCost();
         return true;
     }
 
@@ -91,15 +110,17 @@ public class SaleModel {
     public boolean removeProduct(String barCode, int amount) {
         if(amount <= 0 || !ProductTypeModel.checkBarCodeWithAlgorithm(barCode))
             return false;
-        for(TicketEntryModel entry : productList){
-            if(entry.getBarCode().equals(barCode)){
-                boolean res = entry.removeAmount(amount);
-                if(res && entry.getAmount() == 0)
-                    productList.remove(entry);
-                return res;
-            }
+        TicketEntryModel entry = lines.get(barCode);
+        if(entry == null)
+            return false;
+        double before = entry.computeCost();
+        boolean res = entry.removeAmount(amount);
+        subtotal += entry.computeCost() - before;
+        if(res && entry.getAmount() == 0) {
+            productList.remove(entry);
+            lines.remove(barCode);
         }
-        return false;
+        return res;
     }
 
     /**
@@ -112,13 +133,13 @@ public class SaleModel {
      *         if entry is not found
      */
     public boolean setDiscountRateForProduct(String barCode, double pDiscountRate) {
-        for(TicketEntryModel entry : productList){
-            if(entry.getBarCode().equals(barCode)){
-                entry.setDiscountRate(pDiscountRate);
-                return true;
-            }
-        }
-        return false;
+        TicketEntryModel entry = lines.get(barCode);
+        if(entry == null)
+            return false;
+        double before = entry.computeCost();
+        entry.setDiscountRate(pDiscountRate);
+        subtotal += entry.computeCost() - before;
+        return true;
     }
 
     public boolean setDiscountRateForSale(double saleDiscountRate) {
@@ -128,14 +149,27 @@ public class SaleModel {
 
     /**
      * made by Manuel
-     * @return return the Total for the sale
+     * @return return the Total for the sale, from the running subtotal
      */
     public double computeCost() {
-        double cost = 0 ;
+        return subtotal * (1 - this.saleDiscountRate);
+    }
+
+    /**
+     * Compares the running subtotal with the one recomputed from the lines, e.g. after lines changed
+     * without going through the sale
+     * @return true if they differ by less than a cent
+     */
+    public boolean isSubtotalConsistent() {
+        return Math.abs(subtotal - recomputeSubtotal()) < 0.01;
+    }
+
+    private double recomputeSubtotal() {
+        double cost = 0;
         for(TicketEntryModel entry : productList){
             cost += entry.computeCost();
         }
-        return cost * (1 - this.saleDiscountRate);
+        return cost;
     }
 
     public boolean closeTransaction() {
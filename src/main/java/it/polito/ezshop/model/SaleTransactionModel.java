@@ -15,7 +15,7 @@ public class SaleTransactionModel extends BalanceOperationModel implements it.po
     double discountRate;
     TicketModel ticket;
     double beforeMoney;
-    HashMap<Integer, String> RFIDmap;
+    HashMap<Long, String> RFIDmap;
 
     public SaleTransactionModel(){super();}
 
@@ -106,16 +106,16 @@ public class SaleTransactionModel extends BalanceOperationModel implements it.po
         return beforeMoney;
     }
 
-    public HashMap<Integer, String> getRFIDmap() {
+    public HashMap<Long, String> getRFIDmap() {
         return RFIDmap;
     }
 
-    public void setRFIDmap(HashMap<Integer, String> RFIDmap) {
+    public void setRFIDmap(HashMap<Long, String> RFIDmap) {
         this.RFIDmap = RFIDmap;
     }
 
     public void setBeforeMoney(double beforeMoney) {
-        this.beforeMoney = beforeMoney;
+        change(() -> this.beforeMoney = beforeMoney);
     }
 
     public double getMoney(){
@@ -152,8 +152,10 @@ public class SaleTransactionModel extends BalanceOperationModel implements it.po
      *          (i.e the money payed at first - the total cost of the product returned)
      */
     public double updateAmount(){
-        beforeMoney = money;
-        money = computeCost();
+        change(() -> {
+            beforeMoney = money;
+            money = computeCost();
+        });
         ticket.getPayment().setAmount(money);
         return beforeMoney - money;
     }
@@ -0,0 +1,321 @@
+package it.polito.ezshop.model;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A snapshot file of the persistent folder (e.g. product.json) written in a crash safe way:
+ * 1. the content is written to product.json.tmp followed by a footer with its CRC32, and synced to disk
+ * 2. the current product.json becomes the previous generation product.json.prev
+ * 3. the temporary file is atomically renamed to product.json
+ * When reading, a generation whose checksum does not match is skipped and the previous one is used.
+ * The checksum is computed while the content is streamed to the reader and compared at the end of it (or when
+ * the stream is closed, reading what the reader left), so that a generation is read only once: a mismatch fails
+ * the read with an IOException and the reader opens the next generation. openVerified() checks it up front instead,
+ * at the cost of reading the generation twice, for readers that cannot start over.
+ * A file without footer (written before the footer existed) is accepted as it is only if there is no previous
+ * generation, otherwise it is a truncated write of the current one.
+ */
+public class SnapshotFile {
+
+    // "\n/*crc32:01234567*/\n"
+    static final String FOOTER_START = "\n/*crc32:";
+    static final String FOOTER_END = "*/\n";
+    static final int FOOTER_LENGTH = FOOTER_START.length() + 8 + FOOTER_END.length();
+
+    interface Content {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    File file;
+    File previous;
+    File tmp;
+
+    public SnapshotFile(String file){
+        this.file = new File(file);
+        this.previous = new File(file + ".prev");
+        this.tmp = new File(file + ".tmp");
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public File getPreviousFile() {
+        return previous;
+    }
+
+    /**
+     * Replaces the snapshot, a crash at any point leaves either the old or the new snapshot readable
+     * @return true if the new snapshot is in place
+     */
+    public boolean write(Content content){
+        CRC32 crc = new CRC32();
+        try (FileOutputStream stream = new FileOutputStream(tmp)) {
+            BufferedOutputStream buffer = new BufferedOutputStream(stream);
+            CheckedOutputStream checked = new CheckedOutputStream(buffer, crc);
+            // the content writer may close the stream it receives, the footer still has to be written
+            content.writeTo(new FilterOutputStream(checked) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            });
+            checked.flush();
+            buffer.write(footer(crc.getValue()));
+            buffer.flush();
+            stream.getChannel().force(true);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        try {
+            if(file.exists())
+                Files.move(file.toPath(), previous.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        syncFolder(file);
+        return true;
+    }
+
+    /**
+     * Opens the newest generation with a footer, see open(int)
+     * @return a stream over the content of the snapshot, without the footer
+     * @throws IOException if there is no valid generation
+     */
+    public InputStream open() throws IOException {
+        return open(0);
+    }
+
+    /**
+     * Opens a generation, skipping the newest ones, e.g. when the content of the newest one cannot be parsed.
+     * The checksum is verified while reading: the stream throws an IOException at the end of the content, or when
+     * it is closed, if it does not match, and the generation is skipped by opening the next one.
+     * @param skip number of generations to skip
+     * @throws FileNotFoundException if there are not enough generations with a footer
+     */
+    public InputStream open(int skip) throws IOException {
+        for (File generation : Arrays.asList(file, previous)) {
+            // an older-format file has no previous generation, the previous one itself may be older-format
+            Footer footer = Footer.read(generation, generation == previous || !previous.exists());
+            if(footer != null && skip-- == 0)
+                return new BufferedInputStream(footer.legacy() ? footer.content(generation) : new VerifyingInputStream(generation, footer));
+        }
+        throw new FileNotFoundException("No valid generation of " + file.getPath());
+    }
+
+    /**
+     * Opens the newest generation whose checksum is valid, reading each generation once to verify it
+     * and once more through the returned stream
+     * @throws FileNotFoundException if there is no valid generation
+     */
+    public InputStream openVerified() throws IOException {
+        for (File generation : Arrays.asList(file, previous)) {
+            Footer footer = Footer.read(generation, generation == previous || !previous.exists());
+            if(footer != null && footer.verify(generation))
+                return new BufferedInputStream(footer.content(generation));
+        }
+        throw new FileNotFoundException("No valid generation of " + file.getPath());
+    }
+
+    /**
+     * Empties the snapshot and drops the previous generation
+     */
+    public boolean clear(){
+        try {
+            new FileOutputStream(file).close();
+            return (!previous.exists() || previous.delete()) && (!tmp.exists() || tmp.delete());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Length and checksum of the content of a generation, as stated by its footer
+     */
+    private static class Footer {
+        static final long NONE = -1;
+
+        final long length;
+        final long crc;
+
+        Footer(long length, long crc){
+            this.length = length;
+            this.crc = crc;
+        }
+
+        /**
+         * @param legacy true if a file without footer is accepted
+         * @return the footer of the generation, null if it is missing or malformed
+         */
+        static Footer read(File generation, boolean legacy){
+            if(!generation.exists())
+                return null;
+            long length = generation.length();
+            if(length < FOOTER_LENGTH)
+                return legacy ? new Footer(length, NONE) : null;
+            byte[] tail = new byte[FOOTER_LENGTH];
+            try (RandomAccessFile raf = new RandomAccessFile(generation, "r")) {
+                raf.seek(length - FOOTER_LENGTH);
+                raf.readFully(tail);
+            } catch (IOException e) {
+                return null;
+            }
+            String footer = new String(tail, StandardCharsets.US_ASCII);
+            if(!footer.startsWith(FOOTER_START) || !footer.endsWith(FOOTER_END))
+                return legacy ? new Footer(length, NONE) : null;
+            try {
+                return new Footer(length - FOOTER_LENGTH, Long.parseLong(footer.substring(FOOTER_START.length(), FOOTER_START.length() + 8), 16));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        boolean legacy(){
+            return crc == NONE;
+        }
+
+        InputStream content(File generation) throws IOException {
+            return new LimitedInputStream(new FileInputStream(generation), length);
+        }
+
+        /**
+         * @return true if the checksum of the content matches, reading the whole content
+         */
+        boolean verify(File generation){
+            if(legacy())
+                return true;
+            CRC32 checksum = new CRC32();
+            byte[] buffer = new byte[8192];
+            try (InputStream in = new CheckedInputStream(content(generation), checksum)) {
+                while (in.read(buffer) != -1) ;
+            } catch (IOException e) {
+                return false;
+            }
+            return checksum.getValue() == crc;
+        }
+    }
+
+    static byte[] footer(long crc){
+        return (FOOTER_START + String.format("%08x", crc) + FOOTER_END).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Forces the folder of the file to disk, so that a file created or renamed in it survives a crash
+     */
+    static void syncFolder(File file){
+        File folder = file.getAbsoluteFile().getParentFile();
+        try (FileChannel channel = FileChannel.open(folder.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+            // not supported on every platform, the rename is still atomic
+        }
+    }
+
+    private static class LimitedInputStream extends FilterInputStream {
+        long remaining;
+
+        LimitedInputStream(InputStream in, long limit){
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(remaining <= 0)
+                return -1;
+            int b = super.read();
+            if(b != -1)
+                remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(remaining <= 0)
+                return -1;
+            int n = super.read(b, off, (int) Math.min(len, remaining));
+            if(n > 0)
+                remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+    }
+
+    /**
+     * Content of a generation checked against its footer as it is read
+     */
+    private static class VerifyingInputStream extends CheckedInputStream {
+        final File generation;
+        final long expected;
+        boolean verified;
+
+        VerifyingInputStream(File generation, Footer footer) throws IOException {
+            super(footer.content(generation), new CRC32());
+            this.generation = generation;
+            this.expected = footer.crc;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b == -1)
+                verify();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if(n == -1)
+                verify();
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                // a parser stops after the value it binds, the rest of the content still counts
+                byte[] buffer = new byte[8192];
+                while (!verified && read(buffer, 0, buffer.length) != -1) ;
+            } finally {
+                super.close();
+            }
+        }
+
+        private void verify() throws IOException {
+            if(verified)
+                return;
+            verified = true;
+            if(getChecksum().getValue() != expected)
+                throw new IOException("Checksum mismatch in " + generation.getPath());
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package it.polito.ezshop.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the StorageCodecs on a catalog of generated products: size of product.json and time to write
+ * and to load it, best of the measured rounds after the warm-up ones. The folders are created in the
+ * temporary directory and deleted at the end. From the command line:
+ * java it.polito.ezshop.model.StorageBenchmark [products] [rounds]
+ */
+public class StorageBenchmark {
+
+    static final int DEFAULT_PRODUCTS = 50000;
+    static final int DEFAULT_ROUNDS = 5;
+    static final int WARMUP_ROUNDS = 3;
+
+    /**
+     * Result of a codec: file size in bytes and best times in milliseconds
+     */
+    public static class Result {
+        public String name;
+        public long size;
+        public double writeMillis;
+        public double loadMillis;
+
+        @Override
+        public String toString(){
+            return String.format("%-6s size %10d bytes  write %8.1f ms  load %8.1f ms", name, size, writeMillis, loadMillis);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int products = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PRODUCTS;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+        List<ProductTypeModel> catalog = catalog(products);
+        Result json = run("json", StorageCodec.JSON, catalog, WARMUP_ROUNDS, rounds);
+        Result binary = run("binary", StorageCodec.BINARY, catalog, WARMUP_ROUNDS, rounds);
+        System.out.println(products + " products, best of " + rounds + " rounds");
+        System.out.println(json);
+        System.out.println(binary);
+        System.out.println(String.format("binary/json  size %.2f  write %.2f  load %.2f", (double) binary.size / json.size,
+                binary.writeMillis / json.writeMillis, binary.loadMillis / json.loadMillis));
+    }
+
+    /**
+     * @return products with distinct barcodes, descriptions and notes, some of them with a location
+     */
+    public static List<ProductTypeModel> catalog(int size){
+        List<ProductTypeModel> catalog = new ArrayList<>(size);
+        for (int i = 1; i <= size; i++) {
+            ProductTypeModel product = new ProductTypeModel(i, "Product description " + i, String.format("%012d", i),
+                    1 + (i % 1000) / 100., "note " + (i % 97));
+            product.setQuantity(i % 250);
+            if(i % 3 == 0)
+                product.setLocation((i % 40) + "-A-" + (i % 9));
+            catalog.add(product);
+        }
+        return catalog;
+    }
+
+    /**
+     * Writes and loads the catalog with the codec in a fresh folder, warmup rounds are not measured
+     */
+    public static Result run(String name, StorageCodec codec, List<ProductTypeModel> catalog, int warmup, int rounds) throws IOException {
+        File folder = Files.createTempDirectory("ezshop-" + name).toFile();
+        try {
+            JsonWrite writer = new JsonWrite(folder.getPath(), false, codec);
+            JsonRead reader = new JsonRead(folder.getPath());
+            Result result = new Result();
+            result.name = name;
+            result.writeMillis = Double.MAX_VALUE;
+            result.loadMillis = Double.MAX_VALUE;
+            for (int round = 0; round < warmup + rounds; round++) {
+                long start = System.nanoTime();
+                if(!writer.writeProducts(catalog))
+                    throw new IOException("Could not write the catalog in " + folder);
+                long written = System.nanoTime();
+                if(reader.parseProductType().size() != catalog.size())
+                    throw new IOException("Could not load the catalog from " + folder);
+                long loaded = System.nanoTime();
+                if(round >= warmup) {
+                    result.writeMillis = Math.min(result.writeMillis, (written - start) / 1e6);
+                    result.loadMillis = Math.min(result.loadMillis, (loaded - written) / 1e6);
+                }
+            }
+            result.size = new File(writer.ProductTypeFile).length();
+            writer.close();
+            return result;
+        } finally {
+            delete(folder);
+        }
+    }
+
+    private static void delete(File file){
+        File[] children = file.listFiles();
+        if(children != null)
+            for (File child : children)
+                delete(child);
+        if(!file.delete())
+            file.deleteOnExit();
+    }
+}
@@ -0,0 +1,56 @@
+package it.polito.ezshop.model;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Format of the snapshot files of the persistent folder. The persistence layer binds the entities through
+ * Jackson on the parser and the generator of the codec, so the format only decides how the tokens are
+ * laid out on disk. The format of a file is detected when it is read, a folder can hold files of both
+ * formats (e.g. after the configured codec changes, see StorageConverter). The journals stay json lines.
+ */
+public interface StorageCodec {
+
+    StorageCodec JSON = new JsonStorageCodec();
+    StorageCodec BINARY = new BinaryStorageCodec();
+
+    /**
+     * @return a generator writing to the stream, closing the generator closes the stream
+     */
+    JsonGenerator createGenerator(OutputStream out) throws IOException;
+
+    /**
+     * @return a parser reading from the stream, closing the parser closes the stream
+     */
+    JsonParser createParser(InputStream in) throws IOException;
+
+    /**
+     * Opens a parser over a snapshot in any format
+     */
+    static JsonParser open(InputStream in) throws IOException {
+        if(!in.markSupported())
+            in = new BufferedInputStream(in);
+        return detect(in).createParser(in);
+    }
+
+    /**
+     * @param in stream supporting mark, it is left at its current position
+     * @return the codec of the content of the stream, JSON if it is not binary
+     */
+    static StorageCodec detect(InputStream in) throws IOException {
+        byte[] header = new byte[BinaryStorageCodec.MAGIC.length];
+        in.mark(header.length);
+        int read = 0;
+        int n;
+        while(read < header.length && (n = in.read(header, read, header.length - read)) != -1)
+            read += n;
+        in.reset();
+        return Arrays.equals(header, BinaryStorageCodec.MAGIC) ? BINARY : JSON;
+    }
+}
@@ -0,0 +1,74 @@
+package it.polito.ezshop.model;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Converts the snapshot files of a persistent folder (ledger partitions included) to another StorageCodec.
+ * The tokens are copied one at a time, the entities are never bound. The journals are json in both formats
+ * and are left as they are. From the command line:
+ * java it.polito.ezshop.model.StorageConverter persistent binary
+ */
+public class StorageConverter {
+
+    static final List<String> SNAPSHOTS = Arrays.asList("product.json", "user.json", "customer.json", "order.json", "loyalty.json", "balance.json");
+
+    public static void main(String[] args) {
+        if(args.length != 2 || !Arrays.asList("json", "binary").contains(args[1])) {
+            System.err.println("usage: StorageConverter <folder> json|binary");
+            System.exit(2);
+        }
+        boolean converted = convert(args[0], args[1].equals("binary") ? StorageCodec.BINARY : StorageCodec.JSON);
+        System.exit(converted ? 0 : 1);
+    }
+
+    /**
+     * Rewrites every snapshot of the folder that is not already in the format of the codec
+     * @return false if a file could not be converted, the other files are converted anyway
+     */
+    public static boolean convert(String folder, StorageCodec codec){
+        ReentrantReadWriteLock lock = JsonCompactor.lockFor(folder);
+        lock.writeLock().lock();
+        try {
+            List<File> files = new ArrayList<>();
+            SNAPSHOTS.forEach((name) -> files.add(new File(folder, name)));
+            File[] ledger = new File(folder, "ledger").listFiles((dir, name) -> name.endsWith(".json"));
+            if(ledger != null)
+                files.addAll(Arrays.asList(ledger));
+            boolean outcome = true;
+            for (File file : files)
+                outcome &= convert(file, codec);
+            return outcome;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    static boolean convert(File file, StorageCodec codec){
+        if(file.length() == 0)
+            return true;
+        SnapshotFile snapshot = new SnapshotFile(file.getPath());
+        try (InputStream in = snapshot.openVerified()) {
+            if(StorageCodec.detect(in) == codec)
+                return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return snapshot.write((out) -> {
+            try (JsonParser parser = StorageCodec.open(snapshot.openVerified());
+                 JsonGenerator generator = codec.createGenerator(out)) {
+                while (parser.nextToken() != null)
+                    generator.copyCurrentStructure(parser);
+            }
+        });
+    }
+}
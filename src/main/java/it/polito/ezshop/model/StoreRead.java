@@ -0,0 +1,151 @@
+package it.polito.ezshop.model;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * JsonRead loading the shop from the EmbeddedStore of the folder. Besides the whole sections it offers
+ * point reads through the indexes of the store, a single entity is read from disk without loading the others.
+ * EzShopModel keeps the whole shop in memory and does not use them, they serve the tests and the tools that
+ * inspect a store without loading it.
+ */
+public class StoreRead extends JsonRead {
+
+    EmbeddedStore store;
+
+    public StoreRead(String Folder){
+        super(Folder);
+        this.store = EmbeddedStore.of(Folder);
+    }
+
+    @Override
+    public BalanceModel parseBalance(){
+        BalanceModel bal = new BalanceModel();
+        bind(DirtyTracker.ORDER_TRANSACTION, bal.getOrderTransactionMap(), OrderTransactionModel.class);
+        bind(DirtyTracker.RETURN, bal.getReturnTransactionMap(), ReturnTransactionModel.class);
+        bind(DirtyTracker.SALE, bal.getSaleTransactionMap(), SaleTransactionModel.class);
+        bind(DirtyTracker.CREDIT, bal.getCreditAndDebitsOperationMap(), BalanceOperationModel.class);
+        bal.getSaleTransactionMap().values().forEach(bal::track);
+        bal.getOrderTransactionMap().values().forEach(bal::track);
+        bal.getReturnTransactionMap().values().forEach(bal::track);
+        bal.getCreditAndDebitsOperationMap().values().forEach(bal::track);
+        return bal;
+    }
+
+    @Override
+    public List<ProductTypeModel> parseProductType(){
+        return list(DirtyTracker.PRODUCT, ProductTypeModel.class);
+    }
+
+    @Override
+    public List<UserModel> parseUsers(){
+        return list(DirtyTracker.USER, UserModel.class);
+    }
+
+    @Override
+    public List<CustomerModel> parseCustomers(){
+        return list(DirtyTracker.CUSTOMER, CustomerModel.class);
+    }
+
+    @Override
+    public List<OrderModel> parseOrders(){
+        return list(DirtyTracker.ORDER, OrderModel.class);
+    }
+
+    @Override
+    public Map<Integer, Integer> parseLoyalty(){
+        Map<Integer, Integer> cards = new HashMap<>();
+        store.values(DirtyTracker.LOYALTY).forEach((card, points) -> cards.put(Integer.valueOf(card), points.isNull() ? null : points.asInt()));
+        return cards;
+    }
+
+    /**
+     * @return the product with the barcode, null if there is none
+     */
+    public ProductTypeModel getProduct(String barCode){
+        return bind(store.get(DirtyTracker.PRODUCT, barCode), ProductTypeModel.class);
+    }
+
+    /**
+     * @return the product with the id, null if there is none
+     */
+    public ProductTypeModel getProductById(int productId){
+        String barCode = store.barCodeOf(productId);
+        return barCode == null ? null : getProduct(barCode);
+    }
+
+    /**
+     * @return the customer with the id, null if there is none
+     */
+    public CustomerModel getCustomer(int id){
+        return bind(store.get(DirtyTracker.CUSTOMER, String.valueOf(id)), CustomerModel.class);
+    }
+
+    /**
+     * @return the balance operation with the id, bound to the class of its section, null if there is none
+     */
+    public BalanceOperationModel getOperation(int balanceId){
+        Map.Entry<String, JsonNode> operation = store.operation(balanceId);
+        return operation == null ? null : bind(operation.getValue(), operationClass(operation.getKey()));
+    }
+
+    /**
+     * @param from first day, null for no lower bound
+     * @param to last day, null for no upper bound
+     * @return the balance operations dated between from and to, by date
+     */
+    public List<BalanceOperationModel> getOperations(LocalDate from, LocalDate to){
+        List<BalanceOperationModel> operations = new ArrayList<>();
+        for (Integer balanceId : store.operationsBetween(from, to)) {
+            BalanceOperationModel operation = getOperation(balanceId);
+            if(operation != null)
+                operations.add(operation);
+        }
+        return operations;
+    }
+
+    private static Class<? extends BalanceOperationModel> operationClass(String section){
+        switch (section) {
+            case DirtyTracker.ORDER_TRANSACTION:
+                return OrderTransactionModel.class;
+            case DirtyTracker.RETURN:
+                return ReturnTransactionModel.class;
+            case DirtyTracker.SALE:
+                return SaleTransactionModel.class;
+            default:
+                return BalanceOperationModel.class;
+        }
+    }
+
+    private <T> List<T> list(String section, Class<T> type){
+        List<T> entities = new ArrayList<>();
+        for (JsonNode value : store.values(section).values()) {
+            T entity = bind(value, type);
+            if(entity != null)
+                entities.add(entity);
+        }
+        return entities;
+    }
+
+    private <T> void bind(String section, Map<Integer, T> map, Class<T> type){
+        store.values(section).forEach((key, value) -> {
+            T entity = bind(value, type);
+            if(entity != null)
+                map.put(Integer.valueOf(key), entity);
+        });
+    }
+
+    private static <T> T bind(JsonNode value, Class<T> type){
+        if(value == null)
+            return null;
+        try {
+            return JsonCodec.readerFor(type).readValue(value);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package it.polito.ezshop.model;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * JsonWrite storing the shop in the EmbeddedStore of the folder instead of the json files. Only the dirty
+ * entities are written (one record each), and write() commits the dirty entities of every section as a
+ * single transaction, so that e.g. the stock of the products sold and the sale closing them cannot be
+ * persisted one without the other. The stock quantities are part of the product records, there is no
+ * quantity file. The ledger partitions stay in the ledger subfolder.
+ */
+public class StoreWrite extends JsonWrite {
+
+    EmbeddedStore store;
+    // true while a compaction triggered by a commit is waiting or running
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    public StoreWrite(String Folder){
+        this.store = EmbeddedStore.of(Folder);
+        this.codec = StorageCodec.JSON;
+        this.ledger = new LedgerArchive(Folder + "/ledger");
+    }
+
+    @Override
+    public boolean reset(){
+        return store.clear() && ledger.clear();
+    }
+
+    @Override
+    public boolean write(Map<String, ProductTypeModel> ProductMap, List<UserModel> UserList, Map<Integer, CustomerModel> CustomerMap,
+                         Map<Integer, OrderModel> OrderMap, Map<Integer, Integer> cardList, BalanceModel balance, DirtyTracker dirty){
+        List<EmbeddedStore.Change> changes = new ArrayList<>();
+        boolean ok = changes(DirtyTracker.PRODUCT, dirty, keyed(ProductMap), changes)
+                && changes(DirtyTracker.USER, dirty, keyed(UserList, UserModel::getId), changes)
+                && changes(DirtyTracker.CUSTOMER, dirty, keyed(CustomerMap), changes)
+                && changes(DirtyTracker.ORDER, dirty, keyed(OrderMap), changes)
+                && changes(DirtyTracker.LOYALTY, dirty, keyed(cardList), changes)
+                && balanceChanges(balance, dirty, changes);
+        return ok && commit(changes);
+    }
+
+    @Override
+    public boolean writeProducts(Map<String, ProductTypeModel> ProductMap, DirtyTracker dirty){
+        return commit(DirtyTracker.PRODUCT, dirty, keyed(ProductMap));
+    }
+
+    @Override
+    public boolean writeUsers(List<UserModel> UserList, DirtyTracker dirty){
+        return commit(DirtyTracker.USER, dirty, keyed(UserList, UserModel::getId));
+    }
+
+    @Override
+    public boolean writeCustomers(Map<Integer, CustomerModel> CustomerMap, DirtyTracker dirty){
+        return commit(DirtyTracker.CUSTOMER, dirty, keyed(CustomerMap));
+    }
+
+    @Override
+    public boolean writeOrders(Map<Integer, OrderModel> OrderMap, DirtyTracker dirty){
+        return commit(DirtyTracker.ORDER, dirty, keyed(OrderMap));
+    }
+
+    @Override
+    public boolean writeLoyaltyCards(Map<Integer, Integer> cardList, DirtyTracker dirty){
+        return commit(DirtyTracker.LOYALTY, dirty, keyed(cardList));
+    }
+
+    @Override
+    public boolean writeBalance(BalanceModel balance, DirtyTracker dirty){
+        List<EmbeddedStore.Change> changes = new ArrayList<>();
+        return balanceChanges(balance, dirty, changes) && commit(changes);
+    }
+
+    @Override
+    public boolean writeProducts(List<ProductTypeModel> ProductList){
+        return replace(DirtyTracker.PRODUCT, keyed(ProductList, ProductTypeModel::getBarCode));
+    }
+
+    @Override
+    public boolean writeUsers(List<UserModel> UserList){
+        return replace(DirtyTracker.USER, keyed(UserList, UserModel::getId));
+    }
+
+    @Override
+    public boolean writeCustomers(List<CustomerModel> CustomerList){
+        return replace(DirtyTracker.CUSTOMER, keyed(CustomerList, CustomerModel::getId));
+    }
+
+    @Override
+    public boolean writeOrders(List<OrderModel> OrderList){
+        return replace(DirtyTracker.ORDER, keyed(OrderList, OrderModel::getOrderId));
+    }
+
+    @Override
+    public boolean writeLoyaltyCards(Map<Integer, Integer> cardList){
+        return replace(DirtyTracker.LOYALTY, keyed(cardList));
+    }
+
+    @Override
+    public boolean writeBalance(BalanceModel balance){
+        DirtyTracker all = new DirtyTracker();
+        EmbeddedStore.BALANCE_SECTIONS.forEach(all::markAll);
+        return writeBalance(balance, all);
+    }
+
+    /**
+     * Rewrites the store file on the background compaction thread if it holds mostly superseded records
+     * @return a future completing once the compaction is done
+     */
+    @Override
+    public Future<?> compact(){
+        return JsonCompactor.executor.submit(() -> !store.shouldCompact() || store.compact());
+    }
+
+    /**
+     * Commits the changes as a single transaction and schedules a compaction if the file grew too much
+     */
+    private boolean commit(List<EmbeddedStore.Change> changes){
+        if(!store.commit(changes))
+            return false;
+        if(store.shouldCompact() && scheduled.compareAndSet(false, true))
+            JsonCompactor.executor.execute(() -> {
+                scheduled.set(false);
+                if(store.shouldCompact())
+                    store.compact();
+            });
+        return true;
+    }
+
+    private <T> boolean commit(String section, DirtyTracker dirty, Map<String, T> current){
+        List<EmbeddedStore.Change> changes = new ArrayList<>();
+        return changes(section, dirty, current, changes) && commit(changes);
+    }
+
+    private <T> boolean replace(String section, Map<String, T> current){
+        DirtyTracker all = new DirtyTracker();
+        all.markAll(section);
+        return commit(section, all, current);
+    }
+
+    private boolean balanceChanges(BalanceModel balance, DirtyTracker dirty, List<EmbeddedStore.Change> changes){
+        return changes(DirtyTracker.ORDER_TRANSACTION, dirty, keyed(balance.getOrderTransactionMap()), changes)
+                && changes(DirtyTracker.RETURN, dirty, keyed(balance.getReturnTransactionMap()), changes)
+                && changes(DirtyTracker.SALE, dirty, keyed(balance.getSaleTransactionMap()), changes)
+                && changes(DirtyTracker.CREDIT, dirty, keyed(balance.getCreditAndDebitsOperationMap()), changes);
+    }
+
+    /**
+     * Adds the changes of the dirty entities of the section: a put for the ones in current, a delete
+     * for the other ones. If the whole section is dirty the keys of the store missing from current are deleted.
+     * @return false if an entity could not be serialized
+     */
+    private <T> boolean changes(String section, DirtyTracker dirty, Map<String, T> current, List<EmbeddedStore.Change> changes){
+        if(!dirty.isDirty(section))
+            return true;
+        ObjectWriter entityWriter = JsonCodec.entityWriter;
+        Collection<String> keys = dirty.keys(section);
+        if(keys == null) {
+            keys = new LinkedHashSet<>(current.keySet());
+            keys.addAll(store.keys(section));
+        }
+        try {
+            for (String key : keys)
+                changes.add(new EmbeddedStore.Change(section, key,
+                        current.containsKey(key) ? entityWriter.writeValueAsString(current.get(key)) : null));
+        } catch (JsonProcessingException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+}
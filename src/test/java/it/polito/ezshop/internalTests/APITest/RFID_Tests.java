@@ -9,6 +9,7 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.Assert.*;
@@ -70,6 +71,63 @@ public class RFID_Tests {
         Assert.assertFalse(ez.addProductToSaleRFID(sale_id, "000000001002"));
     }
 
+    @Test
+    public void testAddBasketToSaleRFID() throws InvalidPasswordException, InvalidUsernameException, InvalidQuantityException, UnauthorizedException, InvalidPricePerUnitException, InvalidProductCodeException, InvalidOrderIdException, InvalidRFIDException, InvalidLocationException, InvalidTransactionIdException {
+        assertThrows(UnauthorizedException.class, ()->ez.addProductsToSaleRFID(1, Arrays.asList(RFID)));
+        login();
+        int ord_id = ez.issueOrder(barcode, 3, 2.5);
+        assertTrue(ez.payOrder(ord_id));
+        assertTrue(ez.recordOrderArrivalRFID(ord_id, "000000001000"));
+        int sale_id = ez.startSaleTransaction();
+        assertTrue(ez.addProductToSaleRFID(sale_id, "000000001002"));
+        List<Boolean> outcomes = ez.addProductsToSaleRFID(sale_id,
+                Arrays.asList("000000001000", "000000001001", "000000001000", "000000001002", wrongRFID, "12345", RFID));
+        // repeated, already in the sale, unknown, malformed
+        assertEquals(Arrays.asList(true, true, false, false, false, false, true), outcomes);
+        assertEquals(0, ez.getProductTypeByBarCode(barcode).getQuantity(), 0);
+        assertTrue(ez.endSaleTransaction(sale_id));
+        assertEquals(4 * 0.5, ez.getSaleTransaction(sale_id).getPrice(), 0.01);
+        assertEquals(1, ez.getSaleTransaction(sale_id).getEntries().size());
+
+        assertEquals(Arrays.asList(false), ez.addProductsToSaleRFID(100, Arrays.asList(RFID)));
+        assertThrows(InvalidTransactionIdException.class, ()->ez.addProductsToSaleRFID(-1, Arrays.asList(RFID)));
+    }
+
+    @Test
+    public void testDuplicatedRFID() throws InvalidPasswordException, InvalidUsernameException, InvalidQuantityException, UnauthorizedException, InvalidPricePerUnitException, InvalidProductCodeException, InvalidOrderIdException, InvalidRFIDException, InvalidLocationException, InvalidTransactionIdException {
+        login();
+        int ord_id = ez.issueOrder(barcode, 2, 2.5);
+        assertTrue(ez.payOrder(ord_id));
+        assertTrue(ez.recordOrderArrivalRFID(ord_id, "000000002000"));
+        int sale_id = ez.startSaleTransaction();
+        // every scan of the basket gets its own outcome, only the first scan of a tag is added
+        List<Boolean> outcomes = ez.addProductsToSaleRFID(sale_id, Arrays.asList("000000002000", "000000002000", "000000002001", "000000002000"));
+        assertEquals(Arrays.asList(true, false, true, false), outcomes);
+        // the unit of the startup stays in stock
+        assertEquals(1, ez.getProductTypeByBarCode(barcode).getQuantity(), 0);
+    }
+
+    @Test
+    public void testLargeRFID() throws InvalidPasswordException, InvalidUsernameException, InvalidQuantityException, UnauthorizedException, InvalidPricePerUnitException, InvalidProductCodeException, InvalidOrderIdException, InvalidRFIDException, InvalidLocationException, InvalidTransactionIdException, InvalidPaymentException {
+        login();
+        // tags above Integer.MAX_VALUE
+        int ord_id = ez.issueOrder(barcode, 3, 2.5);
+        assertTrue(ez.payOrder(ord_id));
+        assertTrue(ez.recordOrderArrivalRFID(ord_id, "900000001000"));
+        int sale_id = ez.startSaleTransaction();
+        assertTrue(ez.addProductToSaleRFID(sale_id, "900000001000"));
+        assertTrue(ez.addProductsToSaleRFID(sale_id, Arrays.asList("900000001001")).get(0));
+        assertTrue(ez.deleteProductFromSaleRFID(sale_id, "900000001001"));
+        assertTrue(ez.endSaleTransaction(sale_id));
+        ez.receiveCashPayment(sale_id, 10);
+        int rId = ez.startReturnTransaction(sale_id);
+        assertTrue(ez.returnProductRFID(rId, "900000001000"));
+        assertTrue(ez.endReturnTransaction(rId, true));
+        int sale2 = ez.startSaleTransaction();
+        assertTrue(ez.addProductToSaleRFID(sale2, "900000001000"));
+        assertTrue(ez.addProductToSaleRFID(sale2, "900000001001"));
+    }
+
     @Test
     public void testAddProductToSaleRFID() throws InvalidPasswordException, InvalidUsernameException, InvalidRFIDException, InvalidQuantityException, InvalidTransactionIdException, UnauthorizedException, InvalidPaymentException {
         login();
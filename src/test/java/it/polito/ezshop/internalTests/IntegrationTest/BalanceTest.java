@@ -7,12 +7,14 @@ import org.junit.Test;
 
 
 import java.time.LocalDate;
+import java.time.YearMonth;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNull;
+import static org.junit.Assert.*;
 
 public class BalanceTest {
     BalanceModel b = new BalanceModel();
@@ -128,8 +130,193 @@ public class BalanceTest {
         assertNull(result.orElse(null));
         result = b.getTransactionById(-10);
         assertNull(result.orElse(null));
+        assertNull(b.getTransactionById(null).orElse(null));
+
+        // the index follows a new balanceId
+        credit.setBalanceId(100);
+        assertEquals(credit, b.getTransactionById(100).orElse(null));
+        assertNull(b.getTransactionById(debit.getBalanceId() - 1).orElse(null));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void readOnlyOperationsTest(){
+        BalanceModel b = new BalanceModel();
+        b.addBalanceOperation(new BalanceOperationModel("CREDIT", 50., LocalDate.now()));
+        assertEquals(1, b.streamAllBalanceOperations().count());
+        b.getAllBalanceOperations().clear();
+    }
+
+    @Test
+    public void runningBalanceTest() throws Exception {
+        BalanceModel b = new BalanceModel();
+        BalanceOperationModel credit = new BalanceOperationModel("CREDIT", 50., LocalDate.now());
+        SaleTransactionModel sale = new SaleTransactionModel(sm1);
+        b.addBalanceOperation(credit);
+        b.addSaleTransactionModel(sale.getBalanceId(), sale);
+        assertEquals(50, b.computeBalance(), 0.01);
+
+        // changes of a resident operation are accounted
+        credit.setMoney(70.);
+        sale.setTicketPayment(new CashPaymentModel(sale.computeCost(), false, 150));
+        assertEquals(210, b.computeBalance(), 0.01);
+        credit.setType("RETURN");
+        assertEquals(140, b.computeBalance(), 0.01);
+        credit.setType("CREDIT");
+        assertTrue(b.audit());
+        assertTrue(b.auditAsync().get());
+
+        // a drift of the running total is corrected by the audit
+        double[] money = {10};
+        BalanceOperationModel drifting = new BalanceOperationModel("CREDIT", 10., LocalDate.now()) {
+            @Override
+            public double getRealMoney() {
+                return money[0];
+            }
+        };
+        b.addBalanceOperation(drifting);
+        money[0] = 20;
+        assertEquals(220, b.computeBalance(), 0.01);
+        assertEquals(0, b.getAuditCorrections());
+        assertFalse(b.auditAsync().get());
+        assertEquals(230, b.computeBalance(), 0.01);
+        assertEquals(1, b.getAuditCorrections());
+        assertEquals(10, b.getAuditDrift(), 0.01);
+        assertTrue(b.audit());
+        assertEquals(1, b.getAuditCorrections());
+    }
+
+    @Test
+    public void dateIndexTest(){
+        BalanceModel b = new BalanceModel();
+        LocalDate today = LocalDate.of(2021, 6, 15);
+        BalanceOperationModel op1 = new BalanceOperationModel("CREDIT", 10., today);
+        BalanceOperationModel op2 = new BalanceOperationModel("CREDIT", 20., today.minusDays(10));
+        BalanceOperationModel op3 = new BalanceOperationModel("DEBIT", -5., today.plusDays(10));
+        BalanceOperationModel op4 = new BalanceOperationModel("CREDIT", 30., today);
+        Arrays.asList(op1, op2, op3, op4).forEach(b::addBalanceOperation);
+
+        // by day, in insertion order within a day
+        assertEquals(Arrays.asList(op2, op1, op4, op3), b.getCreditsAndDebits(null, null));
+        assertEquals(Arrays.asList(op1, op4), b.getCreditsAndDebits(today, today));
+        assertEquals(Arrays.asList(op1, op4, op3), b.getCreditsAndDebits(today, null));
+        assertEquals(Arrays.asList(op2, op1, op4), b.getCreditsAndDebits(today, today.minusDays(20)));
+        assertTrue(b.getCreditsAndDebits(today.plusDays(11), null).isEmpty());
+        assertEquals(Arrays.asList(op4, op3), b.getCreditsAndDebits(null, null, 2, 5));
+        assertTrue(b.getCreditsAndDebits(null, null, 4, 5).isEmpty());
+        assertEquals(Arrays.asList(op2), b.streamCreditsAndDebits(null, today).limit(1).collect(Collectors.toList()));
+
+        // a new date moves the operation
+        op2.setDate(today.plusDays(20));
+        assertEquals(Arrays.asList(op1, op4, op3, op2), b.getCreditsAndDebits(null, null));
+        assertTrue(b.getCreditsAndDebits(null, today.minusDays(1)).isEmpty());
+    }
+
+    @Test
+    public void rollupTest(){
+        BalanceModel b = new BalanceModel();
+        BalanceOperationModel credit = new BalanceOperationModel("CREDIT", 100., LocalDate.of(2021, 1, 31));
+        BalanceOperationModel debit = new BalanceOperationModel("DEBIT", -30., LocalDate.of(2021, 2, 1));
+        OrderTransactionModel order = new OrderTransactionModel(om1);
+        order.setDate(LocalDate.of(2021, 2, 15));
+        SaleTransactionModel sale = new SaleTransactionModel(sm1);
+        sale.setDate(LocalDate.of(2021, 3, 1));
+        b.addBalanceOperation(credit);
+        b.addBalanceOperation(debit);
+        b.addOrderTransaction(order);
+        b.addSaleTransactionModel(sale.getBalanceId(), sale);
+        sale.setTicketPayment(new CashPaymentModel(sale.computeCost(), false, 150));
+
+        assertEquals(3, b.getMonthlyRollups(null, null).size());
+        Rollup february = b.getMonthlyRollups(YearMonth.of(2021, 2), YearMonth.of(2021, 2)).get(YearMonth.of(2021, 2));
+        assertEquals(2, february.count);
+        assertEquals(-30, february.debits, 0.01);
+        assertEquals(-100, february.orders, 0.01);
+        assertEquals(-130, february.total, 0.01);
+
+        // whole months and the days at the ends
+        Rollup all = b.getRollup(null, null);
+        assertEquals(4, all.count);
+        assertEquals(b.computeBalance(), all.total, 0.01);
+        assertEquals(140, all.sales, 0.01);
+        Rollup period = b.getRollup(LocalDate.of(2021, 3, 1), LocalDate.of(2021, 1, 31));
+        assertEquals(4, period.count);
+        assertEquals(110, period.total, 0.01);
+        assertEquals(1, b.getRollup(LocalDate.of(2021, 2, 2), LocalDate.of(2021, 2, 28)).count);
+        assertEquals(3, b.getRollup(LocalDate.of(2021, 2, 1), null).count);
+        assertEquals(0, b.getRollup(LocalDate.of(2021, 3, 2), null).count);
+        assertEquals(3, b.getDailyRollups(LocalDate.of(2021, 2, 1), LocalDate.of(2021, 3, 1)).size());
+
+        // changes of the operations move their money between the periods
+        debit.setDate(LocalDate.of(2021, 3, 10));
+        credit.setMoney(50.);
+        assertEquals(1, b.getRollup(LocalDate.of(2021, 2, 1), LocalDate.of(2021, 2, 28)).count);
+        assertEquals(110, b.getRollup(LocalDate.of(2021, 3, 1), null).total, 0.01);
+        assertEquals(50, b.getRollup(null, LocalDate.of(2021, 1, 31)).credits, 0.01);
+        assertTrue(b.audit());
     }
 
+    @Test
+    public void returnRollupTest(){
+        BalanceModel b = new BalanceModel();
+        LocalDate day = LocalDate.of(2021, 4, 10);
+        ReturnTransactionModel retur = new ReturnTransactionModel(0., day, null);
+        b.addReturnTransactionModel(1, retur);
+        assertEquals(0, b.getRollup(day, day).returns, 0.01);
 
+        // paying the return updates the rollups through the balance
+        retur.setPayment(new CashPaymentModel(25., true, 0));
+        assertEquals(25, b.getRollup(day, day).returns, 0.01);
+        assertEquals(25, b.getMonthlyRollups(YearMonth.of(2021, 4), YearMonth.of(2021, 4)).get(YearMonth.of(2021, 4)).returns, 0.01);
+        assertEquals(0, b.getRollup(day, day).total, 0.01);
+        assertTrue(b.audit());
 
+        // a drift of a field that does not change the total is corrected too
+        double[] money = {10};
+        ReturnTransactionModel drifting = new ReturnTransactionModel(10., day, null) {
+            @Override
+            public double getRealMoney() {
+                return money[0];
+            }
+        };
+        b.addReturnTransactionModel(2, drifting);
+        money[0] = 15;
+        assertEquals(35, b.getRollup(day, day).returns, 0.01);
+        assertFalse(b.audit());
+        assertEquals(40, b.getRollup(day, day).returns, 0.01);
+        assertTrue(b.audit());
+    }
+
+    @Test
+    public void columnsTest(){
+        BalanceModel b = new BalanceModel();
+        BalanceOperationModel credit = new BalanceOperationModel("CREDIT", 100.25, LocalDate.of(2021, 1, 31));
+        BalanceOperationModel debit = new BalanceOperationModel("DEBIT", -30., LocalDate.of(2021, 2, 1));
+        BalanceOperationModel late = new BalanceOperationModel("CREDIT", 10., LocalDate.of(2021, 3, 5));
+        OrderTransactionModel order = new OrderTransactionModel(om1);
+        order.setDate(LocalDate.of(2021, 2, 15));
+        b.addBalanceOperation(late);
+        b.addBalanceOperation(credit);
+        b.addBalanceOperation(debit);
+        b.addOrderTransaction(order);
+
+        LedgerColumns columns = b.toColumns();
+        assertEquals(4, columns.size());
+        // rows by day
+        assertArrayEquals(new int[]{credit.getBalanceId(), debit.getBalanceId(), order.getBalanceId(), late.getBalanceId()},
+                columns.balanceIds(null, null));
+        assertEquals(Math.round(b.computeBalance() * 100), columns.balanceCents(null, null));
+        assertEquals(-13000, columns.balanceCents(LocalDate.of(2021, 2, 1), LocalDate.of(2021, 2, 28)));
+        assertEquals(11025, columns.cents(null, null, "CREDIT"));
+        assertEquals(2, columns.count(LocalDate.of(2021, 2, 1), LocalDate.of(2021, 3, 4)));
+        assertEquals(0, columns.count(LocalDate.of(2021, 3, 6), null));
+        assertEquals(0, columns.balanceIds(LocalDate.of(2021, 2, 2), LocalDate.of(2021, 2, 14)).length);
+
+        // same totals as the rollups
+        Rollup rollup = columns.rollup(LocalDate.of(2021, 1, 15), LocalDate.of(2021, 2, 20));
+        Rollup expected = b.getRollup(LocalDate.of(2021, 1, 15), LocalDate.of(2021, 2, 20));
+        assertEquals(expected.count, rollup.count);
+        assertEquals(expected.credits, rollup.credits, 0.001);
+        assertEquals(expected.orders, rollup.orders, 0.001);
+        assertEquals(expected.total, rollup.total, 0.001);
+    }
 }
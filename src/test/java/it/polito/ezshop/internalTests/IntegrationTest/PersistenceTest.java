@@ -1,16 +1,28 @@
 package it.polito.ezshop.internalTests.IntegrationTest;
 
+import it.polito.ezshop.data.BalanceOperation;
+import it.polito.ezshop.data.EZShop;
 import it.polito.ezshop.data.Order;
 import it.polito.ezshop.exceptions.InvalidRoleException;
 import it.polito.ezshop.model.*;
 import org.junit.*;
 
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.time.LocalDate;
+import java.time.YearMonth;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -197,4 +209,639 @@ public class PersistenceTest {
         assertArrayEquals(cards.keySet().toArray(), read.parseLoyalty().keySet().toArray());
     }
 
+    @Test
+    public void journalTest() throws IOException {
+        JsonWrite journalWrite = new JsonWrite("persistent", true);
+        ProductTypeModel p1 = new ProductTypeModel(1,"MockDescription", "MockCode", 2.0, "MockNote");
+        ProductTypeModel p2 = new ProductTypeModel(2,"MockDescription2", "MockCode2", 3.0, "MockNote2");
+        ProductTypeModel p3 = new ProductTypeModel(3,"MockDescription3", "MockCode3", 4.0, "MockNote3");
+        List<ProductTypeModel> l = new ArrayList<>(Arrays.asList(p1, p2, p3));
+        assertTrue(journalWrite.writeProducts(l));
+        p2.setQuantity(10);
+        l.remove(p3);
+        assertTrue(journalWrite.writeProducts(l));
+        assertTrue(journalWrite.writeProducts(l));
+
+        assertTrue(new File("persistent/product.journal").exists());
+        assertEquals(0, new File("persistent/product.json").length());
+        assertArrayEquals(l.stream().map(ProductTypeModel::getBarCode).toArray(), read.parseProductType().stream().map(ProductTypeModel::getBarCode).toArray());
+        assertArrayEquals(l.stream().map(ProductTypeModel::getQuantity).toArray(), read.parseProductType().stream().map(ProductTypeModel::getQuantity).toArray());
+
+        HashMap<Integer, Integer> cards = new HashMap<>();
+        cards.put(1, null);
+        assertTrue(journalWrite.writeLoyaltyCards(cards));
+        cards.put(1, 2);
+        assertTrue(journalWrite.writeLoyaltyCards(cards));
+        assertEquals(Integer.valueOf(2), read.parseLoyalty().get(1));
+
+        assertTrue(write.writeProducts(l));
+        assertFalse(new File("persistent/product.journal").exists());
+        assertArrayEquals(l.stream().map(ProductTypeModel::getBarCode).toArray(), read.parseProductType().stream().map(ProductTypeModel::getBarCode).toArray());
+    }
+
+    @Test
+    public void tornJournalTest() throws IOException {
+        JsonJournal journal = new JsonJournal("persistent/product.json");
+        assertTrue(journal.append(Arrays.asList(JsonJournal.putRecord(null, "a", "1"), JsonJournal.putRecord(null, "b", "2"))));
+        // crash in the middle of the second record
+        try (RandomAccessFile file = new RandomAccessFile(journal.getFile(), "rw")) {
+            file.setLength(file.length() - 5);
+        }
+        assertTrue(journal.append(Collections.singletonList(JsonJournal.putRecord(null, "c", "3"))));
+        List<JsonNode> records = journal.read(new ObjectMapper());
+        assertEquals(Arrays.asList("a", "c"), records.stream().map((record) -> record.get("key").asText()).collect(Collectors.toList()));
+        assertTrue(journal.clear());
+    }
+
+    @Test
+    public void compactionTest() throws Exception {
+        JsonWrite journalWrite = new JsonWrite("persistent", true);
+        ProductTypeModel p1 = new ProductTypeModel(1,"MockDescription", "MockCode", 2.0, "MockNote");
+        ProductTypeModel p2 = new ProductTypeModel(2,"MockDescription2", "MockCode2", 3.0, "MockNote2");
+        List<ProductTypeModel> l = new ArrayList<>(Arrays.asList(p1, p2));
+        assertTrue(journalWrite.writeProducts(l));
+        BalanceModel balance = new BalanceModel();
+        balance.addBalanceOperation(new BalanceOperationModel("CREDIT",20., LocalDate.now()));
+        assertTrue(journalWrite.writeBalance(balance));
+
+        journalWrite.compact().get();
+        assertFalse(new File("persistent/product.journal").exists());
+        assertFalse(new File("persistent/product.journal.sealed").exists());
+        assertTrue(new File("persistent/product.json").length() > 0);
+        assertArrayEquals(l.stream().map(ProductTypeModel::getBarCode).toArray(), read.parseProductType().stream().map(ProductTypeModel::getBarCode).toArray());
+        assertEquals(20., read.parseBalance().computeBalance(), 0.01);
+
+        p1.setQuantity(5);
+        l.remove(p2);
+        assertTrue(journalWrite.writeProducts(l));
+        assertArrayEquals(l.stream().map(ProductTypeModel::getQuantity).toArray(), read.parseProductType().stream().map(ProductTypeModel::getQuantity).toArray());
+    }
+
+    @Test
+    public void asyncWriteTest() throws IOException {
+        AsyncJsonWrite asyncWrite = new AsyncJsonWrite("persistent", true, AsyncJsonWrite.Durability.ON_DEMAND, 0);
+        ProductTypeModel p1 = new ProductTypeModel(1,"MockDescription", "MockCode", 2.0, "MockNote");
+        List<ProductTypeModel> l = new ArrayList<>(Arrays.asList(p1));
+        for (int i = 0; i < 10; i++) {
+            p1.setQuantity(i);
+            assertTrue(asyncWrite.writeProducts(l));
+        }
+        assertTrue(read.parseProductType().isEmpty());
+        assertTrue(asyncWrite.flush());
+        assertEquals(Integer.valueOf(9), read.parseProductType().get(0).getQuantity());
+        asyncWrite.close();
+
+        asyncWrite = new AsyncJsonWrite("persistent", false, AsyncJsonWrite.Durability.GROUP_COMMIT, 5);
+        p1.setQuantity(100);
+        assertTrue(asyncWrite.writeProducts(l));
+        assertTrue(asyncWrite.flush());
+        assertEquals(Integer.valueOf(100), read.parseProductType().get(0).getQuantity());
+        asyncWrite.close();
+        // the writer thread is gone once closed
+        assertTrue(Thread.getAllStackTraces().keySet().stream().noneMatch((t) -> t.getName().equals("ezshop-writer")));
+    }
+
+    @Test
+    public void asyncQuantityTest() throws IOException {
+        AsyncJsonWrite asyncWrite = new AsyncJsonWrite("persistent", true, AsyncJsonWrite.Durability.ON_DEMAND, 0);
+        QuantityFile quantities = new QuantityFile("persistent/quantity.bin");
+        // the quantity waits for the records it belongs to
+        assertTrue(asyncWrite.storeQuantity(1, 7));
+        assertNull(quantities.get(1));
+        assertTrue(asyncWrite.flush());
+        assertEquals(Integer.valueOf(7), quantities.get(1));
+        assertTrue(asyncWrite.removeQuantity(1));
+        assertEquals(Integer.valueOf(7), quantities.get(1));
+        asyncWrite.close();
+        assertNull(quantities.get(1));
+
+        // after close the stores are synchronous
+        assertTrue(asyncWrite.storeQuantity(1, 3));
+        assertEquals(Integer.valueOf(3), quantities.get(1));
+        asyncWrite.close();
+
+        // in SYNC mode too the quantities follow the journal records of the next write
+        asyncWrite = new AsyncJsonWrite("persistent", true, AsyncJsonWrite.Durability.SYNC, 0);
+        assertTrue(asyncWrite.storeQuantity(1, 5));
+        assertEquals(Integer.valueOf(3), quantities.get(1));
+        assertTrue(asyncWrite.flush());
+        assertEquals(Integer.valueOf(5), quantities.get(1));
+        asyncWrite.close();
+        quantities.close();
+    }
+
+    @Test
+    public void streamingCompactionTest() throws Exception {
+        JsonWrite journalWrite = new JsonWrite("persistent", true);
+        HashMap<Integer, Integer> cards = new HashMap<>();
+        cards.put(1, null);
+        cards.put(2, 5);
+        assertTrue(write.writeLoyaltyCards(cards));
+        cards.remove(2);
+        cards.put(1, 7);
+        cards.put(3, null);
+        assertTrue(journalWrite.writeLoyaltyCards(cards));
+        List<ProductTypeModel> l = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            l.add(new ProductTypeModel(i + 1, "MockDescription" + i, "MockCode" + i, 2.0, "MockNote"));
+        assertTrue(write.writeProducts(l));
+        l.remove(50);
+        l.get(0).setQuantity(3);
+        assertTrue(journalWrite.writeProducts(l));
+
+        journalWrite.compact().get();
+        assertFalse(new File("persistent/loyalty.journal").exists());
+        assertFalse(new File("persistent/product.journal").exists());
+        assertEquals(cards, read.parseLoyalty());
+        List<ProductTypeModel> stored = read.parseProductType();
+        assertArrayEquals(l.stream().map(ProductTypeModel::getBarCode).toArray(), stored.stream().map(ProductTypeModel::getBarCode).toArray());
+        assertEquals(Integer.valueOf(3), stored.get(0).getQuantity());
+    }
+
+    @Test
+    public void snapshotFallbackTest() throws IOException {
+        ProductTypeModel p1 = new ProductTypeModel(1,"MockDescription", "MockCode", 2.0, "MockNote");
+        List<ProductTypeModel> l = new ArrayList<>(Arrays.asList(p1));
+        assertTrue(write.writeProducts(l));
+        p1.setQuantity(10);
+        assertTrue(write.writeProducts(l));
+        assertTrue(new File("persistent/product.json.prev").exists());
+        assertFalse(new File("persistent/product.json.tmp").exists());
+        assertEquals(Integer.valueOf(10), read.parseProductType().get(0).getQuantity());
+
+        // a torn write of the current generation is detected by the checksum
+        File current = new File("persistent/product.json");
+        byte[] content = Files.readAllBytes(current.toPath());
+        content[1] = (byte) ' ';
+        Files.write(current.toPath(), content);
+        List<ProductTypeModel> stored = read.parseProductType();
+        assertEquals(1, stored.size());
+        assertEquals(Integer.valueOf(0), stored.get(0).getQuantity());
+
+        write.reset();
+        assertFalse(new File("persistent/product.json.prev").exists());
+        assertTrue(read.parseProductType().isEmpty());
+    }
+
+    @Test
+    public void truncatedSnapshotTest() throws IOException {
+        ProductTypeModel p1 = new ProductTypeModel(1,"MockDescription", "MockCode", 2.0, "MockNote");
+        List<ProductTypeModel> l = new ArrayList<>(Arrays.asList(p1));
+        assertTrue(write.writeProducts(l));
+        p1.setQuantity(10);
+        assertTrue(write.writeProducts(l));
+
+        // a current generation cut in half has no footer, the previous one is read
+        File current = new File("persistent/product.json");
+        byte[] content = Files.readAllBytes(current.toPath());
+        Files.write(current.toPath(), Arrays.copyOf(content, content.length / 2));
+        List<ProductTypeModel> stored = read.parseProductType();
+        assertEquals(1, stored.size());
+        assertEquals(Integer.valueOf(0), stored.get(0).getQuantity());
+
+        // and so does an empty one
+        Files.write(current.toPath(), new byte[0]);
+        stored = read.parseProductType();
+        assertEquals(1, stored.size());
+        assertEquals(Integer.valueOf(0), stored.get(0).getQuantity());
+
+        // the single value snapshots fall back the same way
+        BalanceModel balance = new BalanceModel();
+        balance.addBalanceOperation(new BalanceOperationModel("CREDIT", 20., LocalDate.now()));
+        assertTrue(write.writeBalance(balance));
+        balance.addBalanceOperation(new BalanceOperationModel("CREDIT", 30., LocalDate.now()));
+        assertTrue(write.writeBalance(balance));
+        HashMap<Integer, Integer> cards = new HashMap<>();
+        cards.put(1, 5);
+        assertTrue(write.writeLoyaltyCards(cards));
+        cards.put(2, 7);
+        assertTrue(write.writeLoyaltyCards(cards));
+        for (String name : Arrays.asList("balance.json", "loyalty.json")) {
+            File file = new File("persistent", name);
+            content = Files.readAllBytes(file.toPath());
+            Files.write(file.toPath(), Arrays.copyOf(content, content.length / 2));
+        }
+        assertEquals(20., read.parseBalance().computeBalance(), 0.01);
+        assertEquals(1, read.parseLoyalty().size());
+        Files.write(new File("persistent/balance.json").toPath(), new byte[0]);
+        assertEquals(20., read.parseBalance().computeBalance(), 0.01);
+    }
+
+    @Test
+    public void corruptedSnapshotTest() throws Exception {
+        HashMap<Integer, Integer> cards = new HashMap<>();
+        cards.put(1, 5);
+        assertTrue(write.writeLoyaltyCards(cards));
+        cards.put(2, 7);
+        assertTrue(write.writeLoyaltyCards(cards));
+
+        // the content still parses, the checksum is only known once the whole generation has been read
+        File current = new File("persistent/loyalty.json");
+        String content = new String(Files.readAllBytes(current.toPath()), StandardCharsets.UTF_8);
+        Files.write(current.toPath(), content.replace(":7", ":8").getBytes(StandardCharsets.UTF_8));
+        assertEquals(Collections.singletonMap(1, 5), read.parseLoyalty());
+
+        // a compaction folds the journal on the previous generation as well
+        JsonWrite journalWrite = new JsonWrite("persistent", true);
+        cards.put(3, null);
+        assertTrue(journalWrite.writeLoyaltyCards(cards));
+        journalWrite.compact().get();
+        assertFalse(new File("persistent/loyalty.journal").exists());
+        assertEquals(cards, read.parseLoyalty());
+    }
+
+    @Test
+    public void parallelLoadTest() throws Exception {
+        UserModel user1 = new UserModel("Paolo", "Rabs", "Administrator");
+        UserModel user2 = new UserModel("Manuel", "man", "Administrator");
+        assertTrue(write.writeUsers(new ArrayList<>(Arrays.asList(user1, user2))));
+        BalanceModel balance = new BalanceModel();
+        BalanceOperationModel op = new BalanceOperationModel("CREDIT",20., LocalDate.now());
+        balance.addBalanceOperation(op);
+        assertTrue(write.writeBalance(balance));
+        // a stale counter must be raised again by the load
+        new UserModel("Omar", "mar", "Administrator");
+
+        EzShopModel model = new EzShopModel();
+        model.loadEZShop();
+        assertEquals(new HashSet<>(Arrays.asList("user", "customer", "product", "balance", "order", "loyalty")), model.getLoadTimes().keySet());
+        assertEquals(user2.getId() + 1, (int) new UserModel("Andrea", "and", "Administrator").getId());
+        assertEquals(op.getBalanceId() + 1, new BalanceOperationModel("CREDIT", 1., LocalDate.now()).getBalanceId());
+        assertEquals(20., model.getBalance().computeBalance(), 0.01);
+        model.flush();
+    }
+
+    @Test
+    public void durabilityPropertyTest() throws Exception {
+        System.setProperty("ezshop.durability", "on_demand");
+        try {
+            EZShop shop = new EZShop();
+            assertEquals(AsyncJsonWrite.Durability.ON_DEMAND, shop.model.getDurability());
+            assertTrue(shop.createUser("Andrea", "and", "Administrator") > 0);
+            assertTrue(read.parseUsers().isEmpty());
+            assertTrue(shop.model.flush());
+            assertEquals(1, read.parseUsers().size());
+            shop.model.close();
+        } finally {
+            System.clearProperty("ezshop.durability");
+        }
+        assertEquals(AsyncJsonWrite.Durability.SYNC, new EzShopModel().getDurability());
+    }
+
+    @Test
+    public void codecPropertyTest() {
+        System.setProperty("ezshop.storageCodec", "binary");
+        try {
+            EzShopModel model = new EzShopModel();
+            assertSame(StorageCodec.BINARY, model.getStorageCodec());
+            model.close();
+        } finally {
+            System.clearProperty("ezshop.storageCodec");
+        }
+        EzShopModel model = new EzShopModel();
+        assertSame(StorageCodec.JSON, model.getStorageCodec());
+        model.close();
+    }
+
+    @Test
+    public void embeddedStorePropertyTest() throws Exception {
+        System.setProperty("ezshop.embeddedStore", "true");
+        try {
+            EZShop shop = new EZShop();
+            assertTrue(shop.model.isEmbeddedStore());
+            assertTrue(shop.createUser("Andrea", "and", "Administrator") > 0);
+            assertTrue(new File("persistent/store.db").exists());
+            assertEquals(1, new StoreRead("persistent").parseUsers().size());
+            assertTrue(read.parseUsers().isEmpty());
+            shop.model.close();
+            // the reloaded shop comes from the store
+            assertNotNull(new EZShop().login("Andrea", "and"));
+        } finally {
+            System.clearProperty("ezshop.embeddedStore");
+            assertTrue(new StoreWrite("persistent").reset());
+        }
+        assertFalse(new EzShopModel().isEmbeddedStore());
+    }
+
+    @Test
+    public void codecTest() {
+        JsonCodec.warmUp();
+        BalanceModel balance = new BalanceModel();
+        List<TicketEntryModel> tlist = new ArrayList<>();
+        tlist.add(new TicketEntryModel("code123", "description", 2, 2.));
+        TicketModel ticket = new TicketModel(1, "PAYED", 4., tlist);
+        SaleTransactionModel sale = new SaleTransactionModel(4., LocalDate.now(), LocalDate.now().toString(), ticket, 0);
+        sale.setTicketPayment(new CashPaymentModel(4., false, 10.));
+        balance.addSaleTransactionModel(sale.getBalanceId(), sale);
+        assertTrue(write.writeBalance(balance));
+        BalanceModel balance_read = read.parseBalance();
+        assertEquals(1, balance_read.getSaleTransactionMap().size());
+        assertEquals(4., balance_read.getSaleTransactionMap().get(sale.getBalanceId()).getTicket().getPayment().getAmount(), 0.01);
+    }
+
+    @Test
+    public void dirtyTrackingTest() throws IOException {
+        JsonWrite journalWrite = new JsonWrite("persistent", true);
+        DirtyTracker dirty = new DirtyTracker();
+        HashMap<String, ProductTypeModel> products = new HashMap<>();
+        ProductTypeModel p1 = new ProductTypeModel(1,"MockDescription", "MockCode", 2.0, "MockNote");
+        ProductTypeModel p2 = new ProductTypeModel(2,"MockDescription2", "MockCode2", 3.0, "MockNote2");
+        products.put(p1.getBarCode(), p1);
+        products.put(p2.getBarCode(), p2);
+
+        // nothing dirty, nothing written
+        assertTrue(journalWrite.writeProducts(products, dirty));
+        assertFalse(new File("persistent/product.journal").exists());
+
+        dirty.mark(DirtyTracker.PRODUCT, p1.getBarCode());
+        assertTrue(journalWrite.writeProducts(products, dirty));
+        assertEquals(1, read.parseProductType().size());
+        dirty.clear();
+
+        p2.setQuantity(7);
+        products.remove(p1.getBarCode());
+        dirty.mark(DirtyTracker.PRODUCT, p1.getBarCode());
+        dirty.mark(DirtyTracker.PRODUCT, p2.getBarCode());
+        assertTrue(journalWrite.writeProducts(products, dirty));
+        List<ProductTypeModel> stored = read.parseProductType();
+        assertEquals(1, stored.size());
+        assertEquals(Integer.valueOf(7), stored.get(0).getQuantity());
+        dirty.clear();
+
+        BalanceModel balance = new BalanceModel();
+        BalanceOperationModel op = new BalanceOperationModel("CREDIT",20., LocalDate.now());
+        balance.addBalanceOperation(op);
+        dirty.mark(DirtyTracker.CREDIT, op.getBalanceId());
+        assertTrue(journalWrite.writeBalance(balance, dirty));
+        assertEquals(20., read.parseBalance().computeBalance(), 0.01);
+
+        dirty.markAll(DirtyTracker.PRODUCT);
+        assertNull(dirty.keys(DirtyTracker.PRODUCT));
+        assertTrue(write.writeProducts(products, dirty));
+        assertFalse(new File("persistent/product.journal").exists());
+        assertEquals(1, read.parseProductType().size());
+    }
+
+    @Test
+    public void ledgerArchiveTest() {
+        BalanceModel balance = new BalanceModel();
+        BalanceOperationModel oldCredit = new BalanceOperationModel("CREDIT", 50., LocalDate.of(2020, 1, 15));
+        BalanceOperationModel oldDebit = new BalanceOperationModel("DEBIT", -20., LocalDate.of(2020, 2, 3));
+        BalanceOperationModel credit = new BalanceOperationModel("CREDIT", 5., LocalDate.now());
+        List<TicketEntryModel> tlist = new ArrayList<>();
+        tlist.add(new TicketEntryModel("code123", "description", 2, 2.));
+        SaleTransactionModel payed = new SaleTransactionModel(4., LocalDate.of(2020, 2, 10), "", new TicketModel(1, "PAYED", 4., tlist), 0);
+        SaleTransactionModel open = new SaleTransactionModel(4., LocalDate.of(2020, 2, 11), "", new TicketModel(2, "CLOSED", 4., tlist), 0);
+        balance.addBalanceOperation(oldCredit);
+        balance.addBalanceOperation(oldDebit);
+        balance.addBalanceOperation(credit);
+        balance.addSaleTransactionModel(1, payed);
+        balance.addSaleTransactionModel(2, open);
+        double total = balance.computeBalance();
+
+        LedgerArchive ledger = new LedgerArchive("persistent/ledger");
+        DirtyTracker dirty = new DirtyTracker();
+        assertTrue(ledger.archive(balance, YearMonth.of(2021, 1), dirty));
+        // the sale not payed yet stays resident
+        assertEquals(new HashSet<>(Arrays.asList(credit.getBalanceId())), balance.getCreditAndDebitsOperationMap().keySet());
+        assertEquals(new HashSet<>(Arrays.asList(2)), balance.getSaleTransactionMap().keySet());
+        assertEquals(new HashSet<>(Arrays.asList(String.valueOf(oldCredit.getBalanceId()), String.valueOf(oldDebit.getBalanceId()))), dirty.keys(DirtyTracker.CREDIT));
+        assertEquals(new HashSet<>(Arrays.asList(YearMonth.of(2020, 1), YearMonth.of(2020, 2))), ledger.getMonths());
+        assertEquals(total, balance.computeBalance(), 0.01);
+
+        // a new archive answers from the index, partitions are read only when needed
+        LedgerArchive reopened = new LedgerArchive("persistent/ledger");
+        BalanceModel resident = new BalanceModel();
+        assertTrue(reopened.archive(resident, YearMonth.of(2021, 1), new DirtyTracker()));
+        assertEquals(34., resident.computeBalance(), 0.01);
+        assertFalse(reopened.isLoaded(YearMonth.of(2020, 1)));
+        List<Integer> january = resident.getCreditsAndDebits(LocalDate.of(2020, 1, 1), LocalDate.of(2020, 1, 31))
+                .stream().map(BalanceOperation::getBalanceId).collect(Collectors.toList());
+        assertEquals(Arrays.asList(oldCredit.getBalanceId()), january);
+        assertTrue(reopened.isLoaded(YearMonth.of(2020, 1)));
+        assertFalse(reopened.isLoaded(YearMonth.of(2020, 2)));
+        assertEquals(payed.getBalanceId(), resident.getSaleTransactionById(1).getBalanceId());
+        assertTrue(reopened.isLoaded(YearMonth.of(2020, 2)));
+        // restored operations are resident and not counted twice
+        assertTrue(resident.getSaleTransactionMap().containsKey(1));
+        assertFalse(reopened.contains("sale", 1));
+        assertEquals(34., resident.computeBalance(), 0.01);
+        assertEquals(3, resident.getCreditsAndDebits(null, null).size());
+        assertEquals(Math.max(oldDebit.getBalanceId(), payed.getBalanceId()), reopened.maxBalanceId());
+        // lookup by balanceId through the index of the archive
+        reopened.evict();
+        assertEquals(oldDebit.getBalanceId(), resident.getTransactionById(oldDebit.getBalanceId()).get().getBalanceId());
+        assertFalse(reopened.isLoaded(YearMonth.of(2020, 1)));
+        assertTrue(resident.getCreditAndDebitsOperationMap().containsKey(oldDebit.getBalanceId()));
+        assertNull(reopened.find(oldDebit.getBalanceId()));
+        assertFalse(resident.getTransactionById(credit.getBalanceId()).isPresent());
+        assertEquals(3, resident.getAllBalanceOperations().size());
+        // rollups of the archived months come from the index, restored operations are in the resident ones
+        LedgerArchive indexed = new LedgerArchive("persistent/ledger");
+        BalanceModel empty = new BalanceModel();
+        assertTrue(indexed.archive(empty, YearMonth.of(2021, 1), new DirtyTracker()));
+        assertEquals(3, empty.getRollup(null, null).count);
+        assertEquals(34., empty.getRollup(null, null).total, 0.01);
+        assertEquals(-20., empty.getMonthlyRollups(YearMonth.of(2020, 2), null).get(YearMonth.of(2020, 2)).debits, 0.01);
+        assertFalse(indexed.isLoaded(YearMonth.of(2020, 2)));
+        assertEquals(3, resident.getRollup(null, null).count);
+        assertEquals(34., resident.getRollup(LocalDate.of(2020, 1, 15), LocalDate.of(2020, 2, 10)).total, 0.01);
+    }
+
+    @Test
+    public void unreadablePartitionTest() throws IOException {
+        BalanceModel balance = new BalanceModel();
+        BalanceOperationModel oldCredit = new BalanceOperationModel("CREDIT", 50., LocalDate.of(2020, 1, 15));
+        balance.addBalanceOperation(oldCredit);
+        assertTrue(new LedgerArchive("persistent/ledger").archive(balance, YearMonth.of(2021, 1), new DirtyTracker()));
+
+        // the only generation of the partition is corrupted
+        File partition = new File("persistent/ledger/2020-01.json");
+        Files.write(partition.toPath(), "[{\"broken".getBytes());
+        byte[] corrupted = Files.readAllBytes(partition.toPath());
+        BalanceModel resident = new BalanceModel();
+        BalanceOperationModel lateCredit = new BalanceOperationModel("CREDIT", 10., LocalDate.of(2020, 1, 20));
+        resident.addBalanceOperation(lateCredit);
+        assertFalse(new LedgerArchive("persistent/ledger").archive(resident, YearMonth.of(2021, 1), new DirtyTracker()));
+        // the partition is not overwritten and the operation stays resident
+        assertArrayEquals(corrupted, Files.readAllBytes(partition.toPath()));
+        assertTrue(resident.getCreditAndDebitsOperationMap().containsKey(lateCredit.getBalanceId()));
+    }
+
+    @Test
+    public void binaryCodecTest() throws Exception {
+        JsonWrite binaryWrite = new JsonWrite("persistent", false, StorageCodec.BINARY);
+        List<ProductTypeModel> l = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+            l.add(new ProductTypeModel(i + 1, "MockDescription", "MockCode" + i, 2.5 + i, "MockNote"));
+        assertTrue(write.writeProducts(l));
+        long jsonLength = new File("persistent/product.json").length();
+        assertTrue(binaryWrite.writeProducts(l));
+        assertTrue(new File("persistent/product.json").length() < jsonLength / 2);
+        List<ProductTypeModel> stored = read.parseProductType();
+        assertArrayEquals(l.stream().map(ProductTypeModel::getBarCode).toArray(), stored.stream().map(ProductTypeModel::getBarCode).toArray());
+        assertArrayEquals(l.stream().map(ProductTypeModel::getPricePerUnit).toArray(), stored.stream().map(ProductTypeModel::getPricePerUnit).toArray());
+
+        BalanceModel balance = new BalanceModel();
+        List<TicketEntryModel> tlist = new ArrayList<>();
+        tlist.add(new TicketEntryModel("code123", "description", 2, 2.));
+        SaleTransactionModel sale = new SaleTransactionModel(4., LocalDate.of(2021, 5, 20), "", new TicketModel(1, "PAYED", 4., tlist), 0.1);
+        sale.setTicketPayment(new CashPaymentModel(4., false, 10.));
+        balance.addSaleTransactionModel(1, sale);
+        balance.addBalanceOperation(new BalanceOperationModel("CREDIT", 20., LocalDate.now()));
+        assertTrue(binaryWrite.writeBalance(balance));
+        HashMap<Integer, Integer> cards = new HashMap<>();
+        cards.put(1, null);
+        cards.put(2, 5);
+        assertTrue(binaryWrite.writeLoyaltyCards(cards));
+        BalanceModel balance_read = read.parseBalance();
+        assertEquals(balance.computeBalance(), balance_read.computeBalance(), 0.01);
+        assertEquals(LocalDate.of(2021, 5, 20), balance_read.getSaleTransactionById(1).getDate());
+        assertEquals(0.1, balance_read.getSaleTransactionById(1).getDiscountRate(), 0.001);
+        assertEquals(cards, read.parseLoyalty());
+
+        // the journal is folded into a binary snapshot
+        JsonWrite journalWrite = new JsonWrite("persistent", true, StorageCodec.BINARY);
+        l.get(0).setQuantity(3);
+        l.remove(1);
+        assertTrue(journalWrite.writeProducts(l));
+        journalWrite.compact().get();
+        assertFalse(new File("persistent/product.journal").exists());
+        stored = read.parseProductType();
+        assertEquals(l.size(), stored.size());
+        assertEquals(Integer.valueOf(3), stored.get(0).getQuantity());
+
+        // back to json, the content does not change
+        assertTrue(StorageConverter.convert("persistent", StorageCodec.JSON));
+        assertEquals('[', Files.readAllBytes(new File("persistent/product.json").toPath())[0]);
+        assertArrayEquals(l.stream().map(ProductTypeModel::getBarCode).toArray(), read.parseProductType().stream().map(ProductTypeModel::getBarCode).toArray());
+        assertEquals(balance.computeBalance(), read.parseBalance().computeBalance(), 0.01);
+        assertEquals(cards, read.parseLoyalty());
+        assertTrue(StorageConverter.convert("persistent", StorageCodec.BINARY));
+        assertEquals('E', Files.readAllBytes(new File("persistent/balance.json").toPath())[0]);
+        assertEquals(Integer.valueOf(3), read.parseProductType().get(0).getQuantity());
+    }
+
+    @Test
+    public void storageBenchmarkTest() throws IOException {
+        List<ProductTypeModel> catalog = StorageBenchmark.catalog(2000);
+        StorageBenchmark.Result json = StorageBenchmark.run("json", StorageCodec.JSON, catalog, 0, 1);
+        StorageBenchmark.Result binary = StorageBenchmark.run("binary", StorageCodec.BINARY, catalog, 0, 1);
+        // the timings depend on the machine, the sizes do not
+        assertTrue(binary.size > 0);
+        assertTrue(binary.size < json.size * 0.6);
+    }
+
+    @Test
+    public void quantityFileTest() {
+        QuantityFile quantities = new QuantityFile("persistent/quantity.bin");
+        assertNull(quantities.get(1));
+        assertTrue(quantities.store(1, 10));
+        assertTrue(quantities.store(2, 0));
+        assertTrue(quantities.store(1, 9));
+        // the file grows to the slot of the product
+        assertTrue(quantities.store(5000, 3));
+        assertEquals(Integer.valueOf(9), quantities.get(1));
+
+        QuantityFile reopened = new QuantityFile("persistent/quantity.bin");
+        assertEquals(Integer.valueOf(9), reopened.get(1));
+        assertEquals(Integer.valueOf(3), reopened.get(5000));
+        assertNull(reopened.get(4999));
+        assertTrue(reopened.remove(2));
+        assertNull(quantities.get(2));
+
+        ProductTypeModel p1 = new ProductTypeModel(1, "MockDescription", "MockCode", 2.0, "MockNote");
+        ProductTypeModel p2 = new ProductTypeModel(2, "MockDescription2", "MockCode2", 3.0, "MockNote2");
+        p2.setQuantity(4);
+        reopened.apply(Arrays.asList(p1, p2));
+        assertEquals(Integer.valueOf(9), p1.getQuantity());
+        assertEquals(Integer.valueOf(4), p2.getQuantity());
+
+        assertTrue(quantities.clear());
+        assertNull(reopened.get(1));
+        assertNull(reopened.get(5000));
+    }
+
+    @Test
+    public void embeddedStoreTest() {
+        StoreWrite storeWrite = new StoreWrite("persistent");
+        StoreRead storeRead = new StoreRead("persistent");
+        ProductTypeModel p1 = new ProductTypeModel(1, "MockDescription", "MockCode", 2.0, "MockNote");
+        ProductTypeModel p2 = new ProductTypeModel(2, "MockDescription2", "MockCode2", 3.0, "MockNote2");
+        p1.setQuantity(10);
+        HashMap<String, ProductTypeModel> products = new HashMap<>();
+        products.put(p1.getBarCode(), p1);
+        products.put(p2.getBarCode(), p2);
+        BalanceModel balance = new BalanceModel();
+        BalanceOperationModel old = new BalanceOperationModel("CREDIT", 50., LocalDate.of(2020, 1, 15));
+        List<TicketEntryModel> tlist = new ArrayList<>();
+        tlist.add(new TicketEntryModel("MockCode", "MockDescription", 2, 2.));
+        SaleTransactionModel sale = new SaleTransactionModel(4., LocalDate.now(), LocalDate.now().toString(), new TicketModel(1, "PAYED", 4., tlist), 0);
+        balance.addBalanceOperation(old);
+        balance.addSaleTransactionModel(1, sale);
+        HashMap<Integer, Integer> cards = new HashMap<>();
+        cards.put(1, null);
+        cards.put(2, 30);
+        HashMap<Integer, CustomerModel> customers = new HashMap<>();
+        customers.put(1, new CustomerModel("Mock", 1));
+
+        // stock and ledger go in the same transaction
+        DirtyTracker dirty = new DirtyTracker();
+        dirty.markAll(DirtyTracker.PRODUCT);
+        dirty.markAll(DirtyTracker.CUSTOMER);
+        dirty.markAll(DirtyTracker.LOYALTY);
+        dirty.mark(DirtyTracker.CREDIT, old.getBalanceId());
+        dirty.mark(DirtyTracker.SALE, 1);
+        assertTrue(storeWrite.write(products, new ArrayList<>(), customers, new HashMap<>(), cards, balance, dirty));
+
+        assertEquals(new HashSet<>(Arrays.asList("MockCode", "MockCode2")),
+                storeRead.parseProductType().stream().map(ProductTypeModel::getBarCode).collect(Collectors.toSet()));
+        assertEquals(cards, storeRead.parseLoyalty());
+        BalanceModel read = storeRead.parseBalance();
+        assertEquals(balance.computeBalance(), read.computeBalance(), 0.01);
+        assertEquals(2, read.getAllBalanceOperations().size());
+
+        // point reads through the indexes
+        assertEquals(Integer.valueOf(10), storeRead.getProductById(1).getQuantity());
+        assertNull(storeRead.getProductById(3));
+        assertEquals("Mock", storeRead.getCustomer(1).getCustomerName());
+        assertTrue(storeRead.getOperation(sale.getBalanceId()) instanceof SaleTransactionModel);
+        assertEquals(Arrays.asList(old.getBalanceId()), storeRead.getOperations(LocalDate.of(2020, 1, 1), LocalDate.of(2020, 1, 31))
+                .stream().map(BalanceOperation::getBalanceId).collect(Collectors.toList()));
+        assertEquals(2, storeRead.getOperations(null, null).size());
+
+        // row level writes, the deleted product leaves the productId index
+        p1.setQuantity(9);
+        products.remove(p2.getBarCode());
+        dirty = new DirtyTracker();
+        dirty.mark(DirtyTracker.PRODUCT, p1.getBarCode());
+        dirty.mark(DirtyTracker.PRODUCT, p2.getBarCode());
+        assertTrue(storeWrite.writeProducts(products, dirty));
+        assertEquals(Integer.valueOf(9), storeRead.getProduct("MockCode").getQuantity());
+        assertNull(storeRead.getProductById(2));
+        assertEquals(1, storeRead.parseProductType().size());
+
+        assertTrue(storeWrite.reset());
+        assertTrue(storeRead.parseProductType().isEmpty());
+    }
+
+    @Test
+    public void storeCompactionTest() throws Exception {
+        StoreWrite storeWrite = new StoreWrite("persistent");
+        assertTrue(storeWrite.reset());
+        EmbeddedStore store = EmbeddedStore.of("persistent");
+        char[] note = new char[4096];
+        Arrays.fill(note, 'x');
+        String value = "\"" + new String(note) + "\"";
+        // the commits never compact on the caller thread
+        for (int i = 0; i < 300; i++)
+            assertTrue(store.commit(Collections.singletonList(new EmbeddedStore.Change(DirtyTracker.PRODUCT, "MockCode", value))));
+        long size = store.size();
+        assertTrue(size > 1 << 20);
+        storeWrite.compact().get();
+        assertTrue(store.size() < size / 100);
+        assertNotNull(store.get(DirtyTracker.PRODUCT, "MockCode"));
+        assertTrue(storeWrite.reset());
+    }
+
 }
@@ -4,6 +4,9 @@ import it.polito.ezshop.model.SaleModel;
 import it.polito.ezshop.model.TicketEntryModel;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 import static org.junit.Assert.*;
 
 
@@ -59,4 +62,53 @@ public class SaleModelTest {
         sale.addProduct(t1);
         assertEquals(70, sale.computeCost(), 0.01);
     }
+
+    @Test
+    public void TestLineIndex(){
+        SaleModel sale = new SaleModel();
+        TicketEntryModel t1 = new TicketEntryModel(barCode, "dummy", 10, 2);
+        TicketEntryModel t2 = new TicketEntryModel(barCode2, "dummy", 10, 3);
+        assertTrue(sale.addProduct(t1));
+        assertTrue(sale.addProduct(t2));
+        assertSame(t2, sale.getLine(barCode2));
+        assertTrue(sale.setDiscountRateForProduct(barCode2, 0.5));
+        assertEquals(0.5, t2.getDiscountRate(), 0.001);
+        assertFalse(sale.setDiscountRateForProduct("dummy", 0.5));
+        assertTrue(sale.removeProduct(barCode, 10));
+        assertNull(sale.getLine(barCode));
+        assertEquals(1, sale.getProductList().size());
+
+        ArrayList<TicketEntryModel> list = new ArrayList<>(Arrays.asList(t1, t2));
+        sale.setProductList(list);
+        assertSame(t1, sale.getLine(barCode));
+        assertSame(list, sale.getProductList());
+    }
+
+    @Test
+    public void TestRunningTotal(){
+        SaleModel sale = new SaleModel();
+        TicketEntryModel t1 = new TicketEntryModel(barCode, "dummy", 10, 2);
+        TicketEntryModel t2 = new TicketEntryModel(barCode2, "dummy", 10, 3);
+        assertEquals(0, sale.computeCost(), 0.001);
+        sale.addProduct(t1);
+        sale.addProduct(t2);
+        sale.addProduct(new TicketEntryModel(barCode, "dummy", 5, 2));
+        assertEquals(60, sale.computeCost(), 0.001);
+        sale.setDiscountRateForProduct(barCode2, 0.5);
+        assertEquals(45, sale.computeCost(), 0.001);
+        sale.removeProduct(barCode, 5);
+        assertEquals(35, sale.computeCost(), 0.001);
+        sale.setDiscountRateForSale(0.5);
+        assertEquals(17.5, sale.computeCost(), 0.001);
+        sale.removeProduct(barCode, 10);
+        assertEquals(7.5, sale.computeCost(), 0.001);
+        assertTrue(sale.isSubtotalConsistent());
+
+        // a line changed outside of the sale is detected
+        t2.addAmount(2);
+        assertFalse(sale.isSubtotalConsistent());
+        sale.setProductList(new ArrayList<>(Arrays.asList(t2)));
+        assertTrue(sale.isSubtotalConsistent());
+        assertEquals(9, sale.computeCost(), 0.001);
+    }
 }
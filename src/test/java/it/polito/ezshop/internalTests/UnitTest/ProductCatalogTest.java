@@ -0,0 +1,139 @@
+package it.polito.ezshop.internalTests.UnitTest;
+
+import it.polito.ezshop.model.ProductCatalog;
+import it.polito.ezshop.model.ProductTypeModel;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ProductCatalogTest {
+
+    @Test
+    public void idIndexTest(){
+        ProductTypeModel p1 = new ProductTypeModel(1, "MockDescription", "MockCode", 2.0, "MockNote");
+        ProductTypeModel p2 = new ProductTypeModel(2, "MockDescription2", "MockCode2", 3.0, "MockNote2");
+        ProductCatalog catalog = new ProductCatalog(Arrays.asList(p1, p2));
+        assertEquals(2, catalog.size());
+        assertSame(p1, catalog.getById(1));
+        assertSame(p2, catalog.get("MockCode2"));
+        assertNull(catalog.getById(3));
+
+        // barcode change: remove and put again
+        catalog.remove(p1.getBarCode());
+        p1.setBarCode("NewCode");
+        catalog.put(p1.getBarCode(), p1);
+        assertSame(p1, catalog.getById(1));
+        assertFalse(catalog.containsKey("MockCode"));
+
+        // replacing a barcode drops the id of the old product
+        ProductTypeModel p3 = new ProductTypeModel(3, "MockDescription3", "MockCode2", 4.0, "MockNote3");
+        assertSame(p2, catalog.put(p3.getBarCode(), p3));
+        assertNull(catalog.getById(2));
+        assertSame(p3, catalog.getById(3));
+
+        assertSame(p1, catalog.remove("NewCode"));
+        assertNull(catalog.getById(1));
+        catalog.clear();
+        assertNull(catalog.getById(3));
+        assertTrue(catalog.isEmpty());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void readOnlyViewsTest(){
+        ProductCatalog catalog = new ProductCatalog(Arrays.asList(new ProductTypeModel(1, "MockDescription", "MockCode", 2.0, "MockNote")));
+        catalog.values().clear();
+    }
+
+    @Test
+    public void locationIndexTest(){
+        ProductTypeModel p1 = new ProductTypeModel(1, "MockDescription", "MockCode", 2.0, "MockNote");
+        ProductTypeModel p2 = new ProductTypeModel(2, "MockDescription2", "MockCode2", 3.0, "MockNote2");
+        ProductTypeModel p3 = new ProductTypeModel(3, "MockDescription3", "MockCode3", 4.0, "MockNote3");
+        p1.setLocation("2-b-1");
+        ProductCatalog catalog = new ProductCatalog(Arrays.asList(p1, p2, p3));
+        assertSame(p1, catalog.getByLocation("2-b-1"));
+        // positions are normalized
+        assertFalse(catalog.relocate(p2, "02-b-01"));
+        assertTrue(catalog.relocate(p2, "1-c-3"));
+        assertTrue(catalog.relocate(p3, "2-a-5"));
+        assertEquals("1-c-3", p2.getLocation());
+
+        assertEquals(Arrays.asList(p2, p3, p1), catalog.getByAisle(1, 2));
+        assertEquals(Arrays.asList(p3, p1), catalog.getByAisle(2, 2));
+        assertEquals(Arrays.asList(p3), catalog.getByRack(2, "a", "a"));
+        assertTrue(catalog.getByAisle(3, 1).isEmpty());
+
+        // the old slot is freed
+        assertTrue(catalog.relocate(p1, null));
+        assertNull(catalog.getByLocation("2-b-1"));
+        assertTrue(catalog.relocate(p2, "2-b-1"));
+        assertNull(catalog.getByLocation("1-c-3"));
+        catalog.remove(p2.getBarCode());
+        assertNull(catalog.getByLocation("2-b-1"));
+    }
+
+    @Test
+    public void descriptionSearchTest(){
+        ProductTypeModel p1 = new ProductTypeModel(1, "fresh milk", "MockCode", 2.0, "MockNote");
+        ProductTypeModel p2 = new ProductTypeModel(2, "milk chocolate", "MockCode2", 3.0, "MockNote2");
+        ProductTypeModel p3 = new ProductTypeModel(3, "ok", "MockCode3", 4.0, "MockNote3");
+        ProductCatalog catalog = new ProductCatalog(Arrays.asList(p1, p2, p3));
+        // prefix matches first
+        assertEquals(Arrays.asList(p2, p1), catalog.searchDescription("milk"));
+        assertEquals(Arrays.asList(p2), catalog.searchDescription("k c"));
+        assertTrue(catalog.searchDescription("Milk").isEmpty());
+        assertTrue(catalog.searchDescription("milky").isEmpty());
+        // shorter than a trigram
+        assertEquals(Arrays.asList(p3), catalog.searchDescription("ok"));
+        assertEquals(Arrays.asList(p3, p2), catalog.searchDescription("o"));
+        assertEquals(3, catalog.searchDescription(null).size());
+        assertEquals(Arrays.asList(p1), catalog.searchDescription("milk", 1, 5));
+        assertTrue(catalog.searchDescription("milk", 2, 5).isEmpty());
+
+        // a new description is indexed when the product is put again
+        catalog.remove(p1.getBarCode());
+        p1.setProductDescription("skimmed milk");
+        catalog.put(p1.getBarCode(), p1);
+        assertTrue(catalog.searchDescription("fresh").isEmpty());
+        assertEquals(Arrays.asList(p1), catalog.searchDescription("skim"));
+    }
+
+    @Test
+    public void rfidIndexTest(){
+        ProductTypeModel p1 = new ProductTypeModel(1, "MockDescription", "MockCode", 2.0, "MockNote");
+        ProductTypeModel p2 = new ProductTypeModel(2, "MockDescription2", "MockCode2", 3.0, "MockNote2");
+        p1.add_rfids("000000001000", 100);
+        ProductCatalog catalog = new ProductCatalog(Arrays.asList(p1, p2));
+        assertSame(p1, catalog.getByRfid(1000));
+        assertSame(p1, catalog.getByRfid(1099));
+        assertNull(catalog.getByRfid(1100));
+        assertFalse(catalog.isRfidFree(950, 51));
+        assertTrue(catalog.isRfidFree(950, 50));
+        assertTrue(catalog.isRfidFree(1100, 50));
+
+        catalog.addRfids(p2, 1100, 50);
+        assertSame(p2, catalog.getByRfid(1100));
+        assertSame(p1, catalog.getByRfid(1099));
+        assertFalse(catalog.isRfidFree(1090, 5));
+
+        // a sold tag splits the range of its product
+        assertSame(p1, catalog.takeRfid(1050));
+        assertNull(catalog.getByRfid(1050));
+        assertNull(catalog.takeRfid(1050));
+        assertSame(p1, catalog.getByRfid(1051));
+        assertSame(p1, catalog.takeRfid(1000));
+        assertSame(p1, catalog.getByRfid(1001));
+        assertTrue(catalog.isRfidFree(1050, 1));
+        // and comes back merged
+        catalog.addRfids(p1, 1050, 1);
+        assertEquals(1, p1.getRFIDset().rangeCount());
+        assertSame(p1, catalog.getByRfid(1050));
+        assertSame(p1, catalog.getByRfid(1001));
+
+        catalog.remove(p1.getBarCode());
+        assertNull(catalog.getByRfid(1050));
+        assertSame(p2, catalog.getByRfid(1149));
+    }
+}
@@ -0,0 +1,69 @@
+package it.polito.ezshop.internalTests.UnitTest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.polito.ezshop.model.ProductTypeModel;
+import it.polito.ezshop.model.RfidRanges;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class RfidRangesTest {
+
+    @Test
+    public void rangesTest(){
+        RfidRanges rfids = new RfidRanges();
+        assertEquals(10000, rfids.add(1000, 10000));
+        assertEquals(1, rfids.rangeCount());
+        assertTrue(rfids.contains(1000));
+        assertTrue(rfids.contains(10999));
+        assertFalse(rfids.contains(11000));
+        // adjacent and overlapping ranges are merged
+        assertEquals(5, rfids.add(10995, 10));
+        assertEquals(1, rfids.rangeCount());
+        assertEquals(10005, rfids.size());
+        assertTrue(rfids.add(20000));
+        assertFalse(rfids.add(20000));
+        assertEquals(2, rfids.rangeCount());
+
+        // removing from the middle splits the range
+        assertTrue(rfids.remove(5000));
+        assertFalse(rfids.remove(5000));
+        assertEquals(3, rfids.rangeCount());
+        assertFalse(rfids.contains(5000));
+        assertEquals(10005, rfids.size());
+        assertTrue(rfids.add(5000));
+        assertEquals(2, rfids.rangeCount());
+
+        assertTrue(rfids.overlaps(0, 1000));
+        assertTrue(rfids.overlaps(11004, 30000));
+        assertFalse(rfids.overlaps(11005, 19999));
+        assertFalse(rfids.overlaps(0, 999));
+    }
+
+    @Test
+    public void productRangeTest(){
+        ProductTypeModel product = new ProductTypeModel(1, "MockDescription", "MockCode", 2.0, "MockNote");
+        product.add_rfids("000000001000", 10);
+        assertFalse(product.valid_rfid_range("000000000995", 6));
+        assertTrue(product.valid_rfid_range("000000000995", 5));
+        assertTrue(product.valid_rfid_range("000000001010", 5));
+        assertEquals(10, product.getRFIDset().size());
+    }
+
+    @Test
+    public void jsonTest() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        RfidRanges rfids = new RfidRanges();
+        rfids.add(1000, 10000);
+        rfids.add(20000);
+        String json = mapper.writeValueAsString(rfids);
+        assertEquals("[[1000,10999],[20000,20000]]", json);
+        assertEquals(rfids, mapper.readValue(json, RfidRanges.class));
+        // single tags of the older files
+        RfidRanges legacy = mapper.readValue("[3,1,2,7]", RfidRanges.class);
+        assertEquals(2, legacy.rangeCount());
+        assertEquals(4, legacy.size());
+    }
+}